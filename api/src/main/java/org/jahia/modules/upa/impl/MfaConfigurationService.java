@@ -23,8 +23,6 @@
  */
 package org.jahia.modules.upa.impl;
 
-import org.apache.commons.lang3.StringUtils;
-import org.jahia.services.cache.CacheHelper;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
@@ -80,6 +78,216 @@ public class MfaConfigurationService {
                 defaultValue = "30"
         )
         int mfaFactorStartRateLimitSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaSuspensionSweepIntervalSeconds",
+                description = "%mfaSuspensionSweepIntervalSecondsDesc",
+                defaultValue = "300"
+        )
+        int mfaSuspensionSweepIntervalSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaAuthFailuresCacheMaxWeightBytes",
+                description = "%mfaAuthFailuresCacheMaxWeightBytesDesc",
+                defaultValue = "16777216"
+        )
+        long mfaAuthFailuresCacheMaxWeightBytes();
+
+        @AttributeDefinition(
+                name = "%mfaFactorStartRateLimitCacheMaxWeightBytes",
+                description = "%mfaFactorStartRateLimitCacheMaxWeightBytesDesc",
+                defaultValue = "8388608"
+        )
+        long mfaFactorStartRateLimitCacheMaxWeightBytes();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareUserBucketBurst",
+                description = "%mfaPrepareUserBucketBurstDesc",
+                defaultValue = "10"
+        )
+        int mfaPrepareUserBucketBurst();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareUserBucketRefillPerMinute",
+                description = "%mfaPrepareUserBucketRefillPerMinuteDesc",
+                defaultValue = "10"
+        )
+        int mfaPrepareUserBucketRefillPerMinute();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareIpBucketBurst",
+                description = "%mfaPrepareIpBucketBurstDesc",
+                defaultValue = "0"
+        )
+        int mfaPrepareIpBucketBurst();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareIpBucketRefillPerMinute",
+                description = "%mfaPrepareIpBucketRefillPerMinuteDesc",
+                defaultValue = "60"
+        )
+        int mfaPrepareIpBucketRefillPerMinute();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareSiteBucketBurst",
+                description = "%mfaPrepareSiteBucketBurstDesc",
+                defaultValue = "600"
+        )
+        int mfaPrepareSiteBucketBurst();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareSiteBucketRefillPerMinute",
+                description = "%mfaPrepareSiteBucketRefillPerMinuteDesc",
+                defaultValue = "600"
+        )
+        int mfaPrepareSiteBucketRefillPerMinute();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareGlobalBucketBurst",
+                description = "%mfaPrepareGlobalBucketBurstDesc",
+                defaultValue = "3000"
+        )
+        int mfaPrepareGlobalBucketBurst();
+
+        @AttributeDefinition(
+                name = "%mfaPrepareGlobalBucketRefillPerMinute",
+                description = "%mfaPrepareGlobalBucketRefillPerMinuteDesc",
+                defaultValue = "3000"
+        )
+        int mfaPrepareGlobalBucketRefillPerMinute();
+
+        @AttributeDefinition(
+                name = "%mfaInitiateThrottleWindowSeconds",
+                description = "%mfaInitiateThrottleWindowSecondsDesc",
+                defaultValue = "0"
+        )
+        int mfaInitiateThrottleWindowSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaInitiateIpMaxAttempts",
+                description = "%mfaInitiateIpMaxAttemptsDesc",
+                defaultValue = "100"
+        )
+        int mfaInitiateIpMaxAttempts();
+
+        @AttributeDefinition(
+                name = "%mfaInitiateSubnetMaxAttempts",
+                description = "%mfaInitiateSubnetMaxAttemptsDesc",
+                defaultValue = "1000"
+        )
+        int mfaInitiateSubnetMaxAttempts();
+
+        @AttributeDefinition(
+                name = "%mfaMaxConcurrentOperations",
+                description = "%mfaMaxConcurrentOperationsDesc",
+                defaultValue = "0"
+        )
+        int mfaMaxConcurrentOperations();
+
+        @AttributeDefinition(
+                name = "%mfaMaxQueuedOperations",
+                description = "%mfaMaxQueuedOperationsDesc",
+                defaultValue = "100"
+        )
+        int mfaMaxQueuedOperations();
+
+        @AttributeDefinition(
+                name = "%mfaQueuedOperationTimeoutMillis",
+                description = "%mfaQueuedOperationTimeoutMillisDesc",
+                defaultValue = "2000"
+        )
+        int mfaQueuedOperationTimeoutMillis();
+
+        @AttributeDefinition(
+                name = "%mfaUnknownUserCacheSeconds",
+                description = "%mfaUnknownUserCacheSecondsDesc",
+                defaultValue = "60"
+        )
+        int mfaUnknownUserCacheSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaEmailAsyncDelivery",
+                description = "%mfaEmailAsyncDeliveryDesc",
+                defaultValue = "false"
+        )
+        boolean mfaEmailAsyncDelivery();
+
+        @AttributeDefinition(
+                name = "%mfaEmailDispatchThreads",
+                description = "%mfaEmailDispatchThreadsDesc",
+                defaultValue = "4"
+        )
+        int mfaEmailDispatchThreads();
+
+        @AttributeDefinition(
+                name = "%mfaEmailDispatchQueueSize",
+                description = "%mfaEmailDispatchQueueSizeDesc",
+                defaultValue = "1000"
+        )
+        int mfaEmailDispatchQueueSize();
+
+        @AttributeDefinition(
+                name = "%mfaEmailOutbox",
+                description = "%mfaEmailOutboxDesc",
+                defaultValue = "false"
+        )
+        boolean mfaEmailOutbox();
+
+        @AttributeDefinition(
+                name = "%mfaEmailOutboxMaxAgeSeconds",
+                description = "%mfaEmailOutboxMaxAgeSecondsDesc",
+                defaultValue = "900"
+        )
+        int mfaEmailOutboxMaxAgeSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaEmailOutboxMaxRetryDelaySeconds",
+                description = "%mfaEmailOutboxMaxRetryDelaySecondsDesc",
+                defaultValue = "60"
+        )
+        int mfaEmailOutboxMaxRetryDelaySeconds();
+
+        @AttributeDefinition(
+                name = "%mfaSmtpPoolSize",
+                description = "%mfaSmtpPoolSizeDesc",
+                defaultValue = "0"
+        )
+        int mfaSmtpPoolSize();
+
+        @AttributeDefinition(
+                name = "%mfaSmtpPoolIdleSeconds",
+                description = "%mfaSmtpPoolIdleSecondsDesc",
+                defaultValue = "60"
+        )
+        int mfaSmtpPoolIdleSeconds();
+
+        @AttributeDefinition(
+                name = "%mfaEmailTemplateWarmUp",
+                description = "%mfaEmailTemplateWarmUpDesc",
+                defaultValue = "false"
+        )
+        boolean mfaEmailTemplateWarmUp();
+
+        @AttributeDefinition(
+                name = "%mfaEmailTemplateWarmUpThreads",
+                description = "%mfaEmailTemplateWarmUpThreadsDesc",
+                defaultValue = "2"
+        )
+        int mfaEmailTemplateWarmUpThreads();
+
+        @AttributeDefinition(
+                name = "%mfaEmailMinify",
+                description = "%mfaEmailMinifyDesc",
+                defaultValue = "false"
+        )
+        boolean mfaEmailMinify();
+
+        @AttributeDefinition(
+                name = "%mfaEmailTextAlternative",
+                description = "%mfaEmailTextAlternativeDesc",
+                defaultValue = "false"
+        )
+        boolean mfaEmailTextAlternative();
     }
 
     @Activate
@@ -90,11 +298,7 @@ public class MfaConfigurationService {
 
     @Modified
     public void modified(Config config) {
-        if (!StringUtils.equals(config.loginUrl(), this.config.loginUrl())) {
-            // a new login URL has been set, the cache must be invalidated
-            // as org.jahia.services.render.URLGenerator.getLogin() may have been used to render some pages
-            CacheHelper.flushOutputCaches(true);
-        }
+        // when the login URL changes, the output cache fragments depending on it are invalidated by the login URL provider
         this.config = config;
         logger.info("MFA Service configuration modified");
     }
@@ -123,4 +327,124 @@ public class MfaConfigurationService {
         return config.mfaFactorStartRateLimitSeconds();
     }
 
+    public int getMfaSuspensionSweepIntervalSeconds() {
+        return config.mfaSuspensionSweepIntervalSeconds();
+    }
+
+    public long getMfaAuthFailuresCacheMaxWeightBytes() {
+        return config.mfaAuthFailuresCacheMaxWeightBytes();
+    }
+
+    public long getMfaFactorStartRateLimitCacheMaxWeightBytes() {
+        return config.mfaFactorStartRateLimitCacheMaxWeightBytes();
+    }
+
+    public int getMfaPrepareUserBucketBurst() {
+        return config.mfaPrepareUserBucketBurst();
+    }
+
+    public int getMfaPrepareUserBucketRefillPerMinute() {
+        return config.mfaPrepareUserBucketRefillPerMinute();
+    }
+
+    public int getMfaPrepareIpBucketBurst() {
+        return config.mfaPrepareIpBucketBurst();
+    }
+
+    public int getMfaPrepareIpBucketRefillPerMinute() {
+        return config.mfaPrepareIpBucketRefillPerMinute();
+    }
+
+    public int getMfaPrepareSiteBucketBurst() {
+        return config.mfaPrepareSiteBucketBurst();
+    }
+
+    public int getMfaPrepareSiteBucketRefillPerMinute() {
+        return config.mfaPrepareSiteBucketRefillPerMinute();
+    }
+
+    public int getMfaPrepareGlobalBucketBurst() {
+        return config.mfaPrepareGlobalBucketBurst();
+    }
+
+    public int getMfaPrepareGlobalBucketRefillPerMinute() {
+        return config.mfaPrepareGlobalBucketRefillPerMinute();
+    }
+
+    public int getMfaInitiateThrottleWindowSeconds() {
+        return config.mfaInitiateThrottleWindowSeconds();
+    }
+
+    public int getMfaInitiateIpMaxAttempts() {
+        return config.mfaInitiateIpMaxAttempts();
+    }
+
+    public int getMfaInitiateSubnetMaxAttempts() {
+        return config.mfaInitiateSubnetMaxAttempts();
+    }
+
+    public int getMfaMaxConcurrentOperations() {
+        return config.mfaMaxConcurrentOperations();
+    }
+
+    public int getMfaMaxQueuedOperations() {
+        return config.mfaMaxQueuedOperations();
+    }
+
+    public int getMfaQueuedOperationTimeoutMillis() {
+        return config.mfaQueuedOperationTimeoutMillis();
+    }
+
+    public int getMfaUnknownUserCacheSeconds() {
+        return config.mfaUnknownUserCacheSeconds();
+    }
+
+    public boolean isMfaEmailAsyncDelivery() {
+        return config.mfaEmailAsyncDelivery();
+    }
+
+    public int getMfaEmailDispatchThreads() {
+        return config.mfaEmailDispatchThreads();
+    }
+
+    public int getMfaEmailDispatchQueueSize() {
+        return config.mfaEmailDispatchQueueSize();
+    }
+
+    public boolean isMfaEmailOutbox() {
+        return config.mfaEmailOutbox();
+    }
+
+    public int getMfaEmailOutboxMaxAgeSeconds() {
+        return config.mfaEmailOutboxMaxAgeSeconds();
+    }
+
+    public int getMfaEmailOutboxMaxRetryDelaySeconds() {
+        return config.mfaEmailOutboxMaxRetryDelaySeconds();
+    }
+
+    public int getMfaSmtpPoolSize() {
+        return config.mfaSmtpPoolSize();
+    }
+
+    public int getMfaSmtpPoolIdleSeconds() {
+        return config.mfaSmtpPoolIdleSeconds();
+    }
+
+    public boolean isMfaEmailTemplateWarmUp() {
+        return config.mfaEmailTemplateWarmUp();
+    }
+
+    public int getMfaEmailTemplateWarmUpThreads() {
+        return config.mfaEmailTemplateWarmUpThreads();
+    }
+
+    public boolean isMfaEmailMinify() {
+        return config.mfaEmailMinify();
+    }
+
+    public boolean isMfaEmailTextAlternative() {
+        return config.mfaEmailTextAlternative();
+    }
+
 }
@@ -0,0 +1,20 @@
+package org.jahia.modules.upa.mfa;
+
+/**
+ * Delivery status of what a factor sends to the user when prepared (e.g. the verification code of the email code
+ * factor), recorded on the {@link MfaFactorState} by the factor providers that deliver it asynchronously.
+ */
+public enum MfaDeliveryStatus {
+    /**
+     * The delivery is queued or in progress.
+     */
+    PENDING,
+    /**
+     * The delivery succeeded.
+     */
+    SENT,
+    /**
+     * The delivery failed, the factor has to be prepared again.
+     */
+    FAILED
+}
@@ -16,6 +16,20 @@ public class MfaFactorState implements Serializable {
     private boolean verified = false;
     private MfaError error;
     private Serializable preparationResult;
+    /**
+     * Updated by the delivery threads of the factor providers, hence volatile.
+     */
+    private volatile MfaDeliveryStatus deliveryStatus;
+    /**
+     * Notified when the delivery status changes, not serialized with the session.
+     */
+    private transient volatile Runnable deliveryStatusListener;
+    private String idempotencyKey;
+    private MfaError idempotentError;
+    /**
+     * Not serialized, the concurrent preparations being only shared by the requests holding the same instance.
+     */
+    private transient volatile int preparationCount;
 
     /**
      * Checks whether this factor has been successfully prepared.
@@ -128,4 +142,94 @@ public class MfaFactorState implements Serializable {
     public void setPreparationResult(Serializable preparationResult) {
         this.preparationResult = preparationResult;
     }
+
+    /**
+     * Returns the delivery status of what the factor sent to the user when prepared (e.g. a verification code).
+     * <p>
+     * Factor providers delivering asynchronously update it once the delivery is done, so that clients can poll it.
+     *
+     * @return the delivery status, or null if the factor does not track its delivery or is not prepared
+     */
+    public MfaDeliveryStatus getDeliveryStatus() {
+        return deliveryStatus;
+    }
+
+    /**
+     * Sets the delivery status of what the factor sent to the user when prepared.
+     * <p>
+     * May be called from another thread than the one that prepared the factor.
+     *
+     * @param deliveryStatus the delivery status, null if not tracked
+     */
+    public void setDeliveryStatus(MfaDeliveryStatus deliveryStatus) {
+        this.deliveryStatus = deliveryStatus;
+        Runnable listener = deliveryStatusListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets the callback notified when the delivery status changes.
+     * <p>
+     * As the delivery status may be updated once the request that prepared the factor is over, the MFA service uses it
+     * to set the MFA session again in the HTTP session, so that the servlet containers persisting or replicating the
+     * sessions get the update.
+     *
+     * @param deliveryStatusListener the callback, null to remove it
+     */
+    public void setDeliveryStatusListener(Runnable deliveryStatusListener) {
+        this.deliveryStatusListener = deliveryStatusListener;
+    }
+
+    /**
+     * Returns the idempotency key of the last completed preparation of this factor, so that the retries of the client
+     * with the same key return its result instead of preparing the factor again.
+     *
+     * @return the idempotency key, or null if the last preparation had none
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * Returns the factor-level error of the last completed preparation with an idempotency key.
+     *
+     * @return the error of the preparation, or null if it succeeded
+     * @see #getIdempotencyKey()
+     */
+    public MfaError getIdempotentError() {
+        return idempotentError;
+    }
+
+    /**
+     * Records the idempotency key of a completed preparation of this factor, along with its error.
+     *
+     * @param idempotencyKey the idempotency key given by the client
+     * @param error          the factor-level error of the preparation, or null if it succeeded
+     */
+    public void setIdempotencyKey(String idempotencyKey, MfaError error) {
+        this.idempotencyKey = idempotencyKey;
+        this.idempotentError = error;
+    }
+
+    /**
+     * Returns the number of preparations of this factor run since this state was created or loaded.
+     * <p>
+     * The MFA service prepares a factor while holding the monitor of its state: a preparation of the same session
+     * waiting for it tells from this count that it completed meanwhile, and answers with its outcome instead of
+     * preparing the factor again.
+     *
+     * @return the number of preparations run
+     */
+    public int getPreparationCount() {
+        return preparationCount;
+    }
+
+    /**
+     * Counts a preparation of this factor, must be called while holding the monitor of this state.
+     */
+    public void incrementPreparationCount() {
+        preparationCount++;
+    }
 }
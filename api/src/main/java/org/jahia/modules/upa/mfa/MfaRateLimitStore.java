@@ -0,0 +1,83 @@
+package org.jahia.modules.upa.mfa;
+
+/**
+ * Storage of the state used by the MFA service to rate limit the users: the recent failed verifications (to suspend
+ * the users exceeding the allowed number of failures) and the last factor preparations (to enforce the cooldown
+ * between two preparations).
+ * <p>
+ * The default implementation keeps that state in memory, on each cluster node, so that the limits apply per node. A
+ * store shared across the cluster nodes (such as the JDBC one embedded in this module, enabled by the
+ * {@code org.jahia.modules.upa.jdbc} configuration) makes them apply to the whole cluster. Custom implementations can
+ * be registered as OSGi services with a higher service ranking to replace the default one.
+ * <p>
+ * The methods are called on each MFA operation, implementations must not perform a remote call each time.
+ */
+public interface MfaRateLimitStore {
+
+    /**
+     * Value returned by {@link #getLastPreparation(String, String)} when no preparation is known.
+     */
+    long NO_PREPARATION = 0L;
+
+    /**
+     * Records a failed verification of a factor by a user.
+     *
+     * @param userPath             the path of the user node
+     * @param factorType           the factor type (see {@link MfaFactorProvider#getFactorType()})
+     * @param now                  the current epoch (in milliseconds)
+     * @param failuresWindowMillis the time window (in milliseconds) during which the failures are counted
+     * @param maxFailures          the number of failures after which the user gets suspended (no need to keep more)
+     * @return the number of failures of the user for that factor within the time window, including this one
+     */
+    int recordFailure(String userPath, String factorType, long now, long failuresWindowMillis, int maxFailures);
+
+    /**
+     * Returns the number of failed verifications of a factor by a user within a time window.
+     *
+     * @param userPath             the path of the user node
+     * @param factorType           the factor type (see {@link MfaFactorProvider#getFactorType()})
+     * @param now                  the current epoch (in milliseconds)
+     * @param failuresWindowMillis the time window (in milliseconds) during which the failures are counted
+     * @return the number of failures within the time window
+     */
+    int getFailureCount(String userPath, String factorType, long now, long failuresWindowMillis);
+
+    /**
+     * Forgets the failed verifications of a factor by a user (e.g. once the user is authenticated or suspended).
+     *
+     * @param userPath   the path of the user node
+     * @param factorType the factor type (see {@link MfaFactorProvider#getFactorType()})
+     */
+    void clearFailures(String userPath, String factorType);
+
+    /**
+     * Returns when a factor was last prepared for a user.
+     * <p>
+     * Preparations older than the cooldown may still be returned, the caller compares the returned value with the
+     * current time.
+     *
+     * @param userPath   the path of the user node
+     * @param factorType the factor type (see {@link MfaFactorProvider#getFactorType()})
+     * @return the epoch (in milliseconds) of the last preparation, or {@link #NO_PREPARATION} if unknown
+     */
+    long getLastPreparation(String userPath, String factorType);
+
+    /**
+     * Records a preparation of a factor for a user.
+     *
+     * @param userPath       the path of the user node
+     * @param factorType     the factor type (see {@link MfaFactorProvider#getFactorType()})
+     * @param now            the current epoch (in milliseconds)
+     * @param cooldownMillis the time (in milliseconds) before the factor can be prepared again (no need to keep the
+     *                       preparation longer)
+     */
+    void recordPreparation(String userPath, String factorType, long now, long cooldownMillis);
+
+    /**
+     * Forgets the last preparation of a factor for a user (e.g. once the factor is verified).
+     *
+     * @param userPath   the path of the user node
+     * @param factorType the factor type (see {@link MfaFactorProvider#getFactorType()})
+     */
+    void clearPreparation(String userPath, String factorType);
+}
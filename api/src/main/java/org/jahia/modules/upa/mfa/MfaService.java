@@ -61,6 +61,25 @@ public interface MfaService {
      */
     MfaSession prepareFactor(String factorType, HttpServletRequest request, HttpServletResponse response);
 
+    /**
+     * Prepares a specific MFA factor for verification, idempotently.
+     * <p>
+     * A preparation with the same idempotency key as the last completed preparation of the factor in the session
+     * (e.g. a retry of the client after a network failure) returns its result without preparing the factor again,
+     * the user and factor being validated first (e.g. a user suspended in the meantime gets the suspension error).
+     * Preparations rejected by the rate limits are not recorded, so that the same key can be retried once allowed.
+     *
+     * @param factorType     the factor type identifier
+     * @param idempotencyKey the key identifying the preparation for the client, null to always prepare the factor
+     * @param request        the HTTP request
+     * @param response       the HTTP response
+     * @return the updated MFA session with preparation results or errors
+     * @see #prepareFactor(String, HttpServletRequest, HttpServletResponse)
+     */
+    default MfaSession prepareFactor(String factorType, String idempotencyKey, HttpServletRequest request, HttpServletResponse response) {
+        return prepareFactor(factorType, request, response);
+    }
+
     /**
      * Verifies a specific MFA factor with the provided verification data.
      * <p>
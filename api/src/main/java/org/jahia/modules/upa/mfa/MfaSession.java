@@ -34,6 +34,8 @@ public class MfaSession implements Serializable {
      * <ul>
      *   <li><code>no_active_session</code> - No MFA session exists</li>
      *   <li><code>authentication_failed</code> - Initial username/password authentication failed</li>
+     *   <li><code>initiate.too_many_attempts</code> - Too many initiations from the client IP address or its subnet</li>
+     *   <li><code>server_busy</code> - Too many MFA operations running on the node to check the credentials</li>
      *   <li><code>user_not_found</code> - User does not exist in the system</li>
      * </ul>
      */
@@ -188,6 +190,12 @@ public class MfaSession implements Serializable {
      * @return true if all required factors are verified, false otherwise
      */
     public boolean areAllRequiredFactorsCompleted() {
-        return getRemainingFactors().isEmpty();
+        // called on each verification, so no need to build the list of remaining factors
+        for (String factor : context.getRequiredFactors()) {
+            if (!isFactorVerified(factor)) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -34,6 +34,7 @@ import java.util.Locale;
  */
 public class MfaSessionContext implements Serializable {
     private final String userId;
+    private final String userPath;
     private final Locale userPreferredLanguage;
     private final String siteKey;
     private final boolean rememberMe;
@@ -49,7 +50,23 @@ public class MfaSessionContext implements Serializable {
      * @param requiredFactors       the list of factor types required to complete authentication
      */
     public MfaSessionContext(String userId, Locale userPreferredLanguage, String siteKey, boolean rememberMe, List<String> requiredFactors) {
+        this(userId, null, userPreferredLanguage, siteKey, rememberMe, requiredFactors);
+    }
+
+    /**
+     * Creates a new MFA session context for an authenticated user.
+     *
+     * @param userId                the unique identifier for the user
+     * @param userPath              the path of the user node, identifying the user among the users of the same name
+     *                              (e.g. of other sites)
+     * @param userPreferredLanguage the user's preferred language for localized messages
+     * @param siteKey               the site context for this MFA session (may be null)
+     * @param rememberMe            whether the user enables the "remember me" feature
+     * @param requiredFactors       the list of factor types required to complete authentication
+     */
+    public MfaSessionContext(String userId, String userPath, Locale userPreferredLanguage, String siteKey, boolean rememberMe, List<String> requiredFactors) {
         this.userId = userId;
+        this.userPath = userPath;
         this.userPreferredLanguage = userPreferredLanguage;
         this.siteKey = siteKey;
         this.rememberMe = rememberMe;
@@ -65,6 +82,15 @@ public class MfaSessionContext implements Serializable {
         return userId;
     }
 
+    /**
+     * Returns the path of the user node, as authenticated when the session was initiated.
+     *
+     * @return the user path, or null if not known
+     */
+    public String getUserPath() {
+        return userPath;
+    }
+
     /**
      * Returns the user's preferred language for localized content.
      *
@@ -105,6 +131,7 @@ public class MfaSessionContext implements Serializable {
     public String toString() {
         return "MfaSessionContext{" +
                 "userId='" + userId + '\'' +
+                ", userPath='" + userPath + '\'' +
                 ", userPreferredLanguage=" + userPreferredLanguage +
                 ", siteKey='" + siteKey + '\'' +
                 ", requiredFactors=" + requiredFactors +
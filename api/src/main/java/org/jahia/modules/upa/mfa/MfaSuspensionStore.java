@@ -0,0 +1,52 @@
+package org.jahia.modules.upa.mfa;
+
+import java.util.Map;
+
+/**
+ * Storage of the temporary user suspensions applied by the MFA service once a user exceeds the allowed number of
+ * failed verifications.
+ * <p>
+ * The default implementation stores compact suspension records in the JCR, apart from the user nodes (so that
+ * suspending a user never modifies the user node itself, which may be read-only for external users). Custom
+ * implementations can be registered as OSGi services with a higher service ranking to replace it.
+ * <p>
+ * Reads only happen when the suspension state of a user is not cached by the MFA service yet, and writes are
+ * performed in the background, batched. A store shared across the cluster nodes should be used so that a suspension
+ * applies on all the nodes.
+ */
+public interface MfaSuspensionStore {
+
+    /**
+     * Value returned by {@link #getSuspendedUntil(String)} for users that are not suspended.
+     */
+    long NOT_SUSPENDED = 0L;
+
+    /**
+     * Returns the epoch (in milliseconds) until which a user is suspended.
+     * <p>
+     * Expired suspensions may still be returned until they get purged, the caller compares the returned value with
+     * the current time.
+     *
+     * @param userPath the path of the user node
+     * @return the end of the suspension of the user, or {@link #NOT_SUSPENDED} if the user is not suspended
+     * @throws IllegalStateException if the store cannot be read
+     */
+    long getSuspendedUntil(String userPath);
+
+    /**
+     * Saves a batch of suspensions, replacing any existing suspension of the same users.
+     *
+     * @param suspendedUntilByUserPath the end of the suspension (epoch in milliseconds) by user path
+     * @throws IllegalStateException if the suspensions cannot be saved
+     */
+    void saveSuspensions(Map<String, Long> suspendedUntilByUserPath);
+
+    /**
+     * Removes the suspensions that have ended.
+     *
+     * @param now the current epoch (in milliseconds)
+     * @return the number of suspensions removed
+     * @throws IllegalStateException if the store cannot be purged
+     */
+    int purgeExpiredSuspensions(long now);
+}
@@ -0,0 +1,163 @@
+package org.jahia.modules.upa.mfa;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Immutable projection of the user going through an MFA flow, holding the attributes needed by the MFA service and
+ * the factor providers.
+ * <p>
+ * The user is resolved once per MFA operation (initiation, preparation or verification) and the same instance is
+ * passed to the factor providers through {@link PreparationContext#getUser()} and {@link VerificationContext#getUser()},
+ * so that they do not need to look the user up again.
+ */
+public final class MfaUserDetails {
+    private static final Logger logger = LoggerFactory.getLogger(MfaUserDetails.class);
+    private final String path;
+    private final String name;
+    private final String email;
+    private final String maskedEmail;
+    private final Locale preferredLanguage;
+    private final long suspendedUntil;
+
+    /**
+     * Creates a new user projection.
+     *
+     * @param path              the path of the user node
+     * @param name              the name of the user
+     * @param email             the email address of the user (may be null)
+     * @param preferredLanguage the preferred language of the user
+     * @param suspendedUntil    the epoch (in milliseconds) until which the user is suspended, {@link MfaSuspensionStore#NOT_SUSPENDED} if not suspended
+     */
+    public MfaUserDetails(String path, String name, String email, Locale preferredLanguage, long suspendedUntil) {
+        this(path, name, email, getMaskedEmail(email), preferredLanguage, suspendedUntil);
+    }
+
+    private MfaUserDetails(String path, String name, String email, String maskedEmail, Locale preferredLanguage, long suspendedUntil) {
+        this.path = path;
+        this.name = name;
+        this.email = email;
+        this.maskedEmail = maskedEmail;
+        this.preferredLanguage = preferredLanguage;
+        this.suspendedUntil = suspendedUntil;
+    }
+
+    /**
+     * Returns a copy of this user projection with another suspension state, the other attributes being unchanged.
+     *
+     * @param suspendedUntil the epoch (in milliseconds) until which the user is suspended, {@link MfaSuspensionStore#NOT_SUSPENDED} if not suspended
+     * @return the copy of the user projection
+     */
+    public MfaUserDetails withSuspendedUntil(long suspendedUntil) {
+        if (suspendedUntil == this.suspendedUntil) {
+            return this;
+        }
+        return new MfaUserDetails(path, name, email, maskedEmail, preferredLanguage, suspendedUntil);
+    }
+
+    /**
+     * Returns the path of the user node.
+     *
+     * @return the user path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the name of the user.
+     *
+     * @return the user name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the email address of the user ({@code j:email} property).
+     *
+     * @return the email address, or null if not set
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * Returns the email address of the user, masked for privacy while keeping it recognizable.
+     * <p>
+     * Examples:
+     * <ul>
+     *   <li>john.doe@example.com → j***e@example.com</li>
+     *   <li>ab@example.com → a***@example.com</li>
+     *   <li>a@example.com → a***@example.com</li>
+     * </ul>
+     *
+     * @return the masked email address, or "***" if the email is invalid
+     */
+    public String getMaskedEmail() {
+        return maskedEmail;
+    }
+
+    /**
+     * Returns the preferred language of the user.
+     *
+     * @return the preferred locale
+     */
+    public Locale getPreferredLanguage() {
+        return preferredLanguage;
+    }
+
+    /**
+     * Returns the epoch (in milliseconds) until which the user is suspended, as known when the user was resolved.
+     *
+     * @return the end of the suspension, or {@link MfaSuspensionStore#NOT_SUSPENDED} if the user is not suspended
+     */
+    public long getSuspendedUntil() {
+        return suspendedUntil;
+    }
+
+    /**
+     * Checks whether the user is currently suspended.
+     *
+     * @return true if the user is suspended, false otherwise
+     */
+    public boolean isSuspended() {
+        return suspendedUntil > System.currentTimeMillis();
+    }
+
+    private static String getMaskedEmail(String emailAddress) {
+        // Validate email contains "@"
+        if (StringUtils.isEmpty(emailAddress) || !emailAddress.contains("@")) {
+            logger.debug("Invalid email address format, cannot mask: {}", emailAddress);
+            return "***";
+        }
+
+        String localPart = StringUtils.substringBefore(emailAddress, "@");
+        String domain = StringUtils.substringAfter(emailAddress, "@");
+
+        // Additional validation
+        if (StringUtils.isEmpty(localPart) || StringUtils.isEmpty(domain)) {
+            logger.debug("Invalid email address format (empty local part or domain), cannot mask: {}", emailAddress);
+            return "***";
+        }
+
+        if (localPart.length() <= 2) {
+            // For very short local parts, just show first char + asterisks
+            return localPart.charAt(0) + "***@" + domain;
+        }
+        // Show first and last char with asterisks in between
+        return localPart.charAt(0) + "***" + localPart.charAt(localPart.length() - 1) + "@" + domain;
+    }
+
+    @Override
+    public String toString() {
+        return "MfaUserDetails{" +
+                "path='" + path + '\'' +
+                ", preferredLanguage=" + preferredLanguage +
+                ", suspendedUntil=" + suspendedUntil +
+                '}';
+    }
+}
@@ -14,6 +14,8 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class PreparationContext {
     private final MfaSessionContext sessionContext;
+    private final MfaUserDetails user;
+    private final MfaFactorState factorState;
     private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
 
@@ -26,7 +28,37 @@ public class PreparationContext {
      */
     public PreparationContext(MfaSessionContext sessionContext,
                               HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        this(sessionContext, null, httpServletRequest, httpServletResponse);
+    }
+
+    /**
+     * Creates a new preparation context for an already resolved user.
+     *
+     * @param sessionContext      the immutable session context containing user and site information
+     * @param user                the user going through the MFA flow, as resolved by the MFA service
+     * @param httpServletRequest  the HTTP request that triggered the preparation
+     * @param httpServletResponse the HTTP response for setting headers or cookies if needed
+     */
+    public PreparationContext(MfaSessionContext sessionContext, MfaUserDetails user,
+                              HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        this(sessionContext, user, null, httpServletRequest, httpServletResponse);
+    }
+
+    /**
+     * Creates a new preparation context for an already resolved user, giving access to the state of the factor being
+     * prepared.
+     *
+     * @param sessionContext      the immutable session context containing user and site information
+     * @param user                the user going through the MFA flow, as resolved by the MFA service
+     * @param factorState         the state of the factor being prepared
+     * @param httpServletRequest  the HTTP request that triggered the preparation
+     * @param httpServletResponse the HTTP response for setting headers or cookies if needed
+     */
+    public PreparationContext(MfaSessionContext sessionContext, MfaUserDetails user, MfaFactorState factorState,
+                              HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         this.sessionContext = sessionContext;
+        this.user = user;
+        this.factorState = factorState;
         this.httpServletRequest = httpServletRequest;
         this.httpServletResponse = httpServletResponse;
     }
@@ -40,6 +72,29 @@ public class PreparationContext {
         return sessionContext;
     }
 
+    /**
+     * Returns the user going through the MFA flow, already resolved by the MFA service.
+     * <p>
+     * Factor providers should use it rather than looking the user up again.
+     *
+     * @return the user, or null if not resolved
+     */
+    public MfaUserDetails getUser() {
+        return user;
+    }
+
+    /**
+     * Returns the state of the factor being prepared.
+     * <p>
+     * Factor providers delivering something to the user asynchronously record the outcome of the delivery on it
+     * ({@link MfaFactorState#setDeliveryStatus(MfaDeliveryStatus)}).
+     *
+     * @return the factor state, or null if not provided
+     */
+    public MfaFactorState getFactorState() {
+        return factorState;
+    }
+
     /**
      * Returns the HTTP request that triggered the preparation.
      * <p>
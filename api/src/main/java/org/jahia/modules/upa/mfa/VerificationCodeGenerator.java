@@ -0,0 +1,125 @@
+package org.jahia.modules.upa.mfa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generator of random verification codes (e.g. the codes sent by email), for the factor providers.
+ * <p>
+ * The characters of the codes are drawn uniformly from an alphabet: the random bytes are drawn in bulk and the ones
+ * that would bias the draw (the bytes above the largest multiple of the alphabet size) are rejected, instead of being
+ * reduced with a modulo.
+ * <p>
+ * Generating codes under load does not serialize the threads on a single {@link SecureRandom}: the generator is
+ * striped, each stripe owning its own DRBG instance and buffer of random bytes, and the threads pick a stripe by their
+ * ID. Stripes are preferred over thread-local instances, which would stay referenced by the pooled threads of the
+ * server once the module is stopped. The generator is thread-safe.
+ */
+public final class VerificationCodeGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(VerificationCodeGenerator.class);
+    /**
+     * The alphabet of the numeric codes.
+     */
+    public static final String DIGITS = "0123456789";
+    private static final int BUFFER_SIZE = 256;
+    private static final int STRIPES = stripeCount();
+
+    private final int length;
+    private final char[] alphabet;
+    /**
+     * The random bytes from this value on are rejected, as mapping them on the alphabet would bias the draw.
+     */
+    private final int rejectionThreshold;
+    private final Stripe[] stripes;
+
+    /**
+     * @param length   the number of characters of the codes
+     * @param alphabet the characters the codes are made of (between 2 and 256 distinct characters)
+     * @throws IllegalArgumentException if the length is not positive or if the alphabet is invalid
+     */
+    public VerificationCodeGenerator(int length, String alphabet) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("The length of the verification codes must be positive: " + length);
+        }
+        if (alphabet == null || alphabet.length() < 2 || alphabet.length() > 256 || alphabet.chars().distinct().count() != alphabet.length()) {
+            throw new IllegalArgumentException("The alphabet of the verification codes must have between 2 and 256 distinct characters: " + alphabet);
+        }
+        this.length = length;
+        this.alphabet = alphabet.toCharArray();
+        this.rejectionThreshold = 256 - 256 % alphabet.length();
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Generates a verification code.
+     *
+     * @return a code of the configured length, made of characters of the configured alphabet
+     */
+    public String generate() {
+        char[] code = new char[length];
+        Stripe stripe = stripes[stripeIndex(Thread.currentThread().getId())];
+        synchronized (stripe) {
+            for (int i = 0; i < length; i++) {
+                int value;
+                do {
+                    value = stripe.nextByte();
+                } while (value >= rejectionThreshold);
+                code[i] = alphabet[value % alphabet.length];
+            }
+        }
+        return new String(code);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    private static int stripeIndex(long threadId) {
+        // the thread IDs being sequential, they are mixed so that consecutive ones spread over the stripes
+        long hash = threadId * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * @return the number of stripes, a power of two of at least twice the number of processors
+     */
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+    }
+
+    private static final class Stripe {
+        private final SecureRandom random = createRandom();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+
+        /**
+         * @return the next random byte, as an unsigned value
+         */
+        private int nextByte() {
+            if (position == BUFFER_SIZE) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            int value = buffer[position] & 0xFF;
+            // not kept once consumed
+            buffer[position++] = 0;
+            return value;
+        }
+
+        private static SecureRandom createRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                logger.debug("DRBG not available, using the default SecureRandom", e);
+                return new SecureRandom();
+            }
+        }
+    }
+}
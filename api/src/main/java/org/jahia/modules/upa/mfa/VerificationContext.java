@@ -17,6 +17,7 @@ import java.io.Serializable;
  */
 public class VerificationContext {
     private final MfaSessionContext sessionContext;
+    private final MfaUserDetails user;
     private final Serializable preparationResult;
     private final Serializable verificationData;
     private final HttpServletRequest httpServletRequest;
@@ -32,7 +33,22 @@ public class VerificationContext {
      * @param httpServletResponse the HTTP response associated with the verification
      */
     public VerificationContext(MfaSessionContext sessionContext, Serializable preparationResult, Serializable verificationData, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        this(sessionContext, null, preparationResult, verificationData, httpServletRequest, httpServletResponse);
+    }
+
+    /**
+     * Creates a new verification context for an already resolved user.
+     *
+     * @param sessionContext      the session context containing user and site information
+     * @param user                the user going through the MFA flow, as resolved by the MFA service
+     * @param preparationResult   the result from the prepare step (may be null if not prepared)
+     * @param verificationData    the verification data submitted by the user
+     * @param httpServletRequest  the HTTP request associated with the verification
+     * @param httpServletResponse the HTTP response associated with the verification
+     */
+    public VerificationContext(MfaSessionContext sessionContext, MfaUserDetails user, Serializable preparationResult, Serializable verificationData, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         this.sessionContext = sessionContext;
+        this.user = user;
         this.preparationResult = preparationResult;
         this.verificationData = verificationData;
         this.httpServletRequest = httpServletRequest;
@@ -48,6 +64,17 @@ public class VerificationContext {
         return sessionContext;
     }
 
+    /**
+     * Returns the user going through the MFA flow, already resolved by the MFA service.
+     * <p>
+     * Factor providers should use it rather than looking the user up again.
+     *
+     * @return the user, or null if not resolved
+     */
+    public MfaUserDetails getUser() {
+        return user;
+    }
+
     /**
      * Returns the result from the factor preparation step.
      * <p>
@@ -0,0 +1,122 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the emails of the {@link EmailCodeFactorProvider} in the background when the asynchronous delivery is enabled
+ * ({@link MfaConfigurationService#isMfaEmailAsyncDelivery()}), so that a slow SMTP relay does not hold the request
+ * threads.
+ * <p>
+ * The emails are sent by a dedicated executor, with a bounded queue: when it is full, the emails are sent
+ * synchronously by the caller. Virtual threads are used when the runtime supports them (Java 21+), the number of
+ * emails sent concurrently being limited by the configured number of threads either way.
+ */
+@Component(service = EmailCodeDispatcher.class, immediate = true)
+public class EmailCodeDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(EmailCodeDispatcher.class);
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private volatile ThreadPoolExecutor executor;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        if (!mfaConfigurationService.isMfaEmailAsyncDelivery()) {
+            shutdown(false);
+            return;
+        }
+        int threads = Math.max(1, mfaConfigurationService.getMfaEmailDispatchThreads());
+        int queueSize = Math.max(1, mfaConfigurationService.getMfaEmailDispatchQueueSize());
+        if (executor != null && executor.getMaximumPoolSize() == threads && executor.getQueue().remainingCapacity() + executor.getQueue().size() == queueSize) {
+            return;
+        }
+        // the emails already queued are still sent by the previous executor
+        shutdown(false);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), createThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        logger.info("MFA emails are sent asynchronously ({} thread(s), queue of {})", threads, queueSize);
+    }
+
+    public synchronized void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        shutdown(true);
+    }
+
+    /**
+     * Queues a delivery, if the asynchronous delivery is enabled and the queue is not full.
+     *
+     * @param delivery the delivery to run
+     * @return true if the delivery was queued, false if it has to be run synchronously by the caller
+     */
+    public boolean dispatch(Runnable delivery) {
+        ThreadPoolExecutor currentExecutor = executor;
+        if (currentExecutor == null) {
+            return false;
+        }
+        try {
+            currentExecutor.execute(delivery);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the queue is full, or the executor is being replaced
+            logger.warn("Unable to queue the MFA email, sending it synchronously");
+            return false;
+        }
+    }
+
+    /**
+     * Stops the current executor once the queued emails are sent, waiting for them if requested.
+     */
+    private void shutdown(boolean awaitTermination) {
+        ThreadPoolExecutor previousExecutor = executor;
+        if (previousExecutor == null) {
+            return;
+        }
+        executor = null;
+        previousExecutor.shutdown();
+        if (!awaitTermination) {
+            return;
+        }
+        try {
+            if (!previousExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("{} MFA email(s) not sent before the timeout", previousExecutor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a factory of virtual threads when the runtime supports them, of daemon platform threads otherwise.
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "UPA email dispatcher-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Virtual threads not supported, using platform threads", e);
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "UPA email dispatcher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -3,15 +3,14 @@ package org.jahia.modules.upa.mfa.emailcode;
 import org.apache.commons.lang3.StringUtils;
 import org.jahia.api.Constants;
 import org.jahia.bin.Render;
+import org.jahia.modules.upa.impl.MfaConfigurationService;
 import org.jahia.modules.upa.mfa.*;
 import org.jahia.osgi.BundleUtils;
-import org.jahia.registries.ServicesRegistry;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.JCRSessionFactory;
 import org.jahia.services.content.JCRTemplate;
 import org.jahia.services.content.decorator.JCRSiteNode;
 import org.jahia.services.content.decorator.JCRUserNode;
-import org.jahia.services.mail.MailService;
 import org.jahia.services.render.RenderContext;
 import org.jahia.services.render.RenderException;
 import org.jahia.services.render.RenderService;
@@ -22,9 +21,7 @@ import org.jahia.services.usermanager.JahiaUserManagerService;
 import org.jahia.utils.i18n.Messages;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.service.component.annotations.Activate;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +30,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import java.io.Serializable;
-import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 /**
  * Email code MFA factor provider.
@@ -45,7 +43,7 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
     private static final int EMAIL_CODE_LENGTH = 6;
     public static final String FACTOR_TYPE = "email_code";
     private static final String EMAIL_CODE_TEMPLATE_NAME = "emailCodeTemplate";
-    private static final SecureRandom random = new SecureRandom();
+    private static final VerificationCodeGenerator codeGenerator = new VerificationCodeGenerator(EMAIL_CODE_LENGTH, VerificationCodeGenerator.DIGITS);
     private static final String ERROR_SENDING_VALIDATION_FAILED = "factor.email_code.sending_validation_code_failed";
     private static final String ERROR_VERIFICATION_CODE_REQUIRED = "factor.email_code.verification_code_required";
     private static final String ERROR_PREPARATION_CODE_REQUIRED = "factor.email_code.missing_prepared_code";
@@ -56,6 +54,13 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
     private JahiaUserManagerService userManagerService;
     private RenderService renderService;
     private JahiaSitesService sitesService;
+    private EmailCodeDispatcher emailCodeDispatcher;
+    private EmailOutbox emailOutbox;
+    private EmailCodeTransport emailCodeTransport;
+    private EmailTemplateCache emailTemplateCache;
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private EmailTemplateWarmUp emailTemplateWarmUp;
+    private volatile String emailPostProcessing;
     private String emailCodeContentPath;
     private String resourceBundleName;
 
@@ -66,6 +71,41 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
         String moduleId = BundleUtils.getModuleId(currentBundle);
         this.emailCodeContentPath = String.format("/modules/%s/%s/contents/mfaEmailCode", moduleId, BundleUtils.getModuleVersion(currentBundle));
         this.resourceBundleName = "resources." + moduleId;
+        this.emailTemplateWarmUp = new EmailTemplateWarmUp(sitesService, userManagerService, emailTemplateCache, this::getRenderedEmail,
+                mfaConfigurationService.getMfaEmailTemplateWarmUpThreads());
+        emailTemplateCache.setModuleStartedListener(this::onModuleStarted);
+        if (mfaConfigurationService.isMfaEmailTemplateWarmUp()) {
+            emailTemplateWarmUp.start(null);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        emailTemplateCache.setModuleStartedListener(null);
+        emailTemplateWarmUp.shutdown();
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        // the same service is passed when its configuration is modified, hence the settings are compared to the copy
+        String postProcessing = mfaConfigurationService.isMfaEmailMinify() + "," + mfaConfigurationService.isMfaEmailTextAlternative();
+        if (emailPostProcessing != null && !emailPostProcessing.equals(postProcessing)) {
+            // the cached emails were post-processed with the previous settings
+            emailTemplateCache.invalidateAll();
+        }
+        emailPostProcessing = postProcessing;
+        if (emailTemplateWarmUp != null) {
+            emailTemplateWarmUp.setThreads(mfaConfigurationService.getMfaEmailTemplateWarmUpThreads());
+        }
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
     }
 
     @Reference
@@ -83,6 +123,26 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
         this.sitesService = sitesService;
     }
 
+    @Reference
+    public void setEmailCodeDispatcher(EmailCodeDispatcher emailCodeDispatcher) {
+        this.emailCodeDispatcher = emailCodeDispatcher;
+    }
+
+    @Reference
+    public void setEmailOutbox(EmailOutbox emailOutbox) {
+        this.emailOutbox = emailOutbox;
+    }
+
+    @Reference
+    public void setEmailCodeTransport(EmailCodeTransport emailCodeTransport) {
+        this.emailCodeTransport = emailCodeTransport;
+    }
+
+    @Reference
+    public void setEmailTemplateCache(EmailTemplateCache emailTemplateCache) {
+        this.emailTemplateCache = emailTemplateCache;
+    }
+
     @Override
     public String getFactorType() {
         return FACTOR_TYPE;
@@ -90,68 +150,34 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
 
     @Override
     public Serializable prepare(PreparationContext preparationContext) throws MfaException {
-        String userId = preparationContext.getSessionContext().getUserId();
-        JCRUserNode userNode = userManagerService.lookupUser(userId);
-        if (userNode == null) {
-            throw new IllegalStateException("User " + userId + " not found");
-        }
-        String emailAddress = getUserEmailAddress(userNode);
-
-        // Generate verification code
         MfaSessionContext sessionContext = preparationContext.getSessionContext();
-        String code = generateEmailCode();
-        String mailContent = generateMailContent(sessionContext, preparationContext.getHttpServletRequest(), preparationContext.getHttpServletResponse(), code);
-        String mailSubject = Messages.get(resourceBundleName, "jahia-upa.mfa.mail.title", sessionContext.getUserPreferredLanguage());
+        // the user is resolved by the MFA service (from its user profile cache), only look it up when not provided
+        MfaUserDetails user = preparationContext.getUser() != null ? preparationContext.getUser() : lookupUser(sessionContext);
+        String emailAddress = getUserEmailAddress(user);
 
-        MailService mailService = ServicesRegistry.getInstance().getMailService();
-        if (mailService.sendHtmlMessage(null, emailAddress, null, null, mailSubject, mailContent)) {
-            logger.info("Validation code sent to user {} (email: {})", userNode.getName(), emailAddress);
-        } else {
-            throw new MfaException(ERROR_SENDING_VALIDATION_FAILED, "user", userNode.getName());
+        // Generate verification code
+        String code = codeGenerator.generate();
+        EmailTemplateCache.RenderedEmail renderedEmail = getRenderedEmail(sessionContext, preparationContext.getHttpServletRequest(), preparationContext.getHttpServletResponse());
+        String mailContent = renderedEmail.getContent(code);
+        String mailSubject = renderedEmail.getSubject();
+        String mailText = renderedEmail.getText(code);
+
+        // the content is rendered on the request thread (it needs the request), only the sending may be deferred
+        MfaFactorState factorState = preparationContext.getFactorState();
+        if (factorState != null) {
+            factorState.setDeliveryStatus(MfaDeliveryStatus.PENDING);
         }
-        String maskedEmail = getMaskedEmail(emailAddress);
-        return new PreparationResult(code, maskedEmail);
-    }
-
-    /**
-     * Masks an email address for privacy while keeping it recognizable.
-     * <p>
-     * Examples:
-     * <ul>
-     *   <li>john.doe@example.com → j***e@example.com</li>
-     *   <li>ab@example.com → a***@example.com</li>
-     *   <li>a@example.com → a***@example.com</li>
-     * </ul>
-     *
-     * @param emailAddress the email address to mask
-     * @return the masked email address, or "***" if the email is invalid
-     */
-    private static String getMaskedEmail(String emailAddress) {
-        // Validate email contains "@"
-        if (StringUtils.isEmpty(emailAddress) || !emailAddress.contains("@")) {
-            logger.warn("Invalid email address format, cannot mask: {}", emailAddress);
-            return "***";
+        if (emailOutbox.enqueue(user.getName(), emailAddress, mailSubject, mailContent, mailText, factorState)) {
+            return new PreparationResult(code, user.getMaskedEmail());
         }
-
-        String localPart = StringUtils.substringBefore(emailAddress, "@");
-        String domain = StringUtils.substringAfter(emailAddress, "@");
-
-        // Additional validation
-        if (StringUtils.isEmpty(localPart) || StringUtils.isEmpty(domain)) {
-            logger.warn("Invalid email address format (empty local part or domain), cannot mask: {}", emailAddress);
-            return "***";
+        // without the factor state, the failures of the asynchronous sending could not be reported
+        if (factorState != null && emailCodeDispatcher.dispatch(() -> sendEmail(user, emailAddress, mailSubject, mailContent, mailText, factorState))) {
+            return new PreparationResult(code, user.getMaskedEmail());
         }
-
-        String maskedEmail;
-
-        if (localPart.length() <= 2) {
-            // For very short local parts, just show first char + asterisks
-            maskedEmail = localPart.charAt(0) + "***@" + domain;
-        } else {
-            // Show first and last char with asterisks in between
-            maskedEmail = localPart.charAt(0) + "***" + localPart.charAt(localPart.length() - 1) + "@" + domain;
+        if (!sendEmail(user, emailAddress, mailSubject, mailContent, mailText, factorState)) {
+            throw new MfaException(ERROR_SENDING_VALIDATION_FAILED, "user", user.getName());
         }
-        return maskedEmail;
+        return new PreparationResult(code, user.getMaskedEmail());
     }
 
     @Override
@@ -168,28 +194,95 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
         return StringUtils.equals(submittedCode, storedCode);
     }
 
-    private static String generateEmailCode() {
-        StringBuilder code = new StringBuilder();
-        for (int i = 0; i < EMAIL_CODE_LENGTH; i++) {
-            code.append(random.nextInt(10));
+    private boolean sendEmail(MfaUserDetails user, String emailAddress, String mailSubject, String mailContent, String mailText, MfaFactorState factorState) {
+        boolean sent;
+        try {
+            sent = emailCodeTransport.send(emailAddress, mailSubject, mailContent, mailText);
+        } catch (RuntimeException e) {
+            // would otherwise be lost when sent in the background
+            logger.error("Error while sending the validation code to user {}", user.getName(), e);
+            sent = false;
+        }
+        if (sent) {
+            logger.info("Validation code sent to user {} (email: {})", user.getName(), emailAddress);
+        } else {
+            logger.warn("Unable to send the validation code to user {} (email: {})", user.getName(), emailAddress);
+        }
+        if (factorState != null) {
+            factorState.setDeliveryStatus(sent ? MfaDeliveryStatus.SENT : MfaDeliveryStatus.FAILED);
+        }
+        return sent;
+    }
+
+    private void onModuleStarted(String moduleId) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration != null && configuration.isMfaEmailTemplateWarmUp()) {
+            // the cache was just cleared, warm up again the sites using the module (e.g. as their template set)
+            emailTemplateWarmUp.start(moduleId);
         }
-        return code.toString();
     }
 
-    private static String getUserEmailAddress(JCRUserNode user) throws MfaException {
+    private MfaUserDetails lookupUser(MfaSessionContext sessionContext) throws MfaException {
+        String userId = sessionContext.getUserId();
+        JCRUserNode userNode = sessionContext.getUserPath() != null ? userManagerService.lookupUserByPath(sessionContext.getUserPath())
+                : userManagerService.lookupUser(userId);
+        if (userNode == null) {
+            throw new IllegalStateException("User " + userId + " not found");
+        }
         String email;
         try {
-            email = user.hasProperty("j:email") ? user.getProperty("j:email").getString() : null;
+            email = userNode.hasProperty("j:email") ? userNode.getProperty("j:email").getString() : null;
         } catch (RepositoryException e) {
-            throw new MfaException(ERROR_PREPARATION_FAILED, "user", user.getName());
+            throw new MfaException(ERROR_PREPARATION_FAILED, "user", userNode.getName());
         }
+        return new MfaUserDetails(userNode.getPath(), userNode.getName(), email, sessionContext.getUserPreferredLanguage(), MfaSuspensionStore.NOT_SUSPENDED);
+    }
+
+    private static String getUserEmailAddress(MfaUserDetails user) throws MfaException {
+        String email = user.getEmail();
         if (email == null || email.trim().isEmpty()) {
             throw new MfaException(ERROR_EMAIL_NOT_CONFIGURED, "user", user.getName()); // TODO should we skip MFA in this case?
         }
         return email;
     }
 
-    private String generateMailContent(MfaSessionContext sessionContext, HttpServletRequest currentRequest, HttpServletResponse currentResponse, String code) throws MfaException {
+    private EmailTemplateCache.RenderedEmail getRenderedEmail(MfaSessionContext sessionContext, HttpServletRequest currentRequest, HttpServletResponse currentResponse) throws MfaException {
+        String siteKey = sessionContext.getSiteKey();
+        Locale language = sessionContext.getUserPreferredLanguage();
+        String serverUrl = EmailTemplateCache.getServerUrl(currentRequest);
+        EmailTemplateCache.RenderedEmail renderedEmail = emailTemplateCache.get(siteKey, language, serverUrl);
+        if (renderedEmail == null) {
+            // rendered with the placeholder, the code being inserted for each email
+            String mailContent = generateMailContent(sessionContext, currentRequest, currentResponse);
+            String mailSubject = Messages.get(resourceBundleName, "jahia-upa.mfa.mail.title", language);
+            MfaConfigurationService configuration = mfaConfigurationService;
+            if (configuration != null && configuration.isMfaEmailMinify()) {
+                mailContent = minifyMailContent(mailContent, siteKey, language);
+            }
+            String mailText = null;
+            if (configuration != null && configuration.isMfaEmailTextAlternative()) {
+                mailText = EmailMinifier.toText(mailContent);
+                logger.debug("MFA email text alternative of site {} in {}: {} bytes", siteKey, language, mailText.getBytes(StandardCharsets.UTF_8).length);
+            }
+            renderedEmail = new EmailTemplateCache.RenderedEmail(mailSubject, mailContent, mailText);
+            emailTemplateCache.put(siteKey, language, serverUrl, renderedEmail);
+        }
+        return renderedEmail;
+    }
+
+    private static String minifyMailContent(String mailContent, String siteKey, Locale language) {
+        String minified = EmailMinifier.minify(mailContent);
+        if (!minified.contains(EmailTemplateCache.CODE_PLACEHOLDER)) {
+            // should not happen, the placeholder being plain text
+            logger.warn("The minified MFA email of site {} in {} lost its code placeholder, using the original one", siteKey, language);
+            return mailContent;
+        }
+        logger.debug("MFA email of site {} in {} minified from {} to {} bytes", siteKey, language,
+                mailContent.getBytes(StandardCharsets.UTF_8).length, minified.getBytes(StandardCharsets.UTF_8).length);
+        return minified;
+    }
+
+    private String generateMailContent(MfaSessionContext sessionContext, HttpServletRequest currentRequest, HttpServletResponse currentResponse) throws MfaException {
         // will be "guest" at this stage, and it's sounds logical to render the email code as guest user, for caching purpose.
         JahiaUser user = JCRSessionFactory.getInstance().getCurrentUser();
         try {
@@ -224,13 +317,13 @@ public class EmailCodeFactorProvider implements MfaFactorProvider {
 
                 try {
                     String out = renderService.render(resource, localRenderContext);
-                    if (StringUtils.isEmpty(out) || !out.contains("{{CODE}}")) {
+                    if (StringUtils.isEmpty(out) || !out.contains(EmailTemplateCache.CODE_PLACEHOLDER)) {
                         // No output, no code placeholder, something went wrong with the rendering
                         throw new RenderException("Failed to render mail content for MFA email code, please check your template");
                     }
 
-                    // Replace the {{CODE}} placeholder with the actual code, we do that after rendering to allow caching of the rendered content.
-                    return out.replace("{{CODE}}", code);
+                    // The {{CODE}} placeholder is replaced with the actual code after rendering, to allow caching of the rendered content.
+                    return out;
                 } catch (RenderException e) {
                     throw new RepositoryException(e);
                 }
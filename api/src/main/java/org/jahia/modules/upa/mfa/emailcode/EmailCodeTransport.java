@@ -0,0 +1,152 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.registries.ServicesRegistry;
+import org.jahia.services.mail.MailService;
+import org.jahia.services.mail.MailSettings;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import java.net.URISyntaxException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the emails of the {@link EmailCodeFactorProvider}, either through the Jahia {@link MailService} (the default),
+ * or through a {@link SmtpConnectionPool} when {@link MfaConfigurationService#getMfaSmtpPoolSize()} is set.
+ * <p>
+ * The mail service opens a new SMTP connection for each email, with the TLS handshake and the authentication, which
+ * takes longer than sending the email itself. The pooled connections are authenticated once and reused for the next
+ * emails, with the server settings of the mail service (same URI and sender), so that they follow its changes:
+ * <ul>
+ *     <li>the connections idle for more than {@link MfaConfigurationService#getMfaSmtpPoolIdleSeconds()} are closed, by
+ *     a background evictor as well as when borrowed</li>
+ *     <li>a connection idle for more than {@value #HEALTH_CHECK_AFTER_MILLIS} ms is checked (with a {@code NOOP}) before
+ *     being reused</li>
+ *     <li>when all the connections are in use, the email is sent through the mail service right away</li>
+ * </ul>
+ */
+@Component(service = EmailCodeTransport.class, immediate = true)
+public class EmailCodeTransport {
+    private static final Logger logger = LoggerFactory.getLogger(EmailCodeTransport.class);
+    private static final long HEALTH_CHECK_AFTER_MILLIS = 5000;
+    private static final long EVICTION_INTERVAL_SECONDS = 10;
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private ScheduledExecutorService evictor;
+    private volatile SmtpConnectionPool pool;
+    /**
+     * The settings the current pool was created for, or the invalid ones last seen, written after the pool.
+     */
+    private volatile String poolKey;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Activate
+    protected void activate() {
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upa-smtp-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        evictor.shutdownNow();
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Sends an HTML email from the default sender of the mail service.
+     *
+     * @param to      the email address of the recipient
+     * @param subject the subject of the email
+     * @param content the HTML content of the email
+     * @param text    the plain text alternative of the content (may be null)
+     * @return true if the email was sent, false otherwise
+     */
+    public boolean send(String to, String subject, String content, String text) {
+        MailService mailService = ServicesRegistry.getInstance().getMailService();
+        SmtpConnectionPool currentPool = mailService.isEnabled() ? getPool(mailService.getSettings()) : null;
+        if (currentPool == null || !currentPool.tryAcquire()) {
+            return text != null ? mailService.sendMultipartMessage(null, to, null, null, subject, text, content)
+                    : mailService.sendHtmlMessage(null, to, null, null, subject, content);
+        }
+        try {
+            return currentPool.send(to, subject, content, text);
+        } finally {
+            currentPool.release();
+        }
+    }
+
+    /**
+     * Returns the pool for the current settings, creating it if they changed, or null if the pool is disabled.
+     */
+    private SmtpConnectionPool getPool(MailSettings settings) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        int poolSize = configuration != null ? configuration.getMfaSmtpPoolSize() : 0;
+        String key = poolSize > 0 ? poolSize + "\n" + settings.getFrom() + "\n" + settings.getUri() : null;
+        if (Objects.equals(key, poolKey)) {
+            // the pool of these settings, or the one replacing it (the key being written last)
+            return pool;
+        }
+        synchronized (this) {
+            if (!Objects.equals(key, poolKey)) {
+                if (pool != null) {
+                    pool.shutdown();
+                    pool = null;
+                }
+                if (key != null) {
+                    try {
+                        pool = new SmtpConnectionPool(settings.getUri(), settings.getFrom(), poolSize, HEALTH_CHECK_AFTER_MILLIS,
+                                this::getIdleTimeoutMillis, Session::getInstance);
+                        logger.info("MFA emails are sent through a pool of {} SMTP connection(s) to {}", poolSize, pool.getHost());
+                    } catch (URISyntaxException | MessagingException e) {
+                        // logged once per settings change
+                        logger.warn("Unable to use the mail server settings for the SMTP connection pool, the mail service is used instead", e);
+                    }
+                }
+                poolKey = key;
+            }
+            return pool;
+        }
+    }
+
+    private void evictIdleConnections() {
+        SmtpConnectionPool currentPool = pool;
+        if (currentPool != null) {
+            try {
+                currentPool.evictIdleConnections();
+            } catch (RuntimeException e) {
+                // never let an exception cancel the scheduled eviction
+                logger.error("Unexpected error while evicting the idle SMTP connections", e);
+            }
+        }
+    }
+
+    private long getIdleTimeoutMillis() {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        return configuration != null ? configuration.getMfaSmtpPoolIdleSeconds() * 1000L : 0;
+    }
+}
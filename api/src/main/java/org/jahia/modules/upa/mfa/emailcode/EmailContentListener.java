@@ -0,0 +1,56 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.jahia.api.Constants;
+import org.jahia.services.content.DefaultEventListener;
+import org.jahia.services.content.ExternalEventListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * JCR listener dropping all the emails cached by the {@link EmailTemplateCache} when the content of a module changes in
+ * the live workspace, the emails being rendered in live: the {@code mfaEmailCode} content node of this module once its
+ * edits are published, as well as the content of the other modules the email template may read (e.g. the template
+ * set of the sites overriding it).
+ * <p>
+ * Being an {@link ExternalEventListener}, it also receives the events of the other cluster nodes.
+ */
+@Component(service = DefaultEventListener.class, immediate = true)
+public class EmailContentListener extends DefaultEventListener implements ExternalEventListener {
+    private static final Logger logger = LoggerFactory.getLogger(EmailContentListener.class);
+    private static final String MODULES_PATH = "/modules";
+
+    private EmailTemplateCache emailTemplateCache;
+
+    public EmailContentListener() {
+        setWorkspace(Constants.LIVE_WORKSPACE);
+    }
+
+    @Reference
+    public void setEmailTemplateCache(EmailTemplateCache emailTemplateCache) {
+        this.emailTemplateCache = emailTemplateCache;
+    }
+
+    @Override
+    public int getEventTypes() {
+        return Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+    }
+
+    @Override
+    public String getPath() {
+        return MODULES_PATH;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+        // the events of a publication come together, invalidated once
+        if (events.hasNext()) {
+            logger.debug("Module content changed in live, invalidating the cached emails");
+            emailTemplateCache.invalidateAll();
+        }
+    }
+}
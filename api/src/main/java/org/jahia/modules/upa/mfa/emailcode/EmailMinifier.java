@@ -0,0 +1,204 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Size reduction of the rendered emails, conservative enough for the email clients:
+ * <ul>
+ *     <li>the comments are removed, except the conditional ones (used for Outlook), kept as is</li>
+ *     <li>the whitespace runs are collapsed to a single space, and removed around the block and table tags, except
+ *     in the {@code pre} and {@code textarea} elements</li>
+ *     <li>the {@code style} elements are stripped of their comments and superfluous whitespace</li>
+ *     <li>the exact duplicate declarations (same property and value) of the {@code style} attributes are removed,
+ *     keeping the last one, the declarations of the same property with different values being kept as fallbacks for
+ *     the clients not supporting the last value</li>
+ * </ul>
+ * The styles are not inlined from the {@code style} elements, as the templates are expected to use inline styles
+ * already (see the documentation of the custom email templates).
+ * <p>
+ * A plain text alternative can also be derived from the HTML content.
+ */
+final class EmailMinifier {
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile(
+            "(<!--\\[if[\\s\\S]*?<!\\[endif\\]-->)" +
+                    "|(<!--[\\s\\S]*?-->)" +
+                    "|(<(pre|textarea)\\b[\\s\\S]*?</\\4\\s*>)" +
+                    "|(<style\\b[^>]*>)([\\s\\S]*?)(</style\\s*>)",
+            Pattern.CASE_INSENSITIVE);
+    private static final String BLOCK_TAGS = "html|head|body|meta|title|link|style|table|thead|tbody|tfoot|tr|td|th|div|p|br|hr|ul|ol|li|center|h[1-6]";
+    private static final Pattern WHITESPACE_BEFORE_BLOCK_TAG = Pattern.compile("\\s+(</?(?:" + BLOCK_TAGS + ")\\b)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHITESPACE_AFTER_BLOCK_TAG = Pattern.compile("(</?(?:" + BLOCK_TAGS + ")\\b[^>]*>)\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern STYLE_ATTRIBUTE = Pattern.compile("(\\sstyle\\s*=\\s*)(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CSS_COMMENT = Pattern.compile("/\\*[\\s\\S]*?\\*/");
+    private static final Pattern CSS_PUNCTUATION_WHITESPACE = Pattern.compile("\\s*([{};,>])\\s*");
+
+    private static final Pattern TEXT_IGNORED_ELEMENTS = Pattern.compile("<(head|style|script|title)\\b[\\s\\S]*?</\\1\\s*>|<!--[\\s\\S]*?-->", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TEXT_LINK = Pattern.compile("<a\\b[^>]*?href\\s*=\\s*\"([^\"]*)\"[^>]*>([\\s\\S]*?)</a\\s*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TEXT_LINE_BREAK = Pattern.compile("<br\\b[^>]*>|</(?:p|div|tr|table|h[1-6]|li|center|pre)\\s*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TEXT_CELL = Pattern.compile("</t[dh]\\s*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TAG = Pattern.compile("<[^>]*>");
+    private static final Pattern HORIZONTAL_WHITESPACE = Pattern.compile("[ \\t\\x0B\\f\\r\\u00A0]+");
+    private static final Pattern BLANK_LINES = Pattern.compile("\\n\\s*\\n\\s*\\n+");
+
+    private EmailMinifier() {
+    }
+
+    /**
+     * Minifies the HTML content of an email.
+     *
+     * @param html the HTML content
+     * @return the minified HTML content
+     */
+    static String minify(String html) {
+        StringBuilder minified = new StringBuilder(html.length());
+        // the markup around the dropped comments, minified as a whole so that their surrounding whitespace is collapsed
+        StringBuilder markup = new StringBuilder();
+        Matcher matcher = SEGMENT_PATTERN.matcher(html);
+        int position = 0;
+        while (matcher.find()) {
+            markup.append(html, position, matcher.start());
+            position = matcher.end();
+            if (matcher.group(2) != null) {
+                // the other comments are dropped
+                continue;
+            }
+            minified.append(minifyMarkup(markup.toString()));
+            markup.setLength(0);
+            if (matcher.group(5) != null) {
+                minified.append(matcher.group(5)).append(minifyCss(matcher.group(6))).append(matcher.group(7));
+            } else {
+                // conditional comments and preformatted elements are kept as is
+                minified.append(matcher.group());
+            }
+        }
+        markup.append(html, position, html.length());
+        minified.append(minifyMarkup(markup.toString()));
+        return minified.toString().trim();
+    }
+
+    /**
+     * Derives a plain text alternative from the HTML content of an email.
+     *
+     * @param html the HTML content
+     * @return the text content
+     */
+    static String toText(String html) {
+        String text = TEXT_IGNORED_ELEMENTS.matcher(html).replaceAll("");
+        Matcher links = TEXT_LINK.matcher(text);
+        StringBuffer withLinks = new StringBuffer();
+        while (links.find()) {
+            String label = TAG.matcher(links.group(2)).replaceAll("").trim();
+            String href = links.group(1);
+            String replacement = label.isEmpty() || label.equals(href) || href.startsWith("#") ? label : label + " (" + href + ")";
+            links.appendReplacement(withLinks, Matcher.quoteReplacement(replacement));
+        }
+        links.appendTail(withLinks);
+        text = WHITESPACE.matcher(withLinks).replaceAll(" ");
+        text = TEXT_LINE_BREAK.matcher(text).replaceAll("\n");
+        text = TEXT_CELL.matcher(text).replaceAll(" ");
+        text = TAG.matcher(text).replaceAll("");
+        text = decodeEntities(text);
+        text = HORIZONTAL_WHITESPACE.matcher(text).replaceAll(" ");
+        StringBuilder lines = new StringBuilder(text.length());
+        for (String line : text.split("\n")) {
+            lines.append(line.trim()).append('\n');
+        }
+        return BLANK_LINES.matcher(lines).replaceAll("\n\n").trim();
+    }
+
+    private static String minifyMarkup(String markup) {
+        if (markup.trim().isEmpty()) {
+            // only found between the kept segments, e.g. around a conditional comment or a style element
+            return "";
+        }
+        String minified = WHITESPACE.matcher(markup).replaceAll(" ");
+        minified = WHITESPACE_BEFORE_BLOCK_TAG.matcher(minified).replaceAll("$1");
+        minified = WHITESPACE_AFTER_BLOCK_TAG.matcher(minified).replaceAll("$1");
+        Matcher styles = STYLE_ATTRIBUTE.matcher(minified);
+        StringBuffer deduplicated = new StringBuffer(minified.length());
+        while (styles.find()) {
+            boolean doubleQuoted = styles.group(2) != null;
+            String style = deduplicateDeclarations(doubleQuoted ? styles.group(2) : styles.group(3));
+            char quote = doubleQuoted ? '"' : '\'';
+            styles.appendReplacement(deduplicated, Matcher.quoteReplacement(styles.group(1) + quote + style + quote));
+        }
+        styles.appendTail(deduplicated);
+        return deduplicated.toString();
+    }
+
+    private static String minifyCss(String css) {
+        String minified = CSS_COMMENT.matcher(css).replaceAll("");
+        minified = WHITESPACE.matcher(minified).replaceAll(" ");
+        return CSS_PUNCTUATION_WHITESPACE.matcher(minified).replaceAll("$1").trim();
+    }
+
+    /**
+     * Removes the exact duplicate declarations of a style attribute, keeping the last one: an earlier identical
+     * declaration is always overridden by it, whereas the earlier declarations of the same property with other values
+     * (e.g. {@code background: #fff; background: linear-gradient(...)}) are the fallbacks of the clients ignoring the
+     * later ones.
+     */
+    private static String deduplicateDeclarations(String style) {
+        Set<String> declarations = new LinkedHashSet<>();
+        for (String declaration : splitDeclarations(style)) {
+            int separator = declaration.indexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            String normalized = declaration.substring(0, separator).trim().toLowerCase(Locale.ROOT) + ':' + declaration.substring(separator + 1).trim();
+            // re-inserted last, where the effective declaration is
+            declarations.remove(normalized);
+            declarations.add(normalized);
+        }
+        return String.join(";", declarations);
+    }
+
+    /**
+     * Splits the declarations of a style attribute, ignoring the semicolons in parentheses (e.g. data URLs) and in
+     * quotes.
+     */
+    private static String[] splitDeclarations(String style) {
+        List<String> declarations = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < style.length(); i++) {
+            char c = style.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == ';' && depth == 0) {
+                declarations.add(style.substring(start, i));
+                start = i + 1;
+            }
+        }
+        declarations.add(style.substring(start));
+        return declarations.toArray(new String[0]);
+    }
+
+    private static String decodeEntities(String text) {
+        return text.replace("&nbsp;", " ")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&#39;", "'")
+                .replace("&apos;", "'")
+                .replace("&copy;", "\u00A9")
+                // last, so that the escaped entities are not decoded twice
+                .replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,631 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.MfaDeliveryStatus;
+import org.jahia.modules.upa.mfa.MfaFactorState;
+import org.jahia.settings.SettingsBean;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbox of the emails of the {@link EmailCodeFactorProvider}, used when enabled
+ * ({@link MfaConfigurationService#isMfaEmailOutbox()}) so that the verification codes accepted for delivery are neither
+ * lost when the node restarts nor when the mail relay is down.
+ * <p>
+ * The emails are appended to a journal in the Jahia var directory before the preparation returns, and sent in the
+ * background by {@link MfaConfigurationService#getMfaEmailDispatchThreads()} senders. A failed sending is retried with an
+ * exponential backoff (up to {@link MfaConfigurationService#getMfaEmailOutboxMaxRetryDelaySeconds()}) until the email is
+ * older than {@link MfaConfigurationService#getMfaEmailOutboxMaxAgeSeconds()}, the user having given up by then. The
+ * journal is replayed on startup, and rewritten with the pending emails only once it grew over
+ * {@value #COMPACTION_THRESHOLD_BYTES} bytes (or twice its size after the previous compaction).
+ * <p>
+ * The appends are group-committed: the threads appending at the same time share a single {@code fsync}, the first one
+ * writing and forcing the records of all the others, so that a login burst does not pay one disk flush per email. The
+ * records marking the emails as sent are not forced, an email being sent twice at worst after a crash.
+ * <p>
+ * Each record is prefixed by its length and checksum, so that a record torn by a crash is detected and dropped, along
+ * with the end of the journal, on recovery.
+ * <p>
+ * The journal is only opened and the senders only started while the outbox is enabled: they are started or stopped
+ * when the setting changes, the emails still pending when the outbox is disabled being kept in the journal until it is
+ * enabled again.
+ */
+@Component(service = EmailOutbox.class, immediate = true)
+public class EmailOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(EmailOutbox.class);
+    private static final String JOURNAL_FILE_NAME = "mfa-email-outbox.journal";
+    private static final long COMPACTION_THRESHOLD_BYTES = 1024 * 1024;
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final byte ADDED = 1;
+    private static final byte COMPLETED = 2;
+
+    /**
+     * Emails not sent nor given up yet, by id.
+     */
+    private final Map<Long, Email> pending = new ConcurrentHashMap<>();
+    private final DelayQueue<Email> queue = new DelayQueue<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private EmailCodeTransport emailCodeTransport;
+    private Path journalPath;
+    private FileChannel journal;
+    private boolean closed;
+    private Batch currentBatch = new Batch();
+    private boolean committing;
+    private volatile long journalBytes;
+    private volatile long compactionTriggerBytes = COMPACTION_THRESHOLD_BYTES;
+    private ExecutorService senders;
+    private int senderCount;
+    private boolean activated;
+    private boolean running;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        if (!activated) {
+            return;
+        }
+        if (mfaConfigurationService.isMfaEmailOutbox() != running) {
+            if (running) {
+                stop();
+            } else {
+                start();
+            }
+        } else if (running && senderCount != getSenderCount()) {
+            // the emails being sent by the previous senders are requeued if interrupted
+            stopSenders();
+            startSenders();
+        }
+    }
+
+    public synchronized void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Reference
+    public void setEmailCodeTransport(EmailCodeTransport emailCodeTransport) {
+        this.emailCodeTransport = emailCodeTransport;
+    }
+
+    @Activate
+    protected synchronized void activate() {
+        journalPath = Paths.get(SettingsBean.getInstance().getJahiaVarDiskPath(), "upa", JOURNAL_FILE_NAME);
+        activated = true;
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration != null && configuration.isMfaEmailOutbox()) {
+            start();
+        }
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        activated = false;
+        if (running) {
+            stop();
+        }
+    }
+
+    /**
+     * Recovers the pending emails from the journal and starts the senders, must be called with the monitor held.
+     */
+    private void start() {
+        lock.lock();
+        try {
+            closed = false;
+        } finally {
+            lock.unlock();
+        }
+        // left by a previous run, and recovered from the journal again
+        pending.clear();
+        queue.clear();
+        if (Files.exists(journalPath)) {
+            try {
+                recover();
+            } catch (IOException e) {
+                logger.error("Unable to recover the MFA email outbox from {}", journalPath, e);
+            }
+        }
+        startSenders();
+        running = true;
+    }
+
+    /**
+     * Stops the senders and closes the journal, the pending emails being kept in it, must be called with the monitor
+     * held.
+     */
+    private void stop() {
+        running = false;
+        stopSenders();
+        lock.lock();
+        try {
+            // the completions not written yet would only cause duplicate emails, but they are cheap to keep
+            awaitCommitted();
+            closed = true;
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to close the MFA email outbox journal", e);
+        } finally {
+            lock.unlock();
+        }
+        if (!pending.isEmpty()) {
+            logger.info("{} MFA email(s) left in the outbox, to be sent once it is running again", pending.size());
+        }
+    }
+
+    /**
+     * Adds an email to the outbox, if it is enabled, the email being durably recorded when this method returns.
+     *
+     * @param username    the name of the user the email is sent to, for the logs
+     * @param to          the email address of the user
+     * @param subject     the subject of the email
+     * @param content     the HTML content of the email
+     * @param text        the plain text alternative of the content (may be null)
+     * @param factorState the state of the factor whose delivery status is to be updated (may be null)
+     * @return true if the email will be sent by the outbox, false if the outbox is disabled or the email could not be
+     * recorded, in which case it has to be sent by the caller
+     */
+    public boolean enqueue(String username, String to, String subject, String content, String text, MfaFactorState factorState) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null || !configuration.isMfaEmailOutbox()) {
+            return false;
+        }
+        Email email = new Email(nextId.getAndIncrement(), System.currentTimeMillis(), username, to, subject, content, text);
+        email.factorState = factorState;
+        // known before being appended, so that a concurrent compaction keeps it
+        pending.put(email.id, email);
+        try {
+            append(addedRecord(email), true);
+        } catch (IOException e) {
+            pending.remove(email.id);
+            logger.error("Unable to write the email of user {} to the MFA email outbox", username, e);
+            return false;
+        }
+        queue.add(email);
+        return true;
+    }
+
+    private void startSenders() {
+        senderCount = getSenderCount();
+        senders = Executors.newFixedThreadPool(senderCount, new ThreadFactory() {
+            private int threadNumber;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "upa-email-outbox-" + (++threadNumber));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < senderCount; i++) {
+            senders.execute(this::sendContinuously);
+        }
+    }
+
+    private void stopSenders() {
+        senders.shutdownNow();
+        try {
+            if (!senders.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("The MFA email outbox senders did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senders = null;
+    }
+
+    private int getSenderCount() {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        return configuration != null ? Math.max(1, configuration.getMfaEmailDispatchThreads()) : 1;
+    }
+
+    private void sendContinuously() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Email email;
+            try {
+                email = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                send(email);
+                compactIfNeeded();
+            } catch (RuntimeException e) {
+                // never let an exception stop the sender
+                logger.error("Unexpected error while sending an email of the MFA email outbox", e);
+            }
+        }
+    }
+
+    private void send(Email email) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null) {
+            reschedule(email, MIN_RETRY_DELAY_MILLIS);
+            return;
+        }
+        if (System.currentTimeMillis() - email.createdAt > configuration.getMfaEmailOutboxMaxAgeSeconds() * 1000L) {
+            logger.warn("Giving up sending the validation code to user {} after {} attempt(s)", email.username, email.attempts);
+            complete(email, MfaDeliveryStatus.FAILED);
+            return;
+        }
+        boolean sent;
+        try {
+            sent = emailCodeTransport.send(email.to, email.subject, email.content, email.text);
+        } catch (RuntimeException e) {
+            logger.error("Error while sending the validation code to user {}", email.username, e);
+            sent = false;
+        }
+        if (sent) {
+            logger.info("Validation code sent to user {} (email: {})", email.username, email.to);
+            complete(email, MfaDeliveryStatus.SENT);
+            return;
+        }
+        email.attempts++;
+        long delayMillis = Math.min(MIN_RETRY_DELAY_MILLIS << Math.min(email.attempts - 1, 20),
+                Math.max(MIN_RETRY_DELAY_MILLIS, configuration.getMfaEmailOutboxMaxRetryDelaySeconds() * 1000L));
+        // jitter, so that the emails failed together are not all retried at the same time
+        delayMillis += ThreadLocalRandom.current().nextLong(delayMillis / 4 + 1);
+        logger.warn("Unable to send the validation code to user {}, retrying in {} ms", email.username, delayMillis);
+        reschedule(email, delayMillis);
+    }
+
+    private void reschedule(Email email, long delayMillis) {
+        email.nextAttemptAt = System.currentTimeMillis() + delayMillis;
+        queue.add(email);
+    }
+
+    private void complete(Email email, MfaDeliveryStatus deliveryStatus) {
+        pending.remove(email.id);
+        if (email.factorState != null) {
+            email.factorState.setDeliveryStatus(deliveryStatus);
+        }
+        try {
+            append(completedRecord(email.id), false);
+        } catch (IOException e) {
+            // the email may be sent again after a restart
+            logger.warn("Unable to mark the email of user {} as sent in the MFA email outbox", email.username, e);
+        }
+    }
+
+    /**
+     * Appends a record to the journal, and waits for it to be written (and forced to the disk if requested) along with
+     * the records appended concurrently.
+     */
+    private void append(byte[] record, boolean force) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The MFA email outbox is closed");
+            }
+            Batch batch = currentBatch;
+            writeRecord(batch.records, record);
+            batch.force |= force;
+            while (!batch.done) {
+                if (committing) {
+                    committed.awaitUninterruptibly();
+                } else {
+                    // no commit in progress: this thread commits the batch for all the waiting ones
+                    commit();
+                }
+            }
+            if (batch.failure != null) {
+                throw batch.failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the current batch to the journal, must be called with the lock held and no commit in progress. The lock
+     * is released while writing, so that the next records are appended to the next batch in the meantime.
+     */
+    private void commit() {
+        Batch batch = currentBatch;
+        currentBatch = new Batch();
+        committing = true;
+        IOException failure = null;
+        long position = -1;
+        FileChannel channel = null;
+        try {
+            channel = openJournal();
+            lock.unlock();
+            try {
+                position = channel.position();
+                ByteBuffer buffer = ByteBuffer.wrap(batch.records.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (batch.force) {
+                    channel.force(false);
+                }
+            } finally {
+                lock.lock();
+            }
+            journalBytes += batch.records.size();
+        } catch (IOException e) {
+            failure = e;
+            if (position >= 0) {
+                truncate(channel, position);
+            }
+        } finally {
+            committing = false;
+            batch.done = true;
+            batch.failure = failure;
+            committed.signalAll();
+        }
+    }
+
+    /**
+     * Waits for the records appended so far to be written, must be called with the lock held.
+     */
+    private void awaitCommitted() {
+        while (committing || currentBatch.records.size() > 0) {
+            if (committing) {
+                committed.awaitUninterruptibly();
+            } else {
+                commit();
+            }
+        }
+    }
+
+    private static void truncate(FileChannel channel, long position) {
+        // a partly written batch would prevent the next records from being recovered
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            logger.error("Unable to roll back a failed write to the MFA email outbox journal", e);
+        }
+    }
+
+    /**
+     * Opens the journal if not already opened, must be called with the lock held.
+     */
+    private FileChannel openJournal() throws IOException {
+        if (journal == null) {
+            Files.createDirectories(journalPath.getParent());
+            journal = FileChannel.open(journalPath, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), getFileAttributes());
+            journalBytes = journal.size();
+        }
+        return journal;
+    }
+
+    private void compactIfNeeded() {
+        if (journalBytes < compactionTriggerBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (journalBytes >= compactionTriggerBytes && !closed) {
+                compact();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to compact the MFA email outbox journal", e);
+            // not retried before the journal grows further
+            compactionTriggerBytes = journalBytes + COMPACTION_THRESHOLD_BYTES;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding only the pending emails, must be called with the lock held.
+     */
+    private void compact() throws IOException {
+        // the appended records must not be written to the replaced journal
+        awaitCommitted();
+        Path compactedPath = journalPath.resolveSibling(JOURNAL_FILE_NAME + ".tmp");
+        Files.deleteIfExists(compactedPath);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Email email : pending.values()) {
+            writeRecord(records, addedRecord(email));
+        }
+        try (FileChannel channel = FileChannel.open(compactedPath, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), getFileAttributes())) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Files.move(compactedPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long previousBytes = journalBytes;
+        openJournal();
+        compactionTriggerBytes = Math.max(COMPACTION_THRESHOLD_BYTES, 2 * journalBytes);
+        logger.debug("MFA email outbox journal compacted from {} to {} bytes ({} pending email(s))", previousBytes, journalBytes, pending.size());
+    }
+
+    /**
+     * Reloads the pending emails from the journal, and compacts it.
+     */
+    private void recover() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        Map<Long, Email> recovered = new LinkedHashMap<>();
+        long maxId = 0;
+        int validLength = 0;
+        while (data.remaining() >= 2 * Integer.BYTES) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            data.get(record);
+            if (checksum(record) != checksum) {
+                break;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                maxId = Math.max(maxId, id);
+                if (type == ADDED) {
+                    long createdAt = in.readLong();
+                    String username = readString(in);
+                    String to = readString(in);
+                    String subject = readString(in);
+                    String content = readString(in);
+                    // the text alternative is optional, and missing from the records of the previous versions
+                    String text = in.available() > 0 && in.readBoolean() ? readString(in) : null;
+                    recovered.put(id, new Email(id, createdAt, username, to, subject, content, text));
+                } else {
+                    recovered.remove(id);
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            validLength = data.position();
+        }
+        if (validLength < data.capacity()) {
+            logger.warn("Ignoring the last {} byte(s) of the MFA email outbox journal, incompletely written", data.capacity() - validLength);
+        }
+        nextId.set(maxId + 1);
+        for (Email email : recovered.values()) {
+            pending.put(email.id, email);
+            queue.add(email);
+        }
+        if (!recovered.isEmpty()) {
+            logger.info("{} MFA email(s) recovered from the outbox", recovered.size());
+        }
+        lock.lock();
+        try {
+            compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static FileAttribute<?>[] getFileAttributes() {
+        // the journal holds verification codes, only readable by the owner when supported
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        return new FileAttribute<?>[0];
+    }
+
+    private static byte[] addedRecord(Email email) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + email.content.length() + (email.text != null ? email.text.length() : 0));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ADDED);
+            out.writeLong(email.id);
+            out.writeLong(email.createdAt);
+            writeString(out, email.username);
+            writeString(out, email.to);
+            writeString(out, email.subject);
+            writeString(out, email.content);
+            out.writeBoolean(email.text != null);
+            if (email.text != null) {
+                writeString(out, email.text);
+            }
+        } catch (IOException e) {
+            // not thrown when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] completedRecord(long id) {
+        return ByteBuffer.allocate(1 + Long.BYTES).put(COMPLETED).putLong(id).array();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, byte[] record) {
+        out.write(ByteBuffer.allocate(2 * Integer.BYTES).putInt(record.length).putInt(checksum(record)).array(), 0, 2 * Integer.BYTES);
+        out.write(record, 0, record.length);
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF is limited to 64 KB, which the email content may exceed
+        byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records written together to the journal.
+     */
+    private static class Batch {
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private boolean force;
+        private boolean done;
+        private IOException failure;
+    }
+
+    /**
+     * An email of the outbox, scheduled for its next sending attempt.
+     */
+    private static class Email implements Delayed {
+        private final long id;
+        private final long createdAt;
+        private final String username;
+        private final String to;
+        private final String subject;
+        private final String content;
+        private final String text;
+        /**
+         * Not recovered after a restart, the HTTP sessions being gone.
+         */
+        private volatile MfaFactorState factorState;
+        private volatile int attempts;
+        private volatile long nextAttemptAt;
+
+        private Email(long id, long createdAt, String username, String to, String subject, String content, String text) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.username = username;
+            this.to = to;
+            this.subject = subject;
+            this.content = content;
+            this.text = text;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextAttemptAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
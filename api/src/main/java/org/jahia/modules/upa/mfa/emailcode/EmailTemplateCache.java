@@ -0,0 +1,295 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jahia.modules.upa.mfa.impl.CacheStatistics;
+import org.jahia.osgi.BundleUtils;
+import org.jahia.settings.SettingsBean;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the emails rendered by the {@link EmailCodeFactorProvider}, so that the email template is not rendered for
+ * each verification code sent: the rendered email only differs by its code.
+ * <p>
+ * The rendered content is cached split around the {@value #CODE_PLACEHOLDER} placeholders, along with the subject, by
+ * site, language and server URL (scheme, server name and port, the links of the email being generated for the server
+ * of the request). The module version is part of the path of the rendered content, a new version getting a new
+ * provider, hence a new cache.
+ * <p>
+ * The cache is cleared when a module is started, stopped or updated (the email template being possibly overridden by
+ * the template set of the sites) or when the content of a module changes in live, e.g. the published edits of the
+ * email content node (see {@link EmailContentListener}), and the entries of a site are dropped when the site node
+ * changes (see {@link EmailTemplateListener}). The time-to-live ({@value #TIME_TO_LIVE_MINUTES} minutes) bounds how
+ * long the other changes may be ignored, e.g. of the content the email template reads outside of the modules.
+ * <p>
+ * The server URL of the last email cached for each site is kept in {@value #SERVER_URLS_FILE_NAME}, in the Jahia var
+ * directory, when the component is deactivated, so that the warm-up after a restart renders the emails for the server
+ * URL of the real requests (see {@link EmailTemplateWarmUp}).
+ * <p>
+ * The statistics of the cache are exposed through JMX, see {@link CacheStatistics}.
+ */
+@Component(service = EmailTemplateCache.class, immediate = true)
+public class EmailTemplateCache {
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplateCache.class);
+    static final String CODE_PLACEHOLDER = "{{CODE}}";
+    private static final long MAXIMUM_SIZE = 1000;
+    private static final long TIME_TO_LIVE_MINUTES = 60;
+    private static final char KEY_SEPARATOR = '\n';
+    private static final String SERVER_URLS_FILE_NAME = "mfa-email-server-urls.properties";
+
+    private final Cache<String, RenderedEmail> emailCache = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(TIME_TO_LIVE_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+    /**
+     * The server URL of the last email cached for each site, kept when the cache is cleared and across restarts so that
+     * the emails are warmed up for the server URL of the real requests.
+     */
+    private final Map<String, String> lastServerUrls = new ConcurrentHashMap<>();
+    private final BundleListener bundleListener = this::onBundleEvent;
+    private volatile Consumer<String> moduleStartedListener;
+    private BundleContext bundleContext;
+    private CacheStatistics statistics;
+    private Path serverUrlsPath;
+
+    @Activate
+    protected void activate(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+        serverUrlsPath = Paths.get(SettingsBean.getInstance().getJahiaVarDiskPath(), "upa", SERVER_URLS_FILE_NAME);
+        loadServerUrls(serverUrlsPath);
+        bundleContext.addBundleListener(bundleListener);
+        statistics = CacheStatistics.register("EmailTemplateCache", emailCache);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        bundleContext.removeBundleListener(bundleListener);
+        if (statistics != null) {
+            statistics.unregister();
+        }
+        invalidateAll();
+        saveServerUrls(serverUrlsPath);
+    }
+
+    /**
+     * Returns the cached email for a site, language and server.
+     *
+     * @param siteKey   the key of the site (may be null)
+     * @param language  the language of the email
+     * @param serverUrl the scheme, server name and port of the request the email is rendered for (see
+     *                  {@link #getServerUrl(HttpServletRequest)})
+     * @return the cached email, or {@code null} if not cached
+     */
+    public RenderedEmail get(String siteKey, Locale language, String serverUrl) {
+        return emailCache.getIfPresent(getKey(siteKey, language, serverUrl));
+    }
+
+    /**
+     * Caches the email rendered for a site, language and server.
+     *
+     * @param siteKey   the key of the site (may be null)
+     * @param language  the language of the email
+     * @param serverUrl the scheme, server name and port of the request the email is rendered for (see
+     *                  {@link #getServerUrl(HttpServletRequest)})
+     * @param email     the rendered email
+     */
+    public void put(String siteKey, Locale language, String serverUrl, RenderedEmail email) {
+        emailCache.put(getKey(siteKey, language, serverUrl), email);
+        lastServerUrls.put(siteKey != null ? siteKey : "", serverUrl);
+    }
+
+    /**
+     * Returns the server URL the last email of a site was cached for.
+     *
+     * @param siteKey the key of the site
+     * @return the scheme, server name and port of the last email cached for the site, or {@code null} if none was
+     * cached since the module started
+     */
+    public String getLastServerUrl(String siteKey) {
+        return lastServerUrls.get(siteKey);
+    }
+
+    /**
+     * Returns the server URL of a request, the emails rendered for the same site and language being only shared by the
+     * requests with the same scheme, server name and port (e.g. not between HTTP and HTTPS).
+     *
+     * @param request the request the email is rendered for
+     * @return the scheme, server name and port of the request
+     */
+    public static String getServerUrl(HttpServletRequest request) {
+        return request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort();
+    }
+
+    /**
+     * Sets the listener notified when a module is started, once the cache is cleared (e.g. to warm it up again).
+     *
+     * @param moduleStartedListener the listener, receiving the ID of the module, or {@code null} to remove it
+     */
+    public void setModuleStartedListener(Consumer<String> moduleStartedListener) {
+        this.moduleStartedListener = moduleStartedListener;
+    }
+
+    /**
+     * Drops the cached emails of a site.
+     *
+     * @param siteKey the key of the site
+     */
+    public void invalidateSite(String siteKey) {
+        logger.debug("Invalidating the cached emails of site {}", siteKey);
+        String prefix = siteKey + KEY_SEPARATOR;
+        emailCache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops all the cached emails.
+     */
+    public void invalidateAll() {
+        emailCache.invalidateAll();
+        emailCache.cleanUp();
+    }
+
+    /**
+     * Reads the server URLs saved by {@link #saveServerUrls(Path)}, if any.
+     *
+     * @param path the file holding the server URLs
+     */
+    void loadServerUrls(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Properties serverUrls = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            serverUrls.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Unable to read the server URLs of the MFA emails from {}, the emails are warmed up for the server name of the sites", path, e);
+            return;
+        }
+        for (String siteKey : serverUrls.stringPropertyNames()) {
+            lastServerUrls.putIfAbsent(siteKey, serverUrls.getProperty(siteKey));
+        }
+    }
+
+    /**
+     * Writes the server URL of the last email cached for each site, replacing the file atomically.
+     *
+     * @param path the file holding the server URLs
+     */
+    void saveServerUrls(Path path) {
+        if (lastServerUrls.isEmpty()) {
+            return;
+        }
+        Properties serverUrls = new Properties();
+        serverUrls.putAll(lastServerUrls);
+        Path temporaryPath = path.resolveSibling(SERVER_URLS_FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (Writer writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+                serverUrls.store(writer, "Server URL of the last MFA email rendered for each site, used by the warm-up");
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save the server URLs of the MFA emails to {}", path, e);
+        }
+    }
+
+    private void onBundleEvent(BundleEvent event) {
+        int type = event.getType();
+        if ((type == BundleEvent.STARTED || type == BundleEvent.STOPPED || type == BundleEvent.UPDATED)
+                && BundleUtils.isJahiaModuleBundle(event.getBundle())) {
+            logger.debug("Module {} changed, invalidating the cached emails", event.getBundle().getSymbolicName());
+            invalidateAll();
+            Consumer<String> listener = moduleStartedListener;
+            if (type == BundleEvent.STARTED && listener != null) {
+                listener.accept(BundleUtils.getModuleId(event.getBundle()));
+            }
+        }
+    }
+
+    private static String getKey(String siteKey, Locale language, String serverUrl) {
+        return (siteKey != null ? siteKey : "") + KEY_SEPARATOR + language + KEY_SEPARATOR + serverUrl;
+    }
+
+    /**
+     * An email rendered with a placeholder for the code.
+     */
+    public static final class RenderedEmail {
+        private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile(Pattern.quote(CODE_PLACEHOLDER));
+
+        private final String subject;
+        private final String[] contentParts;
+        private final int contentLength;
+        private final String[] textParts;
+        private final int textLength;
+
+        /**
+         * @param subject the subject of the email
+         * @param content the content of the email, with at least one {@value EmailTemplateCache#CODE_PLACEHOLDER} placeholder
+         * @param text    the plain text alternative of the content, with the same placeholders (may be null)
+         */
+        public RenderedEmail(String subject, String content, String text) {
+            this.subject = subject;
+            this.contentParts = PLACEHOLDER_PATTERN.split(content, -1);
+            this.contentLength = content.length();
+            this.textParts = text != null ? PLACEHOLDER_PATTERN.split(text, -1) : null;
+            this.textLength = text != null ? text.length() : 0;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        /**
+         * Builds the content of the email for a code.
+         *
+         * @param code the verification code
+         * @return the content of the email, with the placeholders replaced by the code
+         */
+        public String getContent(String code) {
+            return fill(contentParts, contentLength, code);
+        }
+
+        /**
+         * Builds the plain text alternative of the email for a code.
+         *
+         * @param code the verification code
+         * @return the text of the email, with the placeholders replaced by the code, or {@code null} if there is none
+         */
+        public String getText(String code) {
+            return textParts != null ? fill(textParts, textLength, code) : null;
+        }
+
+        private static String fill(String[] parts, int length, String code) {
+            StringBuilder filled = new StringBuilder(length + (parts.length - 1) * (code.length() - CODE_PLACEHOLDER.length()));
+            filled.append(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                filled.append(code).append(parts[i]);
+            }
+            return filled.toString();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.DefaultEventListener;
+import org.jahia.services.content.ExternalEventListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * JCR listener dropping the emails cached by the {@link EmailTemplateCache} for a site when the site node changes in
+ * the live workspace (e.g. its title, template set or installed modules), the emails being rendered in live.
+ * <p>
+ * Being an {@link ExternalEventListener}, it also receives the events of the other cluster nodes.
+ */
+@Component(service = DefaultEventListener.class, immediate = true)
+public class EmailTemplateListener extends DefaultEventListener implements ExternalEventListener {
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplateListener.class);
+    private static final String[] SITE_NODE_TYPES = {"jnt:virtualsite"};
+
+    private EmailTemplateCache emailTemplateCache;
+
+    public EmailTemplateListener() {
+        setWorkspace(Constants.LIVE_WORKSPACE);
+    }
+
+    @Reference
+    public void setEmailTemplateCache(EmailTemplateCache emailTemplateCache) {
+        this.emailTemplateCache = emailTemplateCache;
+    }
+
+    @Override
+    public int getEventTypes() {
+        return Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+    }
+
+    @Override
+    public String[] getNodeTypes() {
+        // for property events, the node type filter applies to the node holding the property
+        return SITE_NODE_TYPES;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            try {
+                // the site nodes are /sites/<site key>
+                String sitePath = StringUtils.substringBeforeLast(event.getPath(), "/");
+                emailTemplateCache.invalidateSite(StringUtils.substringAfterLast(sitePath, "/"));
+            } catch (RepositoryException e) {
+                logger.warn("Unable to read the path of the event {}", event, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.MfaException;
+import org.jahia.modules.upa.mfa.MfaSessionContext;
+import org.jahia.services.content.JCRSessionFactory;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.services.content.decorator.JCRSiteNode;
+import org.jahia.services.content.decorator.JCRUserNode;
+import org.jahia.services.sites.JahiaSitesService;
+import org.jahia.services.usermanager.JahiaUserManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm-up of the {@link EmailTemplateCache}: renders the email of the {@link EmailCodeFactorProvider} for each site and
+ * active language in the background, so that the first logins after a restart or a deployment do not pay for a cold
+ * rendering (including the warm-up of the JavaScript engine for the templates written in JavaScript).
+ * <p>
+ * The emails are rendered as guest, with a stub request (see {@link StubRequests}) for the server URL of the last email
+ * cached for each site (including before the last restart, see {@link EmailTemplateCache}), or for the server name of
+ * the site over HTTP when none was ever cached, by at most
+ * {@link MfaConfigurationService#getMfaEmailTemplateWarmUpThreads()} threads at once. The time taken by each rendering
+ * is logged in debug, and the total time once all of them are done.
+ * <p>
+ * The warm-up only starts once no module was started for {@value #DELAY_SECONDS} seconds, the cache being cleared each
+ * time a module is started: the modules started one after the other (e.g. on startup) trigger a single warm-up.
+ */
+final class EmailTemplateWarmUp {
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplateWarmUp.class);
+    private static final long DELAY_SECONDS = 10;
+
+    /**
+     * Renders the email for a session context, caching it.
+     */
+    interface Renderer {
+        EmailTemplateCache.RenderedEmail render(MfaSessionContext sessionContext, HttpServletRequest request, HttpServletResponse response) throws MfaException;
+    }
+
+    private final JahiaSitesService sitesService;
+    private final JahiaUserManagerService userManagerService;
+    private final EmailTemplateCache emailTemplateCache;
+    private final Renderer renderer;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    /**
+     * The modules started since the warm-up was scheduled, empty when all the sites are to be warmed up.
+     */
+    private Set<String> startedModules = new HashSet<>();
+    private boolean allSites;
+    private ScheduledFuture<?> scheduledWarmUp;
+
+    EmailTemplateWarmUp(JahiaSitesService sitesService, JahiaUserManagerService userManagerService, EmailTemplateCache emailTemplateCache,
+                        Renderer renderer, int threads) {
+        this.sitesService = sitesService;
+        this.userManagerService = userManagerService;
+        this.emailTemplateCache = emailTemplateCache;
+        this.renderer = renderer;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upa-email-warm-up-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        int poolSize = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "upa-email-warm-up-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the number of emails rendered at once.
+     *
+     * @param threads the number of threads
+     */
+    void setThreads(int threads) {
+        int poolSize = Math.max(1, threads);
+        if (poolSize > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(poolSize);
+            executor.setCorePoolSize(poolSize);
+        } else {
+            executor.setCorePoolSize(poolSize);
+            executor.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * Schedules the warm-up of the emails in the background, postponing the one already scheduled if any.
+     *
+     * @param moduleId the ID of the module whose deployment triggers the warm-up, to only warm up the sites using it, or
+     *                 {@code null} to warm up all the sites
+     */
+    synchronized void start(String moduleId) {
+        if (moduleId == null) {
+            allSites = true;
+        } else {
+            startedModules.add(moduleId);
+        }
+        if (scheduledWarmUp != null) {
+            scheduledWarmUp.cancel(false);
+        }
+        try {
+            scheduledWarmUp = scheduler.schedule(this::startScheduled, DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("MFA email templates warm-up not scheduled, shutting down");
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void startScheduled() {
+        Set<String> moduleIds;
+        synchronized (this) {
+            moduleIds = allSites ? null : startedModules;
+            startedModules = new HashSet<>();
+            allSites = false;
+            scheduledWarmUp = null;
+        }
+        try {
+            executor.execute(() -> warmUpSites(moduleIds));
+        } catch (RejectedExecutionException e) {
+            logger.debug("MFA email templates warm-up not started, shutting down");
+        }
+    }
+
+    private void warmUpSites(Set<String> moduleIds) {
+        List<Target> targets;
+        try {
+            targets = getTargets(moduleIds);
+        } catch (RepositoryException e) {
+            logger.warn("Unable to list the sites to warm up the MFA email templates for", e);
+            return;
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        logger.info("Warming up {} MFA email template(s){}...", targets.size(), moduleIds != null ? " after the deployment of " + String.join(", ", moduleIds) : "");
+        long start = System.nanoTime();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong slowestNanos = new AtomicLong();
+        List<CompletableFuture<Void>> renderings = new ArrayList<>(targets.size());
+        try {
+            for (Target target : targets) {
+                renderings.add(CompletableFuture.runAsync(() -> {
+                    long nanos = warmUp(target);
+                    if (nanos < 0) {
+                        failed.incrementAndGet();
+                    } else {
+                        slowestNanos.accumulateAndGet(nanos, Math::max);
+                    }
+                    logger.debug("MFA email template of site {} in {} warmed up in {} ms ({}/{})", target.siteKey, target.language,
+                            TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos)), completed.incrementAndGet(), targets.size());
+                }, executor));
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug("MFA email templates warm-up interrupted, shutting down");
+            return;
+        }
+        CompletableFuture.allOf(renderings.toArray(new CompletableFuture[0])).whenComplete((result, error) ->
+                logger.info("{} MFA email template(s) warmed up in {} ms (slowest: {} ms, failed: {})", targets.size() - failed.get(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.NANOSECONDS.toMillis(slowestNanos.get()), failed.get()));
+    }
+
+    private List<Target> getTargets(Set<String> moduleIds) throws RepositoryException {
+        return JCRTemplate.getInstance().doExecuteWithSystemSessionAsUser(null, Constants.LIVE_WORKSPACE, null, session -> {
+            List<Target> targets = new ArrayList<>();
+            for (JCRSiteNode site : sitesService.getSitesNodeList(session)) {
+                if (JahiaSitesService.SYSTEM_SITE_KEY.equals(site.getSiteKey())
+                        || (moduleIds != null && Collections.disjoint(site.getInstalledModules(), moduleIds))) {
+                    continue;
+                }
+                String serverUrl = emailTemplateCache.getLastServerUrl(site.getSiteKey());
+                if (serverUrl == null) {
+                    serverUrl = "http://" + site.getServerName() + ":80";
+                }
+                for (Locale language : site.getActiveLiveLanguagesAsLocales()) {
+                    targets.add(new Target(site.getSiteKey(), serverUrl, language));
+                }
+            }
+            return targets;
+        });
+    }
+
+    /**
+     * Renders the email of a site in a language.
+     *
+     * @return the time taken in nanoseconds, or -1 if the rendering failed
+     */
+    private long warmUp(Target target) {
+        JCRSessionFactory sessionFactory = JCRSessionFactory.getInstance();
+        JCRUserNode guest = userManagerService.lookupUser(JahiaUserManagerService.GUEST_USERNAME);
+        // rendered as guest, like for the logins
+        sessionFactory.setCurrentUser(guest != null ? guest.getJahiaUser() : null);
+        try {
+            long start = System.nanoTime();
+            MfaSessionContext sessionContext = new MfaSessionContext(JahiaUserManagerService.GUEST_USERNAME, target.language, target.siteKey, false, Collections.emptyList());
+            renderer.render(sessionContext, StubRequests.request(target.scheme, target.serverName, target.serverPort, target.language),
+                    StubRequests.response());
+            return System.nanoTime() - start;
+        } catch (MfaException | RuntimeException e) {
+            logger.warn("Unable to warm up the MFA email template of site {} in {}", target.siteKey, target.language, e);
+            return -1;
+        } finally {
+            sessionFactory.setCurrentUser(null);
+        }
+    }
+
+    private static final class Target {
+        private final String siteKey;
+        private final String scheme;
+        private final String serverName;
+        private final int serverPort;
+        private final Locale language;
+
+        /**
+         * @param serverUrl the scheme, server name and port, see {@link EmailTemplateCache#getServerUrl(HttpServletRequest)}
+         */
+        private Target(String siteKey, String serverUrl, Locale language) {
+            this.siteKey = siteKey;
+            int portSeparator = serverUrl.lastIndexOf(':');
+            this.scheme = StringUtils.substringBefore(serverUrl, "://");
+            this.serverName = serverUrl.substring(scheme.length() + 3, portSeparator);
+            this.serverPort = Integer.parseInt(serverUrl.substring(portSeparator + 1));
+            this.language = language;
+        }
+    }
+}
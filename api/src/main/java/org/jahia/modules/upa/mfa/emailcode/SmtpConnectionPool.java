@@ -0,0 +1,274 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * SMTP connections to a mail server, authenticated once and reused for the next emails, most recently used first.
+ * <p>
+ * The connections idle for more than the idle timeout are closed, when evicted as well as when borrowed. A connection
+ * idle for more than the health check delay is checked (with a {@code NOOP}) before being reused, and the sending is
+ * retried on another connection if a reused one fails anyway, unless the recipient was rejected, the connection being
+ * given back to the pool in that case.
+ */
+final class SmtpConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpConnectionPool.class);
+    private static final String DEFAULT_TIMEOUT_MILLIS = "10000";
+
+    private final Session session;
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final InternetAddress from;
+    private final Semaphore permits;
+    private final long healthCheckAfterMillis;
+    private final LongSupplier idleTimeoutMillis;
+    private final BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool for the mail server URI of the mail service:
+     * {@code [smtp|smtps]://[user[:password]@]host[:port][?options]}, the {@code mail.*} options being JavaMail
+     * properties.
+     *
+     * @param serverUri              the URI of the mail server
+     * @param from                   the address of the sender
+     * @param size                   the maximum number of connections
+     * @param healthCheckAfterMillis the idle duration after which a connection is checked before being reused
+     * @param idleTimeoutMillis      the idle duration after which a connection is closed, read when it is used
+     * @param sessionFactory         creates the mail session from the JavaMail properties
+     * @throws URISyntaxException if the URI is invalid or not an SMTP one
+     * @throws MessagingException if the sender address is invalid
+     */
+    SmtpConnectionPool(String serverUri, String from, int size, long healthCheckAfterMillis, LongSupplier idleTimeoutMillis,
+                       Function<Properties, Session> sessionFactory) throws URISyntaxException, MessagingException {
+        URI uri = new URI(serverUri.contains("://") ? serverUri : "smtp://" + serverUri);
+        protocol = uri.getScheme();
+        host = uri.getHost();
+        port = uri.getPort();
+        if (host == null || !("smtp".equals(protocol) || "smtps".equals(protocol))) {
+            throw new URISyntaxException(serverUri, "Unsupported mail server URI");
+        }
+        String user = null;
+        String pass = null;
+        if (uri.getUserInfo() != null) {
+            int separator = uri.getUserInfo().indexOf(':');
+            user = separator >= 0 ? uri.getUserInfo().substring(0, separator) : uri.getUserInfo();
+            pass = separator >= 0 ? uri.getUserInfo().substring(separator + 1) : null;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("mail." + protocol + ".connectiontimeout", DEFAULT_TIMEOUT_MILLIS);
+        properties.setProperty("mail." + protocol + ".timeout", DEFAULT_TIMEOUT_MILLIS);
+        if (uri.getRawQuery() != null) {
+            for (String option : uri.getRawQuery().split("&")) {
+                int separator = option.indexOf('=');
+                String name = decode(separator >= 0 ? option.substring(0, separator) : option);
+                String value = separator >= 0 ? decode(option.substring(separator + 1)) : "";
+                if ("username".equals(name)) {
+                    user = value;
+                } else if ("password".equals(name)) {
+                    pass = value;
+                } else if (name.startsWith("mail.")) {
+                    properties.setProperty(name, value);
+                }
+            }
+        }
+        if (user != null) {
+            properties.setProperty("mail." + protocol + ".auth", "true");
+        }
+        username = user;
+        password = pass;
+        this.from = new InternetAddress(from);
+        this.healthCheckAfterMillis = healthCheckAfterMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        session = sessionFactory.apply(properties);
+        permits = new Semaphore(size);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * Acquires a connection permit, without waiting: the emails are better sent through a new connection right away
+     * than after the ones already being sent.
+     *
+     * @return true if a permit was acquired, false if all the connections are in use
+     */
+    boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        logger.debug("All the SMTP connections are in use");
+        return false;
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Sends an email, must be called with a permit acquired.
+     *
+     * @param to      the email address of the recipient
+     * @param subject the subject of the email
+     * @param content the HTML content of the email
+     * @param text    the plain text alternative of the content (may be null)
+     * @return true if the email was sent, false otherwise
+     */
+    boolean send(String to, String subject, String content, String text) {
+        try {
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom(from);
+            message.setRecipients(MimeMessage.RecipientType.TO, InternetAddress.parse(to));
+            message.setSubject(subject, StandardCharsets.UTF_8.name());
+            if (text != null) {
+                MimeMultipart alternatives = new MimeMultipart("alternative");
+                // the preferred alternative comes last
+                MimeBodyPart textPart = new MimeBodyPart();
+                textPart.setText(text, StandardCharsets.UTF_8.name());
+                alternatives.addBodyPart(textPart);
+                MimeBodyPart htmlPart = new MimeBodyPart();
+                htmlPart.setContent(content, "text/html; charset=UTF-8");
+                alternatives.addBodyPart(htmlPart);
+                message.setContent(alternatives);
+            } else {
+                message.setContent(content, "text/html; charset=UTF-8");
+            }
+            message.setSentDate(new Date());
+            message.saveChanges();
+            while (true) {
+                PooledConnection connection = borrow();
+                try {
+                    connection.transport.sendMessage(message, message.getAllRecipients());
+                    connection.lastUsed = System.currentTimeMillis();
+                    giveBack(connection);
+                    return true;
+                } catch (SendFailedException e) {
+                    // rejected recipient, the connection being still usable unless the server closed it
+                    if (connection.transport.isConnected()) {
+                        connection.lastUsed = System.currentTimeMillis();
+                        giveBack(connection);
+                    } else {
+                        closeQuietly(connection);
+                    }
+                    throw e;
+                } catch (MessagingException e) {
+                    closeQuietly(connection);
+                    if (!connection.reused) {
+                        throw e;
+                    }
+                    // closed by the server in the meantime, retried on another connection
+                    logger.debug("Error while sending an email through a reused SMTP connection, retrying", e);
+                }
+            }
+        } catch (MessagingException e) {
+            logger.error("Error while sending an email through the SMTP connection pool", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connections idle for more than the idle timeout.
+     */
+    void evictIdleConnections() {
+        long timeoutMillis = idleTimeoutMillis.getAsLong();
+        long now = System.currentTimeMillis();
+        for (PooledConnection connection : idleConnections) {
+            // removed first, so that a connection being borrowed is not closed
+            if (now - connection.lastUsed > timeoutMillis && idleConnections.remove(connection)) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections, the ones in use being closed when given back.
+     */
+    void shutdown() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    int getIdleConnectionCount() {
+        return idleConnections.size();
+    }
+
+    private PooledConnection borrow() throws MessagingException {
+        long timeoutMillis = idleTimeoutMillis.getAsLong();
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            long idleMillis = System.currentTimeMillis() - connection.lastUsed;
+            if (idleMillis > timeoutMillis || (idleMillis > healthCheckAfterMillis && !connection.transport.isConnected())) {
+                closeQuietly(connection);
+                continue;
+            }
+            connection.reused = true;
+            return connection;
+        }
+        Transport transport = session.getTransport(protocol);
+        transport.connect(host, port, username, password);
+        return new PooledConnection(transport);
+    }
+
+    private void giveBack(PooledConnection connection) {
+        idleConnections.offerFirst(connection);
+        if (closed && idleConnections.remove(connection)) {
+            // the pool was shut down while the connection was in use
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(PooledConnection connection) {
+        try {
+            connection.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Error while closing an SMTP connection", e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class PooledConnection {
+        private final Transport transport;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private boolean reused;
+
+        private PooledConnection(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.jahia.bin.Jahia;
+import org.jahia.bin.Render;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal requests and responses, to render outside of an HTTP request (e.g. when warming up the
+ * {@link EmailTemplateCache}): a GET request of the render servlet for a server name and a locale, and a response whose
+ * output is discarded. The methods not relevant for the rendering return empty values.
+ * <p>
+ * The requests have the given scheme and port along with the server name, so that what is rendered for them is cached
+ * under the server URL of the real requests of that server (see {@link EmailTemplateCache#getServerUrl(HttpServletRequest)}).
+ */
+final class StubRequests {
+    private static final String CHARACTER_ENCODING = StandardCharsets.UTF_8.name();
+
+    private StubRequests() {
+    }
+
+    /**
+     * @param scheme     the scheme of the request ({@code http} or {@code https})
+     * @param serverName the server name of the request
+     * @param serverPort the port of the request
+     * @param locale     the locale of the request
+     */
+    static HttpServletRequest request(String scheme, String serverName, int serverPort, Locale locale) {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        String requestUri = Jahia.getContextPath() + Render.getRenderServletPath();
+        boolean defaultPort = serverPort == ("https".equals(scheme) ? 443 : 80);
+        return (HttpServletRequest) Proxy.newProxyInstance(StubRequests.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getAttribute":
+                    return attributes.get((String) args[0]);
+                case "setAttribute":
+                    if (args[1] != null) {
+                        attributes.put((String) args[0], args[1]);
+                    } else {
+                        attributes.remove((String) args[0]);
+                    }
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                case "getAttributeNames":
+                    return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+                case "getServerName":
+                    return serverName;
+                case "getServerPort":
+                    return serverPort;
+                case "getScheme":
+                    return scheme;
+                case "isSecure":
+                    return "https".equals(scheme);
+                case "getProtocol":
+                    return "HTTP/1.1";
+                case "getMethod":
+                    return "GET";
+                case "getContextPath":
+                    return Jahia.getContextPath();
+                case "getServletPath":
+                    return Render.getRenderServletPath();
+                case "getRequestURI":
+                    return requestUri;
+                case "getRequestURL":
+                    StringBuffer requestUrl = new StringBuffer(scheme).append("://").append(serverName);
+                    if (!defaultPort) {
+                        requestUrl.append(':').append(serverPort);
+                    }
+                    return requestUrl.append(requestUri);
+                case "getLocale":
+                    return locale;
+                case "getLocales":
+                    return Collections.enumeration(Collections.singletonList(locale));
+                case "getCharacterEncoding":
+                    return CHARACTER_ENCODING;
+                case "getParameterMap":
+                    return Collections.emptyMap();
+                default:
+                    return handleDefault(proxy, method, args, "stub request for " + serverName);
+            }
+        });
+    }
+
+    static HttpServletResponse response() {
+        PrintWriter writer = new PrintWriter(new StringWriter());
+        ServletOutputStream outputStream = new DiscardingOutputStream();
+        return (HttpServletResponse) Proxy.newProxyInstance(StubRequests.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getWriter":
+                    return writer;
+                case "getOutputStream":
+                    return outputStream;
+                case "encodeURL":
+                case "encodeUrl":
+                case "encodeRedirectURL":
+                case "encodeRedirectUrl":
+                    return args[0];
+                case "getCharacterEncoding":
+                    return CHARACTER_ENCODING;
+                case "getContentType":
+                    return "text/html;charset=" + CHARACTER_ENCODING;
+                case "getStatus":
+                    return HttpServletResponse.SC_OK;
+                default:
+                    return handleDefault(proxy, method, args, "stub response");
+            }
+        });
+    }
+
+    private static Object handleDefault(Object proxy, Method method, Object[] args, String description) {
+        switch (method.getName()) {
+            case "toString":
+                return description;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return emptyValue(method.getReturnType());
+        }
+    }
+
+    private static Object emptyValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == Enumeration.class) {
+            return Collections.emptyEnumeration();
+        } else if (type == Collection.class) {
+            return Collections.emptyList();
+        }
+        return null;
+    }
+
+    private static class DiscardingOutputStream extends ServletOutputStream {
+        @Override
+        public void write(int b) {
+            // discarded
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discarded
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            // always ready
+        }
+    }
+}
@@ -31,10 +31,11 @@ public class EmailCodeFactorMutation {
     @GraphQLField
     @GraphQLName("prepare")
     @GraphQLDescription("Prepare the email code factor (generates and sends a code)")
-    public EmailCodeFactorPreparation prepare(DataFetchingEnvironment environment) {
+    public EmailCodeFactorPreparation prepare(@GraphQLName("idempotencyKey") @GraphQLDescription("Optional key identifying the preparation, so that its retries return the same result without preparing the factor again") String idempotencyKey,
+                                              DataFetchingEnvironment environment) {
         HttpServletRequest httpServletRequest = ContextUtil.getHttpServletRequest(environment.getGraphQlContext());
         HttpServletResponse httpServletResponse = ContextUtil.getHttpServletResponse(environment.getGraphQlContext());
-        MfaSession session = mfaService.prepareFactor(FACTOR_TYPE, httpServletRequest, httpServletResponse);
+        MfaSession session = mfaService.prepareFactor(FACTOR_TYPE, idempotencyKey, httpServletRequest, httpServletResponse);
 
         EmailCodeFactorProvider.PreparationResult preparationResult = (EmailCodeFactorProvider.PreparationResult) session.getOrCreateFactorState(FACTOR_TYPE).getPreparationResult();
         return new EmailCodeFactorPreparation(session, preparationResult);
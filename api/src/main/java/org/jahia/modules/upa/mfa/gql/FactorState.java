@@ -26,6 +26,7 @@ package org.jahia.modules.upa.mfa.gql;
 import graphql.annotations.annotationTypes.GraphQLDescription;
 import graphql.annotations.annotationTypes.GraphQLField;
 import graphql.annotations.annotationTypes.GraphQLName;
+import org.jahia.modules.upa.mfa.MfaDeliveryStatus;
 import org.jahia.modules.upa.mfa.MfaFactorState;
 
 @GraphQLName("MfaFactorState")
@@ -57,4 +58,12 @@ public class FactorState {
     public Error getError() {
         return state.hasError() ? new Error(state.getError()) : null;
     }
+
+    @GraphQLField
+    @GraphQLName("deliveryStatus")
+    @GraphQLDescription("Delivery status of what the factor sent when prepared (PENDING, SENT or FAILED), null if not tracked by the factor. Can be polled when the delivery is asynchronous.")
+    public String getDeliveryStatus() {
+        MfaDeliveryStatus deliveryStatus = state.getDeliveryStatus();
+        return deliveryStatus != null ? deliveryStatus.name() : null;
+    }
 }
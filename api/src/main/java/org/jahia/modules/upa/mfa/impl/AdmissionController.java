@@ -0,0 +1,179 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bulkhead limiting the number of MFA operations running concurrently, so that login storms (and the password hashing
+ * of the initiations in particular) cannot saturate all the cores of the node.
+ * <p>
+ * The operations over the configured concurrency wait in a bounded queue, up to a deadline, and are rejected (shed)
+ * when the queue is full or the deadline is reached. The queue is priority-aware: the operations completing an MFA flow
+ * already in progress ({@link Priority#HIGH}, i.e. the verifications) are admitted before the new initiations
+ * ({@link Priority#LOW}), and take the place of the most recent queued initiation when the queue is full.
+ * <p>
+ * The limits are read from {@link MfaConfigurationService} on each admission, so that they can be changed at runtime.
+ */
+@Component(service = AdmissionController.class, immediate = true)
+public class AdmissionController {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    /**
+     * The priority of an operation.
+     */
+    public enum Priority {
+        /**
+         * Operations completing an MFA flow already in progress.
+         */
+        HIGH,
+        /**
+         * Operations starting a new MFA flow.
+         */
+        LOW
+    }
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Waiter> highPriorityWaiters = new ArrayDeque<>();
+    private final Deque<Waiter> lowPriorityWaiters = new ArrayDeque<>();
+    private int running;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        lock.lock();
+        try {
+            // the concurrency limit may have been raised
+            admitWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    /**
+     * Waits for the permission to run an operation, {@link #release()} having to be called once the operation is done
+     * if it is granted.
+     *
+     * @param priority the priority of the operation
+     * @return true if the operation can run, false if it is rejected (the node being too busy)
+     */
+    public boolean acquire(Priority priority) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        int maxQueued = configuration != null ? configuration.getMfaMaxQueuedOperations() : 0;
+        long timeoutNanos = configuration != null ? TimeUnit.MILLISECONDS.toNanos(configuration.getMfaQueuedOperationTimeoutMillis()) : 0;
+        Waiter waiter = null;
+        lock.lock();
+        try {
+            if (running < getMaxConcurrentOperations() && highPriorityWaiters.isEmpty()
+                    && (priority == Priority.HIGH || lowPriorityWaiters.isEmpty())) {
+                running++;
+                return true;
+            }
+            if (highPriorityWaiters.size() + lowPriorityWaiters.size() >= maxQueued) {
+                if (priority == Priority.LOW || lowPriorityWaiters.isEmpty()) {
+                    logger.debug("Too many MFA operations queued, {} priority operation rejected", priority);
+                    return false;
+                }
+                // the most recent initiation leaves its place to the verification
+                Waiter shed = lowPriorityWaiters.removeLast();
+                shed.shed = true;
+                shed.condition.signal();
+                logger.debug("Too many MFA operations queued, low priority operation shed");
+            }
+            waiter = new Waiter(lock.newCondition());
+            (priority == Priority.HIGH ? highPriorityWaiters : lowPriorityWaiters).addLast(waiter);
+            long remainingNanos = timeoutNanos;
+            while (!waiter.admitted && !waiter.shed && remainingNanos > 0) {
+                remainingNanos = waiter.condition.awaitNanos(remainingNanos);
+            }
+            if (!waiter.admitted) {
+                highPriorityWaiters.remove(waiter);
+                lowPriorityWaiters.remove(waiter);
+                logger.debug("{} priority MFA operation rejected after waiting in the queue", priority);
+            }
+            return waiter.admitted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.admitted) {
+                // admitted meanwhile, but not going to run
+                running--;
+                admitWaiters();
+            } else {
+                highPriorityWaiters.remove(waiter);
+                lowPriorityWaiters.remove(waiter);
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the permission granted by {@link #acquire(Priority)}, admitting the next queued operation if any.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            running--;
+            admitWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits the queued operations (the high priority ones first) while below the concurrency limit, must be called
+     * with the lock held.
+     */
+    private void admitWaiters() {
+        int maxConcurrent = getMaxConcurrentOperations();
+        while (running < maxConcurrent) {
+            Waiter waiter = highPriorityWaiters.pollFirst();
+            if (waiter == null) {
+                waiter = lowPriorityWaiters.pollFirst();
+            }
+            if (waiter == null) {
+                return;
+            }
+            waiter.admitted = true;
+            running++;
+            waiter.condition.signal();
+        }
+    }
+
+    private int getMaxConcurrentOperations() {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        int maxConcurrent = configuration != null ? configuration.getMfaMaxConcurrentOperations() : 0;
+        // 0 by default, i.e. as many as there are cores
+        return maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * An operation waiting in the queue, admitted or shed by the other threads (with the lock held).
+     */
+    private static class Waiter {
+        private final Condition condition;
+        private boolean admitted;
+        private boolean shed;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * ==========================================================================================
+ * =                            JAHIA'S ENTERPRISE DISTRIBUTION                             =
+ * ==========================================================================================
+ *
+ *                                  http://www.jahia.com
+ *
+ * JAHIA'S ENTERPRISE DISTRIBUTIONS LICENSING - IMPORTANT INFORMATION
+ * ==========================================================================================
+ *
+ *     Copyright (C) 2002-2025 Jahia Solutions Group. All rights reserved.
+ *
+ *     This file is part of a Jahia's Enterprise Distribution.
+ *
+ *     Jahia's Enterprise Distributions must be used in accordance with the terms
+ *     contained in the Jahia Solutions Group Terms &amp; Conditions as well as
+ *     the Jahia Sustainable Enterprise License (JSEL).
+ *
+ *     For questions regarding licensing, support, production usage...
+ *     please contact our team at sales@jahia.com or go to http://www.jahia.com/license.
+ *
+ * ==========================================================================================
+ */
+package org.jahia.modules.upa.mfa.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window of the authentication failure timestamps of a user for one MFA factor.
+ * <p>
+ * The timestamps are stored in a fixed-capacity ring buffer of primitive longs: once full, each new failure overwrites
+ * the oldest one. As a user is suspended once {@code capacity} failures happened within the window, older failures
+ * never need to be kept, so the memory used per tracked user and factor is constant.
+ * <p>
+ * The buffer is lock-free: each failure claims its own slot with an atomic increment, so concurrent failures are never
+ * lost. Used by {@link MfaServiceImpl} to determine if a user has exceeded the allowed number of MFA authentication
+ * failures within a configurable time window.
+ */
+final class AuthFailuresWindow {
+    private final AtomicLongArray timestamps;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    /**
+     * Creates an empty window.
+     *
+     * @param capacity the maximum number of failures kept, i.e. the number of failures before the user gets suspended
+     */
+    AuthFailuresWindow(int capacity) {
+        timestamps = new AtomicLongArray(Math.max(1, capacity));
+    }
+
+    /**
+     * Returns the maximum number of failures kept by this window.
+     *
+     * @return the capacity of the window
+     */
+    int getCapacity() {
+        return timestamps.length();
+    }
+
+    /**
+     * Records a new authentication failure.
+     *
+     * @param now the timestamp of the failure (in milliseconds)
+     */
+    void addFailureAttempt(long now) {
+        int slot = Math.floorMod(nextSlot.getAndIncrement(), timestamps.length());
+        timestamps.set(slot, now);
+    }
+
+    /**
+     * Returns the number of authentication failures within the time window.
+     *
+     * @param now                      the current timestamp (in milliseconds)
+     * @param authFailuresWindowMillis the time window in milliseconds
+     * @return the count of failure attempts within the window, at most {@link #getCapacity()}
+     */
+    int getFailureAttemptsCount(long now, long authFailuresWindowMillis) {
+        long timeLimit = now - authFailuresWindowMillis;
+        int count = 0;
+        for (int i = 0; i < timestamps.length(); i++) {
+            long timestamp = timestamps.get(i);
+            // unused slots are 0, so never within the window
+            if (timestamp > 0 && timestamp >= timeLimit) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the failures within the time window into a window of another capacity (e.g. after a configuration change),
+     * the most recent ones being kept if the new window is smaller.
+     *
+     * @param capacity                 the capacity of the new window
+     * @param now                      the current timestamp (in milliseconds)
+     * @param authFailuresWindowMillis the time window in milliseconds
+     * @return the new window
+     */
+    AuthFailuresWindow resize(int capacity, long now, long authFailuresWindowMillis) {
+        AuthFailuresWindow resized = new AuthFailuresWindow(capacity);
+        long timeLimit = now - authFailuresWindowMillis;
+        int start = nextSlot.get();
+        // from the oldest to the most recent slot
+        for (int i = 0; i < timestamps.length(); i++) {
+            long timestamp = timestamps.get(Math.floorMod(start + i, timestamps.length()));
+            if (timestamp > 0 && timestamp >= timeLimit) {
+                resized.addFailureAttempt(timestamp);
+            }
+        }
+        return resized;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+import javax.management.ObjectName;
+
+/**
+ * Exposes the statistics of a Caffeine cache (built with {@code recordStats()}) as an MBean of the platform MBean
+ * server (see {@link MBeans}).
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+    private final Cache<?, ?> cache;
+    private ObjectName objectName;
+
+    private CacheStatistics(Cache<?, ?> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Registers the statistics of a cache in the platform MBean server.
+     *
+     * @param name  the name of the cache, used in the object name of the MBean
+     * @param cache the cache
+     * @return the registered statistics, to {@link #unregister()} when the cache is discarded, or {@code null} if they
+     * could not be registered
+     */
+    public static CacheStatistics register(String name, Cache<?, ?> cache) {
+        CacheStatistics statistics = new CacheStatistics(cache);
+        statistics.objectName = MBeans.register("Cache", name, statistics);
+        return statistics.objectName != null ? statistics : null;
+    }
+
+    /**
+     * Unregisters the statistics from the platform MBean server.
+     */
+    public void unregister() {
+        MBeans.unregister(objectName);
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public long getWeightedSize() {
+        return cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(-1))
+                .orElse(-1L);
+    }
+
+    @Override
+    public long getMaximum() {
+        return cache.policy().eviction()
+                .map(eviction -> eviction.getMaximum())
+                .orElse(-1L);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
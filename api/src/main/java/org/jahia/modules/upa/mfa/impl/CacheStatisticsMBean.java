@@ -0,0 +1,37 @@
+package org.jahia.modules.upa.mfa.impl;
+
+/**
+ * JMX view of the statistics of an MFA cache, registered by {@link CacheStatistics}.
+ */
+public interface CacheStatisticsMBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getEvictionCount();
+
+    long getEstimatedSize();
+
+    /**
+     * Returns the current weight of the cache (the estimated memory used by its entries, in bytes, for the caches
+     * bounded by memory).
+     *
+     * @return the weighted size, or -1 if the cache is not bounded by weight
+     */
+    long getWeightedSize();
+
+    /**
+     * Returns the maximum weight (or size, for the caches not bounded by weight) of the cache.
+     *
+     * @return the maximum, or -1 if the cache is not bounded
+     */
+    long getMaximum();
+
+    /**
+     * Drops all the entries of the cache.
+     */
+    void invalidateAll();
+}
@@ -0,0 +1,151 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-min sketch estimating how many times keys were seen over a sliding time window, in a fixed amount of memory
+ * whatever the number of distinct keys.
+ * <p>
+ * The counts are kept in two generations of the window size: the current one and the previous one, whose counts decay
+ * linearly as the current window elapses (the usual sliding window approximation). Like any count-min sketch, the
+ * estimates may be higher than the actual counts (when keys collide in all the rows), never lower.
+ * <p>
+ * The memory used is {@code 2 x depth x width x 4} bytes. The counters are updated without locking, only the
+ * rotation of the generations is synchronized.
+ */
+final class DecayingCountMinSketch {
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final int mask;
+    private final long windowMillis;
+    private volatile Generation current;
+    /**
+     * The generation preceding the current one, null if there was no activity during that window.
+     */
+    private volatile Generation previous;
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param widthPowerOfTwo the number of counters per row, as a power of 2 (e.g. 16 for 65536 counters)
+     * @param windowMillis    the size of the sliding window in milliseconds
+     */
+    DecayingCountMinSketch(int widthPowerOfTwo, long windowMillis) {
+        this.width = 1 << widthPowerOfTwo;
+        this.mask = width - 1;
+        this.windowMillis = windowMillis;
+        long now = System.currentTimeMillis();
+        this.current = new Generation(now - now % windowMillis, DEPTH * width);
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Counts an occurrence of a key.
+     *
+     * @param key the key
+     * @param now the current epoch in milliseconds
+     * @return the estimated number of occurrences of the key over the sliding window, including this one
+     */
+    int add(String key, long now) {
+        Generation generation = rotate(now);
+        long hash = hash(key);
+        int currentCount = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            currentCount = Math.min(currentCount, generation.counts.incrementAndGet(index(hash, row)));
+        }
+        return currentCount + previousCount(hash, generation, now);
+    }
+
+    /**
+     * Estimates the occurrences of a key, without counting one.
+     *
+     * @param key the key
+     * @param now the current epoch in milliseconds
+     * @return the estimated number of occurrences of the key over the sliding window
+     */
+    int estimate(String key, long now) {
+        Generation generation = rotate(now);
+        long hash = hash(key);
+        int currentCount = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            currentCount = Math.min(currentCount, generation.counts.get(index(hash, row)));
+        }
+        return currentCount + previousCount(hash, generation, now);
+    }
+
+    /**
+     * Returns the delay until the current generation ends, i.e. until the counts start decaying.
+     *
+     * @param now the current epoch in milliseconds
+     * @return the delay in milliseconds
+     */
+    long getRemainingWindowMillis(long now) {
+        return Math.max(0, rotate(now).start + windowMillis - now);
+    }
+
+    private int previousCount(long hash, Generation generation, long now) {
+        Generation previousGeneration = previous;
+        if (previousGeneration == null || previousGeneration.start != generation.start - windowMillis) {
+            // rotated meanwhile, or more than a window without any activity
+            return 0;
+        }
+        int previousCount = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            previousCount = Math.min(previousCount, previousGeneration.counts.get(index(hash, row)));
+        }
+        double remaining = 1 - (double) (now - generation.start) / windowMillis;
+        return (int) Math.ceil(previousCount * Math.max(0, remaining));
+    }
+
+    private Generation rotate(long now) {
+        Generation generation = current;
+        if (now < generation.start + windowMillis) {
+            return generation;
+        }
+        synchronized (this) {
+            generation = current;
+            if (now >= generation.start + windowMillis) {
+                long start = now - now % windowMillis;
+                // the current generation only becomes the previous one if it immediately precedes the new one
+                previous = generation.start == start - windowMillis ? generation : null;
+                generation = new Generation(start, DEPTH * width);
+                current = generation;
+            }
+            return generation;
+        }
+    }
+
+    private int index(long hash, int row) {
+        // double hashing: the rows use distinct combinations of the two halves of the hash
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return row * width + ((h1 + row * h2) & mask);
+    }
+
+    private static long hash(String key) {
+        // 64-bit FNV-1a, followed by a finalizer so that all the bits depend on all the characters
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Generation {
+        private final long start;
+        private final AtomicIntegerArray counts;
+
+        private Generation(long start, int size) {
+            this.start = start;
+            this.counts = new AtomicIntegerArray(size);
+        }
+    }
+}
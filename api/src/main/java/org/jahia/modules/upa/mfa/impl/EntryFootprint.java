@@ -0,0 +1,50 @@
+package org.jahia.modules.upa.mfa.impl;
+
+/**
+ * Estimates of the heap footprint (in bytes) of the entries of the in-memory MFA caches, used as their weight so that
+ * the caches can be bounded by memory.
+ * <p>
+ * The estimates assume a 64-bit JVM with compressed references and compact (Latin-1) strings, and include the
+ * overhead of the cache entry itself (Caffeine node with expiration and hash table slot).
+ */
+final class EntryFootprint {
+    private static final int CACHE_ENTRY_OVERHEAD = 64;
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int BOXED_LONG = 16;
+
+    private EntryFootprint() {
+    }
+
+    /**
+     * Returns the footprint of an entry of the authentication failures cache.
+     */
+    static int of(UserFactorKey key, AuthFailuresWindow window) {
+        // AuthFailuresWindow + AtomicLongArray (and its array) + AtomicInteger
+        int windowFootprint = align(OBJECT_HEADER + 2 * REFERENCE)
+                + align(OBJECT_HEADER + REFERENCE) + align(ARRAY_HEADER + 8 * window.getCapacity())
+                + align(OBJECT_HEADER + 4);
+        return CACHE_ENTRY_OVERHEAD + of(key) + windowFootprint;
+    }
+
+    /**
+     * Returns the footprint of an entry mapping a user and a factor to a timestamp.
+     */
+    static int of(UserFactorKey key, Long timestamp) {
+        return CACHE_ENTRY_OVERHEAD + of(key) + BOXED_LONG;
+    }
+
+    private static int of(UserFactorKey key) {
+        return align(OBJECT_HEADER + 2 * REFERENCE + 4) + of(key.getUserPath()) + of(key.getFactorType());
+    }
+
+    private static int of(String string) {
+        // String (value reference, hash, coder and hashIsZero flag) + byte array
+        return align(OBJECT_HEADER + REFERENCE + 4 + 2) + align(ARRAY_HEADER + string.length());
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -0,0 +1,130 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.MfaSuspensionStore;
+import org.jahia.settings.SettingsBean;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job removing the expired user suspensions from the {@link MfaSuspensionStore}.
+ * <p>
+ * {@link MfaServiceImpl} only compares timestamps to know if a user is still suspended, it never writes to the
+ * store while checking a suspension. This job periodically purges the expired suspensions instead.
+ * <p>
+ * The job only runs on the processing server, so that cluster nodes do not compete for the same suspensions.
+ */
+@Component(service = ExpiredSuspensionsSweeper.class, immediate = true)
+public class ExpiredSuspensionsSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(ExpiredSuspensionsSweeper.class);
+    private static final int DEFAULT_INTERVAL_SECONDS = 300;
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private volatile MfaSuspensionStore suspensionStore;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> scheduledSweep;
+    private int scheduledIntervalSeconds;
+
+    @Activate
+    protected synchronized void activate() {
+        if (!SettingsBean.getInstance().isProcessingServer()) {
+            logger.info("Not a processing server, the expired MFA suspensions will be removed by the processing server");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upa-expired-suspensions-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedule(getIntervalSeconds(mfaConfigurationService));
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            scheduledSweep = null;
+        }
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        if (executor != null) {
+            // the interval may have changed
+            int intervalSeconds = getIntervalSeconds(mfaConfigurationService);
+            if (intervalSeconds != scheduledIntervalSeconds) {
+                schedule(intervalSeconds);
+            }
+        }
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    public void setSuspensionStore(MfaSuspensionStore suspensionStore) {
+        this.suspensionStore = suspensionStore;
+    }
+
+    public void unsetSuspensionStore(MfaSuspensionStore suspensionStore) {
+        if (this.suspensionStore == suspensionStore) {
+            this.suspensionStore = null;
+        }
+    }
+
+    private void schedule(int intervalSeconds) {
+        if (scheduledSweep != null) {
+            scheduledSweep.cancel(false);
+        }
+        scheduledSweep = executor.scheduleWithFixedDelay(this::sweep, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        scheduledIntervalSeconds = intervalSeconds;
+        logger.info("Expired MFA suspensions will be removed every {} seconds", intervalSeconds);
+    }
+
+    /**
+     * Returns the configured interval between two sweeps, or the default one if the configured interval is not
+     * positive (which {@link ScheduledExecutorService#scheduleWithFixedDelay} would reject, leaving no sweep scheduled).
+     */
+    private static int getIntervalSeconds(MfaConfigurationService mfaConfigurationService) {
+        int intervalSeconds = mfaConfigurationService.getMfaSuspensionSweepIntervalSeconds();
+        if (intervalSeconds <= 0) {
+            logger.warn("Invalid mfaSuspensionSweepIntervalSeconds: {}, using {} seconds instead", intervalSeconds, DEFAULT_INTERVAL_SECONDS);
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+        return intervalSeconds;
+    }
+
+    /**
+     * Purges the suspensions that have expired from the {@link MfaSuspensionStore}.
+     */
+    void sweep() {
+        MfaSuspensionStore store = suspensionStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            int removed = store.purgeExpiredSuspensions(System.currentTimeMillis());
+            if (removed > 0) {
+                logger.info("{} expired MFA suspension(s) removed", removed);
+            }
+        } catch (IllegalStateException e) {
+            logger.warn("Failed to remove the expired MFA suspensions", e);
+        } catch (RuntimeException e) {
+            // never let an exception cancel the next runs
+            logger.error("Unexpected error while removing the expired MFA suspensions", e);
+        }
+    }
+}
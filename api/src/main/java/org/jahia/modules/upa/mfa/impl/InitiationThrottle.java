@@ -0,0 +1,111 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * Throttles the MFA initiations (i.e. the password checks) per client IP address and per subnet (/24 for IPv4, /64 for
+ * IPv6), so that the sources of credential-stuffing attacks are rejected before their credentials get checked.
+ * <p>
+ * The attempts are counted over a sliding window in {@link DecayingCountMinSketch}es, so that millions of source
+ * addresses are tracked in a fixed amount of memory (4 MB for both sketches). The counts being approximate, a source
+ * may be throttled slightly before reaching the configured limit when the traffic is very high, never after.
+ * <p>
+ * The rejected attempts are not counted, so that a source over its limit is allowed again once its attempts of the
+ * window decayed, however fast it keeps retrying. The throttling is disabled by default: the client IP is the remote
+ * address of the request, shared by all the users behind a reverse proxy or a NAT.
+ */
+@Component(service = InitiationThrottle.class, immediate = true)
+public class InitiationThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(InitiationThrottle.class);
+    /**
+     * Request attribute set when an initiation attempt of the request was already counted (by the
+     * {@link UpaRequestFilter}), so that it is not counted twice.
+     */
+    public static final String COUNTED_ATTRIBUTE = InitiationThrottle.class.getName() + ".counted";
+    /**
+     * 2^16 counters per row, i.e. an overestimation of at most 0.004% of the attempts of the window in most cases.
+     */
+    private static final int SKETCH_WIDTH_POWER_OF_TWO = 16;
+    private static final Pattern IPV4_PATTERN = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private volatile DecayingCountMinSketch ipSketch;
+    private volatile DecayingCountMinSketch subnetSketch;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        long windowMillis = mfaConfigurationService.getMfaInitiateThrottleWindowSeconds() * 1000L;
+        // the counts are kept unless the window changes
+        if (windowMillis > 0 && (ipSketch == null || ipSketch.getWindowMillis() != windowMillis)) {
+            ipSketch = new DecayingCountMinSketch(SKETCH_WIDTH_POWER_OF_TWO, windowMillis);
+            subnetSketch = new DecayingCountMinSketch(SKETCH_WIDTH_POWER_OF_TWO, windowMillis);
+        }
+        // set last, so that the sketches always exist for the configuration read by tryAcquire
+        this.mfaConfigurationService = mfaConfigurationService;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    /**
+     * Counts an initiation attempt of a client, checking whether the client or its subnet exceeded their limit.
+     *
+     * @param clientIp the IP address of the client (may be null)
+     * @param now      the current epoch in milliseconds
+     * @return 0 if the attempt is allowed, otherwise the delay (in milliseconds) after which it should be retried
+     */
+    public long tryAcquire(String clientIp, long now) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (clientIp == null || configuration == null || configuration.getMfaInitiateThrottleWindowSeconds() <= 0) {
+            return 0;
+        }
+        int ipMaxAttempts = configuration.getMfaInitiateIpMaxAttempts();
+        int subnetMaxAttempts = configuration.getMfaInitiateSubnetMaxAttempts();
+        String subnet = subnetMaxAttempts > 0 ? getSubnet(clientIp) : null;
+        boolean throttled = ipMaxAttempts > 0 && ipSketch.estimate(clientIp, now) >= ipMaxAttempts
+                || subnet != null && subnetSketch.estimate(subnet, now) >= subnetMaxAttempts;
+        if (!throttled) {
+            // the concurrent attempts of the same source may all have been below the limit
+            throttled = ipMaxAttempts > 0 && ipSketch.add(clientIp, now) > ipMaxAttempts;
+            throttled |= subnet != null && subnetSketch.add(subnet, now) > subnetMaxAttempts;
+        }
+        if (throttled) {
+            logger.debug("Too many initiation attempts from {} (subnet {})", clientIp, subnet);
+        }
+        return throttled ? Math.max(1, ipSketch.getRemainingWindowMillis(now)) : 0;
+    }
+
+    /**
+     * Returns the /24 (IPv4) or /64 (IPv6) subnet of an IP address, or null if the address cannot be parsed.
+     */
+    private static String getSubnet(String ip) {
+        if (ip.indexOf(':') < 0 && !IPV4_PATTERN.matcher(ip).matches()) {
+            // not an IP literal, which would trigger a DNS lookup
+            return null;
+        }
+        byte[] address;
+        try {
+            address = InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+        int prefixLength = address.length == 4 ? 3 : 8;
+        StringBuilder subnet = new StringBuilder(prefixLength * 3 + 3);
+        for (int i = 0; i < prefixLength; i++) {
+            subnet.append(address[i] & 0xFF).append('.');
+        }
+        return subnet.append('/').append(prefixLength * 8).toString();
+    }
+}
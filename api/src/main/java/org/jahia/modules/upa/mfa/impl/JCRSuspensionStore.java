@@ -0,0 +1,244 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.MfaSuspensionStore;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.settings.SettingsBean;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Default {@link MfaSuspensionStore}, storing the suspensions in the JCR under {@value #SUSPENSIONS_PATH}.
+ * <p>
+ * Each suspension is a small {@value #SUSPENSION_TYPE} node named after the (encoded) path of the suspended user,
+ * holding the end of the suspension in the {@value #SUSPENDED_UNTIL_PROP} property, on which the expired suspensions
+ * are queried. The user nodes are never modified.
+ * <p>
+ * The suspensions previously stored with the {@value #LEGACY_SUSPENDED_USER_MIXIN} mixin on the user nodes are moved
+ * to this store by the processing server, when activated and when purging the expired suspensions. Until none is left,
+ * the suspension of a user is also read from the legacy mixin, so that the users suspended before the upgrade remain
+ * suspended in the meantime.
+ */
+@Component(service = MfaSuspensionStore.class, immediate = true)
+public class JCRSuspensionStore implements MfaSuspensionStore {
+    private static final Logger logger = LoggerFactory.getLogger(JCRSuspensionStore.class);
+    static final String SUSPENSIONS_PATH = "/settings/upa-suspensions";
+    private static final String SUSPENSIONS_TYPE = "upa:mfaSuspensions";
+    private static final String SUSPENSION_TYPE = "upa:mfaSuspension";
+    static final String SUSPENDED_UNTIL_PROP = "upa:suspendedUntil";
+    private static final String USER_PATH_PROP = "upa:userPath";
+    private static final String LEGACY_SUSPENDED_USER_MIXIN = "upa:mfaSuspendedUser";
+    private static final String LEGACY_SUSPENDED_SINCE_PROP = "upa:mfaSuspendedSince";
+    private static final int BATCH_SIZE = 100;
+    private static final String EXPIRED_SUSPENSIONS_QUERY = "SELECT * FROM [" + SUSPENSION_TYPE + "] " +
+            "WHERE [" + SUSPENDED_UNTIL_PROP + "] <= CAST('%s' AS DATE)";
+    private static final String LEGACY_SUSPENSIONS_QUERY = "SELECT * FROM [" + LEGACY_SUSPENDED_USER_MIXIN + "]";
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    /**
+     * Whether there may still be legacy suspensions to read from the user nodes.
+     */
+    private volatile boolean legacySuspensionsLeft = true;
+
+    @Activate
+    protected void activate() {
+        try {
+            JCRTemplate.getInstance().doExecuteWithSystemSession(session -> {
+                if (SettingsBean.getInstance().isProcessingServer()) {
+                    migrateLegacySuspensions(session, System.currentTimeMillis());
+                } else {
+                    legacySuspensionsLeft = hasLegacySuspensions(session);
+                }
+                return null;
+            });
+        } catch (RepositoryException | RuntimeException e) {
+            logger.error("Unable to migrate the legacy user suspensions, they are read from the user nodes until migrated", e);
+        }
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Override
+    public long getSuspendedUntil(String userPath) {
+        String suspensionPath = SUSPENSIONS_PATH + "/" + getSuspensionNodeName(userPath);
+        try {
+            return JCRTemplate.getInstance().doExecuteWithSystemSession(session -> {
+                if (session.nodeExists(suspensionPath)) {
+                    return session.getNode(suspensionPath).getProperty(SUSPENDED_UNTIL_PROP).getDate().getTimeInMillis();
+                }
+                return legacySuspensionsLeft ? getLegacySuspendedUntil(session, userPath) : NOT_SUSPENDED;
+            });
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("Unable to read the suspension of user " + userPath, e);
+        }
+    }
+
+    @Override
+    public void saveSuspensions(Map<String, Long> suspendedUntilByUserPath) {
+        try {
+            JCRTemplate.getInstance().doExecuteWithSystemSession(session -> {
+                JCRNodeWrapper suspensionsNode = getOrCreateSuspensionsNode(session);
+                for (Map.Entry<String, Long> suspension : suspendedUntilByUserPath.entrySet()) {
+                    saveSuspension(suspensionsNode, suspension.getKey(), suspension.getValue());
+                }
+                session.save();
+                return null;
+            });
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("Unable to save " + suspendedUntilByUserPath.size() + " user suspension(s)", e);
+        }
+    }
+
+    @Override
+    public int purgeExpiredSuspensions(long now) {
+        Calendar expiredBefore = Calendar.getInstance();
+        expiredBefore.setTimeInMillis(now);
+        try {
+            return JCRTemplate.getInstance().doExecuteWithSystemSession(session -> {
+                migrateLegacySuspensions(session, now);
+                String statement = String.format(EXPIRED_SUSPENSIONS_QUERY, session.getValueFactory().createValue(expiredBefore).getString());
+                return processByBatches(session, statement, suspensionNode -> {
+                    logger.debug("User {} is no longer suspended, removing its suspension", suspensionNode.getPropertyAsString(USER_PATH_PROP));
+                    suspensionNode.remove();
+                });
+            });
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("Unable to purge the expired user suspensions", e);
+        }
+    }
+
+    /**
+     * Returns the path of the suspended user from the name of a suspension node.
+     *
+     * @param suspensionNodeName the name of the suspension node
+     * @return the path of the user
+     */
+    static String getUserPath(String suspensionNodeName) {
+        try {
+            return URLDecoder.decode(suspensionNodeName, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getSuspensionNodeName(String userPath) {
+        try {
+            // reversible encoding of the characters that are not allowed in JCR names ('*' is left as is by URLEncoder)
+            return URLEncoder.encode(userPath, StandardCharsets.UTF_8.name()).replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JCRNodeWrapper getOrCreateSuspensionsNode(JCRSessionWrapper session) throws RepositoryException {
+        if (session.nodeExists(SUSPENSIONS_PATH)) {
+            return session.getNode(SUSPENSIONS_PATH);
+        }
+        logger.info("Creating the node {} storing the user suspensions", SUSPENSIONS_PATH);
+        return session.getNode("/settings").addNode("upa-suspensions", SUSPENSIONS_TYPE);
+    }
+
+    private static void saveSuspension(JCRNodeWrapper suspensionsNode, String userPath, long suspendedUntil) throws RepositoryException {
+        String nodeName = getSuspensionNodeName(userPath);
+        JCRNodeWrapper suspensionNode = suspensionsNode.hasNode(nodeName) ? suspensionsNode.getNode(nodeName) : suspensionsNode.addNode(nodeName, SUSPENSION_TYPE);
+        Calendar suspendedUntilDate = Calendar.getInstance();
+        suspendedUntilDate.setTimeInMillis(suspendedUntil);
+        suspensionNode.setProperty(USER_PATH_PROP, userPath);
+        suspensionNode.setProperty(SUSPENDED_UNTIL_PROP, suspendedUntilDate);
+        logger.debug("User {} suspended until {}", userPath, suspendedUntilDate);
+    }
+
+    /**
+     * Reads the suspension of a user from the legacy mixin of its node, not migrated yet.
+     */
+    private long getLegacySuspendedUntil(JCRSessionWrapper session, String userPath) throws RepositoryException {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null || !session.nodeExists(userPath)) {
+            return NOT_SUSPENDED;
+        }
+        JCRNodeWrapper userNode = session.getNode(userPath);
+        if (!userNode.isNodeType(LEGACY_SUSPENDED_USER_MIXIN) || !userNode.hasProperty(LEGACY_SUSPENDED_SINCE_PROP)) {
+            return NOT_SUSPENDED;
+        }
+        return userNode.getProperty(LEGACY_SUSPENDED_SINCE_PROP).getDate().getTimeInMillis() + configuration.getMfaUserTemporarySuspensionSeconds() * 1000L;
+    }
+
+    private static boolean hasLegacySuspensions(JCRSessionWrapper session) throws RepositoryException {
+        Query query = session.getWorkspace().getQueryManager().createQuery(LEGACY_SUSPENSIONS_QUERY, Query.JCR_SQL2);
+        query.setLimit(1);
+        return query.execute().getNodes().hasNext();
+    }
+
+    private void migrateLegacySuspensions(JCRSessionWrapper session, long now) throws RepositoryException {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null) {
+            return;
+        }
+        long suspensionMillis = configuration.getMfaUserTemporarySuspensionSeconds() * 1000L;
+        int migrated = processByBatches(session, LEGACY_SUSPENSIONS_QUERY, userNode -> {
+            long suspendedUntil = userNode.getProperty(LEGACY_SUSPENDED_SINCE_PROP).getDate().getTimeInMillis() + suspensionMillis;
+            if (suspendedUntil > now) {
+                saveSuspension(getOrCreateSuspensionsNode(session), userNode.getPath(), suspendedUntil);
+            }
+            userNode.getProperty(LEGACY_SUSPENDED_SINCE_PROP).remove();
+            userNode.removeMixin(LEGACY_SUSPENDED_USER_MIXIN);
+        });
+        if (migrated > 0) {
+            logger.info("{} legacy user suspension(s) removed from the user nodes", migrated);
+        }
+        legacySuspensionsLeft = false;
+    }
+
+    /**
+     * Processes the nodes returned by a query, saving the session every {@value #BATCH_SIZE} nodes.
+     * The processing must make the nodes no longer match the query, as it is executed again for each batch.
+     */
+    private static int processByBatches(JCRSessionWrapper session, String statement, NodeProcessor processor) throws RepositoryException {
+        int total = 0;
+        int batchCount;
+        do {
+            Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+            query.setLimit(BATCH_SIZE);
+            batchCount = 0;
+            NodeIterator nodes = query.execute().getNodes();
+            while (nodes.hasNext() && batchCount < BATCH_SIZE) {
+                processor.process((JCRNodeWrapper) nodes.nextNode());
+                batchCount++;
+            }
+            if (batchCount > 0) {
+                session.save();
+                total += batchCount;
+            }
+        } while (batchCount == BATCH_SIZE);
+        return total;
+    }
+
+    @FunctionalInterface
+    private interface NodeProcessor {
+        void process(JCRNodeWrapper node) throws RepositoryException;
+    }
+}
@@ -0,0 +1,592 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.jahia.modules.upa.mfa.MfaRateLimitStore;
+import org.jahia.utils.DatabaseUtils;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link MfaRateLimitStore} shared across the cluster nodes, storing the rate limit state in the Jahia database, so
+ * that the limits apply to the whole cluster instead of each node.
+ * <p>
+ * Enabled by the {@code org.jahia.modules.upa.jdbc} configuration, it then replaces the {@link LocalRateLimitStore}
+ * (higher service ranking). To avoid a database round trip on each MFA operation:
+ * <ul>
+ *     <li>the failures are counted per second in the {@value #FAILURES_TABLE} table, the increments being aggregated
+ *     in memory and written by batches every {@link Config#flushIntervalMillis()}</li>
+ *     <li>the preparations are written the same way in the {@value #PREPARATIONS_TABLE} table</li>
+ *     <li>the rows read from the database are kept in a near cache for the length of the failures window or of the
+ *     preparations cooldown, the pending changes of the node being applied on top of them: the repeated operations of
+ *     a user (including the ones of the users with no failure or preparation at all) do not read the database again</li>
+ *     <li>the near cache is reconciled every {@link Config#changesPollIntervalMillis()}, by reading the keys of the rows
+ *     written recently by any node, whose entries are dropped from the near cache to be read again</li>
+ * </ul>
+ * The limits may thus be exceeded on other nodes during the flush interval plus the poll interval. The rows deleted by
+ * other nodes (i.e. the failures and preparations cleared once a user is authenticated) are not polled: they keep
+ * counting on this node until its near cache entries expire, which only makes the limits stricter meanwhile.
+ * The users and factors are identified in the tables by the SHA-256 hash of their path and type. The tables are
+ * created if they do not exist, and the rows no longer needed are purged every minute.
+ */
+@Component(
+        service = MfaRateLimitStore.class,
+        configurationPid = "org.jahia.modules.upa.jdbc",
+        configurationPolicy = ConfigurationPolicy.REQUIRE,
+        property = "service.ranking:Integer=100",
+        immediate = true
+)
+@Designate(ocd = JdbcRateLimitStore.Config.class)
+public class JdbcRateLimitStore implements MfaRateLimitStore {
+    private static final Logger logger = LoggerFactory.getLogger(JdbcRateLimitStore.class);
+    private static final String FAILURES_TABLE = "upa_mfa_failures";
+    private static final String PREPARATIONS_TABLE = "upa_mfa_preparations";
+    private static final long BUCKET_MILLIS = 1000L;
+    private static final long PURGE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * How far back before the previous poll the rows are polled, as the rows are timestamped by the clock of the node
+     * writing them, and written up to a flush interval later.
+     */
+    private static final long CHANGES_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final String CREATE_FAILURES_TABLE = "CREATE TABLE " + FAILURES_TABLE + " (" +
+            "failure_key VARCHAR(64) NOT NULL, bucket_start NUMERIC(19) NOT NULL, failures INTEGER NOT NULL, " +
+            "PRIMARY KEY (failure_key, bucket_start))";
+    private static final String CREATE_PREPARATIONS_TABLE = "CREATE TABLE " + PREPARATIONS_TABLE + " (" +
+            "preparation_key VARCHAR(64) NOT NULL, prepared_at NUMERIC(19) NOT NULL, " +
+            "PRIMARY KEY (preparation_key))";
+    private static final String SELECT_FAILURES = "SELECT bucket_start, failures FROM " + FAILURES_TABLE +
+            " WHERE failure_key = ? AND bucket_start > ?";
+    private static final String INCREMENT_FAILURES = "UPDATE " + FAILURES_TABLE + " SET failures = failures + ?" +
+            " WHERE failure_key = ? AND bucket_start = ?";
+    private static final String INSERT_FAILURES = "INSERT INTO " + FAILURES_TABLE +
+            " (failures, failure_key, bucket_start) VALUES (?, ?, ?)";
+    private static final String DELETE_FAILURES = "DELETE FROM " + FAILURES_TABLE + " WHERE failure_key = ?";
+    private static final String PURGE_FAILURES = "DELETE FROM " + FAILURES_TABLE + " WHERE bucket_start <= ?";
+    private static final String SELECT_PREPARATION = "SELECT prepared_at FROM " + PREPARATIONS_TABLE +
+            " WHERE preparation_key = ?";
+    private static final String UPDATE_PREPARATION = "UPDATE " + PREPARATIONS_TABLE + " SET prepared_at = ?" +
+            " WHERE preparation_key = ?";
+    private static final String INSERT_PREPARATION = "INSERT INTO " + PREPARATIONS_TABLE +
+            " (prepared_at, preparation_key) VALUES (?, ?)";
+    private static final String DELETE_PREPARATION = "DELETE FROM " + PREPARATIONS_TABLE + " WHERE preparation_key = ?";
+    private static final String PURGE_PREPARATIONS = "DELETE FROM " + PREPARATIONS_TABLE + " WHERE prepared_at <= ?";
+    private static final String SELECT_CHANGED_FAILURES = "SELECT DISTINCT failure_key FROM " + FAILURES_TABLE +
+            " WHERE bucket_start > ?";
+    private static final String SELECT_CHANGED_PREPARATIONS = "SELECT preparation_key FROM " + PREPARATIONS_TABLE +
+            " WHERE prepared_at > ?";
+
+    @ObjectClassDefinition(name = "%configName", description = "%configDesc", localization = "OSGI-INF/l10n/jdbc/config")
+    public @interface Config {
+        @AttributeDefinition(
+                name = "%flushIntervalMillis",
+                description = "%flushIntervalMillisDesc",
+                defaultValue = "200"
+        )
+        int flushIntervalMillis();
+
+        @AttributeDefinition(
+                name = "%changesPollIntervalMillis",
+                description = "%changesPollIntervalMillisDesc",
+                defaultValue = "1000"
+        )
+        int changesPollIntervalMillis();
+    }
+
+    private DataSource dataSource;
+    private ScheduledExecutorService executor;
+    private long lastPurge;
+    private long lastPoll;
+    private long pollIntervalMillis;
+    /**
+     * The failures read from the database (sorted bucket starts and counts), by hashed key.
+     */
+    private Cache<String, long[][]> remoteFailures;
+    /**
+     * The last preparations read from the database (or {@link #NO_PREPARATION}), by hashed key.
+     */
+    private Cache<String, Long> remotePreparations;
+    /**
+     * The failures not written yet, by hashed key and bucket start. The maps are only accessed through the atomic
+     * operations of the {@link ConcurrentHashMap}, and never modified once they left it.
+     */
+    private final ConcurrentHashMap<String, Map<Long, Integer>> pendingFailures = new ConcurrentHashMap<>();
+    /**
+     * The failures being written by the current flush, still counted until they can be read from the database.
+     */
+    private final ConcurrentHashMap<String, Map<Long, Integer>> flushingFailures = new ConcurrentHashMap<>();
+    /**
+     * The keys whose failures must be deleted, with the time they were cleared: the failures read from the database
+     * are ignored until they are deleted.
+     */
+    private final ConcurrentHashMap<String, Long> clearedFailures = new ConcurrentHashMap<>();
+    /**
+     * The preparations not written yet by hashed key ({@link #NO_PREPARATION} for the preparations to delete).
+     */
+    private final ConcurrentHashMap<String, Long> pendingPreparations = new ConcurrentHashMap<>();
+    private final AtomicLong maxFailuresWindowMillis = new AtomicLong();
+    private final AtomicLong maxCooldownMillis = new AtomicLong();
+
+    @Activate
+    protected synchronized void activate(Config config) {
+        if (dataSource == null) {
+            dataSource = DatabaseUtils.getDatasource();
+        }
+        createTables();
+        pollIntervalMillis = config.changesPollIntervalMillis();
+        // the changes written from now on are polled
+        lastPoll = System.currentTimeMillis();
+        remoteFailures = Caffeine.newBuilder()
+                .expireAfter(new NearCacheExpiry<String, long[][]>(maxFailuresWindowMillis::get))
+                .maximumSize(100_000)
+                .build();
+        remotePreparations = Caffeine.newBuilder()
+                .expireAfter(new NearCacheExpiry<String, Long>(maxCooldownMillis::get))
+                .maximumSize(100_000)
+                .build();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UPA rate limit store flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flush, config.flushIntervalMillis(), config.flushIntervalMillis(), TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::pollChanges, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("MFA rate limits are shared across the cluster nodes through the database (flushed every {} ms)", config.flushIntervalMillis());
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // write what is still pending
+        flush();
+    }
+
+    /**
+     * Sets the data source to use instead of the Jahia one (e.g. an embedded database), must be called before the
+     * activation.
+     */
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public int recordFailure(String userPath, String factorType, long now, long failuresWindowMillis, int maxFailures) {
+        String key = hash(userPath, factorType);
+        long bucketStart = now - now % BUCKET_MILLIS;
+        pendingFailures.compute(key, (k, buckets) -> {
+            Map<Long, Integer> updated = buckets != null ? buckets : new HashMap<>(4);
+            updated.merge(bucketStart, 1, Integer::sum);
+            return updated;
+        });
+        return countFailures(key, now, failuresWindowMillis);
+    }
+
+    @Override
+    public int getFailureCount(String userPath, String factorType, long now, long failuresWindowMillis) {
+        return countFailures(hash(userPath, factorType), now, failuresWindowMillis);
+    }
+
+    @Override
+    public void clearFailures(String userPath, String factorType) {
+        String key = hash(userPath, factorType);
+        clearedFailures.put(key, System.currentTimeMillis());
+        pendingFailures.remove(key);
+        remoteFailures.invalidate(key);
+    }
+
+    @Override
+    public long getLastPreparation(String userPath, String factorType) {
+        String key = hash(userPath, factorType);
+        Long pending = pendingPreparations.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        Long preparation = remotePreparations.get(key, this::readPreparation);
+        return preparation != null ? preparation : NO_PREPARATION;
+    }
+
+    @Override
+    public void recordPreparation(String userPath, String factorType, long now, long cooldownMillis) {
+        maxCooldownMillis.accumulateAndGet(cooldownMillis, Math::max);
+        String key = hash(userPath, factorType);
+        pendingPreparations.put(key, now);
+        remotePreparations.put(key, now);
+    }
+
+    @Override
+    public void clearPreparation(String userPath, String factorType) {
+        String key = hash(userPath, factorType);
+        pendingPreparations.put(key, NO_PREPARATION);
+        remotePreparations.put(key, NO_PREPARATION);
+    }
+
+    private int countFailures(String key, long now, long failuresWindowMillis) {
+        maxFailuresWindowMillis.accumulateAndGet(failuresWindowMillis, Math::max);
+        long since = now - failuresWindowMillis;
+        int[] count = {0};
+        // the pending failures are read before the flushing ones, so that the failures moved in between are counted
+        // twice rather than not at all
+        pendingFailures.computeIfPresent(key, (k, buckets) -> {
+            count[0] += sum(buckets, since);
+            return buckets;
+        });
+        Map<Long, Integer> flushing = flushingFailures.get(key);
+        if (flushing != null) {
+            count[0] += sum(flushing, since);
+        }
+        if (!clearedFailures.containsKey(key)) {
+            long[][] remote = remoteFailures.get(key, k -> readFailures(k, now - maxFailuresWindowMillis.get()));
+            if (remote != null) {
+                for (int i = 0; i < remote[0].length; i++) {
+                    if (remote[0][i] > since) {
+                        count[0] += (int) remote[1][i];
+                    }
+                }
+            }
+        }
+        return count[0];
+    }
+
+    private static int sum(Map<Long, Integer> buckets, long since) {
+        int sum = 0;
+        for (Map.Entry<Long, Integer> bucket : buckets.entrySet()) {
+            if (bucket.getKey() > since) {
+                sum += bucket.getValue();
+            }
+        }
+        return sum;
+    }
+
+    private long[][] readFailures(String key, long since) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_FAILURES)) {
+            statement.setString(1, key);
+            statement.setLong(2, since);
+            List<long[]> rows = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    rows.add(new long[]{resultSet.getLong(1), resultSet.getLong(2)});
+                }
+            }
+            long[][] buckets = new long[2][rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                buckets[0][i] = rows.get(i)[0];
+                buckets[1][i] = rows.get(i)[1];
+            }
+            return buckets;
+        } catch (SQLException e) {
+            // not cached, so that it gets read again on next access
+            logger.warn("Unable to read the MFA failures from the database, only the failures of this node are counted", e);
+            return null;
+        }
+    }
+
+    private Long readPreparation(String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_PREPARATION)) {
+            statement.setString(1, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : NO_PREPARATION;
+            }
+        } catch (SQLException e) {
+            logger.warn("Unable to read the MFA factor preparation from the database", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the pending changes in a single transaction, and purges the rows no longer needed every minute.
+     */
+    void flush() {
+        Map<String, Long> clears = new HashMap<>(clearedFailures);
+        for (String key : pendingFailures.keySet()) {
+            pendingFailures.computeIfPresent(key, (k, buckets) -> {
+                flushingFailures.put(k, buckets);
+                return null;
+            });
+        }
+        Map<String, Long> preparations = new HashMap<>();
+        for (String key : pendingPreparations.keySet()) {
+            Long preparation = pendingPreparations.remove(key);
+            if (preparation != null) {
+                preparations.put(key, preparation);
+            }
+        }
+        if (clears.isEmpty() && flushingFailures.isEmpty() && preparations.isEmpty() && !isPurgeDue()) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                // the deletions first, so that the failures recorded after them are kept
+                executeBatch(connection, DELETE_FAILURES, clears.keySet(), (statement, key) -> statement.setString(1, key));
+                writeFailures(connection);
+                writePreparations(connection, preparations);
+                purge(connection);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            // the written failures can now be read from the database
+            flushingFailures.keySet().forEach(remoteFailures::invalidate);
+            clears.forEach(clearedFailures::remove);
+            flushingFailures.clear();
+        } catch (SQLException e) {
+            logger.warn("Unable to write the MFA rate limits to the database, will retry", e);
+            // put the changes back, unless changed again meanwhile
+            flushingFailures.forEach((key, buckets) -> pendingFailures.merge(key, buckets, JdbcRateLimitStore::mergeBuckets));
+            flushingFailures.clear();
+            preparations.forEach(pendingPreparations::putIfAbsent);
+        }
+    }
+
+    /**
+     * Drops from the near cache the entries of the rows written since the previous poll (by any node), so that they
+     * are read again on next access.
+     */
+    void pollChanges() {
+        long now = System.currentTimeMillis();
+        long since = lastPoll - CHANGES_MARGIN_MILLIS;
+        try (Connection connection = dataSource.getConnection()) {
+            int changes = invalidateChanged(connection, SELECT_CHANGED_FAILURES, since, remoteFailures);
+            changes += invalidateChanged(connection, SELECT_CHANGED_PREPARATIONS, since, remotePreparations);
+            lastPoll = now;
+            logger.trace("{} MFA rate limit key(s) changed in the database", changes);
+        } catch (SQLException e) {
+            // polled again from the same time on next run
+            logger.warn("Unable to read the MFA rate limit changes from the database", e);
+        }
+    }
+
+    private static int invalidateChanged(Connection connection, String sql, long since, Cache<String, ?> nearCache) throws SQLException {
+        int changes = 0;
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, since);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    nearCache.invalidate(resultSet.getString(1));
+                    changes++;
+                }
+            }
+        }
+        return changes;
+    }
+
+    private static Map<Long, Integer> mergeBuckets(Map<Long, Integer> buckets, Map<Long, Integer> otherBuckets) {
+        Map<Long, Integer> merged = new HashMap<>(buckets);
+        otherBuckets.forEach((bucketStart, failures) -> merged.merge(bucketStart, failures, Integer::sum));
+        return merged;
+    }
+
+    private void writeFailures(Connection connection) throws SQLException {
+        List<Object[]> increments = new ArrayList<>();
+        flushingFailures.forEach((key, buckets) -> buckets.forEach((bucketStart, failures) ->
+                increments.add(new Object[]{failures, key, bucketStart})));
+        List<Object[]> missing = executeUpdates(connection, INCREMENT_FAILURES, increments);
+        insertOrUpdate(connection, INSERT_FAILURES, INCREMENT_FAILURES, missing);
+    }
+
+    private static void writePreparations(Connection connection, Map<String, Long> preparations) throws SQLException {
+        List<Object[]> updates = new ArrayList<>();
+        List<String> deletions = new ArrayList<>();
+        preparations.forEach((key, preparation) -> {
+            if (preparation == NO_PREPARATION) {
+                deletions.add(key);
+            } else {
+                updates.add(new Object[]{preparation, key});
+            }
+        });
+        executeBatch(connection, DELETE_PREPARATION, deletions, (statement, key) -> statement.setString(1, key));
+        List<Object[]> missing = executeUpdates(connection, UPDATE_PREPARATION, updates);
+        insertOrUpdate(connection, INSERT_PREPARATION, UPDATE_PREPARATION, missing);
+    }
+
+    /**
+     * Executes a batch of updates, returning the parameters of the ones that did not update any row.
+     */
+    private static List<Object[]> executeUpdates(Connection connection, String sql, List<Object[]> parameters) throws SQLException {
+        if (parameters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int[] counts = executeBatch(connection, sql, parameters, JdbcRateLimitStore::setParameters);
+        List<Object[]> missing = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                missing.add(parameters.get(i));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Inserts the rows that did not exist, updating them instead if another node inserted them meanwhile.
+     */
+    private static void insertOrUpdate(Connection connection, String insertSql, String updateSql, List<Object[]> rows) throws SQLException {
+        for (Object[] row : rows) {
+            Savepoint savepoint = connection.setSavepoint();
+            try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
+                setParameters(insert, row);
+                insert.executeUpdate();
+            } catch (SQLException e) {
+                // most likely inserted by another node, the row can now be updated
+                connection.rollback(savepoint);
+                try (PreparedStatement update = connection.prepareStatement(updateSql)) {
+                    setParameters(update, row);
+                    update.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private void purge(Connection connection) throws SQLException {
+        if (!isPurgeDue()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        lastPurge = now;
+        int purged = 0;
+        if (maxFailuresWindowMillis.get() > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(PURGE_FAILURES)) {
+                statement.setLong(1, now - maxFailuresWindowMillis.get());
+                purged += statement.executeUpdate();
+            }
+        }
+        if (maxCooldownMillis.get() > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(PURGE_PREPARATIONS)) {
+                statement.setLong(1, now - maxCooldownMillis.get());
+                purged += statement.executeUpdate();
+            }
+        }
+        logger.debug("{} MFA rate limit row(s) purged from the database", purged);
+    }
+
+    private boolean isPurgeDue() {
+        return System.currentTimeMillis() - lastPurge >= PURGE_INTERVAL_MILLIS;
+    }
+
+    private static <T> int[] executeBatch(Connection connection, String sql, Collection<T> items, ParameterSetter<T> setter) throws SQLException {
+        if (items.isEmpty()) {
+            return new int[0];
+        }
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (T item : items) {
+                setter.set(statement, item);
+                statement.addBatch();
+            }
+            return statement.executeBatch();
+        }
+    }
+
+    private static void setParameters(PreparedStatement statement, Object[] parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+    }
+
+    private void createTables() {
+        try (Connection connection = dataSource.getConnection()) {
+            createTableIfMissing(connection, FAILURES_TABLE, CREATE_FAILURES_TABLE);
+            createTableIfMissing(connection, PREPARATIONS_TABLE, CREATE_PREPARATIONS_TABLE);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to create the tables of the MFA rate limit store", e);
+        }
+    }
+
+    private static void createTableIfMissing(Connection connection, String table, String createStatement) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // the case of the table names depends on the database
+        for (String name : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+            try (ResultSet tables = metaData.getTables(null, null, name, new String[]{"TABLE"})) {
+                if (tables.next()) {
+                    return;
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(createStatement);
+            logger.info("Table {} created", table);
+        } catch (SQLException e) {
+            // may have been created by another node meanwhile
+            logger.warn("Unable to create the table {}, assuming it was created by another cluster node", table, e);
+        }
+    }
+
+    /**
+     * Hashes the user path and the factor type, so that the keys have a fixed size and the tables do not hold user
+     * paths.
+     */
+    private static String hash(String userPath, String factorType) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(userPath.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            byte[] hash = digest.digest(factorType.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Expires the near cache entries once they no longer matter (i.e. after the longest failures window or cooldown
+     * seen so far), the poll interval being used until it is known.
+     */
+    private class NearCacheExpiry<K, V> implements Expiry<K, V> {
+        private final LongSupplier timeToLiveMillis;
+
+        private NearCacheExpiry(LongSupplier timeToLiveMillis) {
+            this.timeToLiveMillis = timeToLiveMillis;
+        }
+
+        @Override
+        public long expireAfterCreate(K key, V value, long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(timeToLiveMillis.getAsLong(), pollIntervalMillis));
+        }
+
+        @Override
+        public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ParameterSetter<T> {
+        void set(PreparedStatement statement, T item) throws SQLException;
+    }
+}
@@ -0,0 +1,189 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.MfaRateLimitStore;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link MfaRateLimitStore}, keeping the rate limit state in node-local Caffeine caches.
+ * <p>
+ * The caches are bounded by the estimated memory of their entries ({@link EntryFootprint}), and reconfigured in place
+ * when the configuration changes, so that the tracked failures and preparations are kept.
+ */
+@Component(service = MfaRateLimitStore.class, immediate = true)
+public class LocalRateLimitStore implements MfaRateLimitStore {
+    private static final Logger logger = LoggerFactory.getLogger(LocalRateLimitStore.class);
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+
+    /**
+     * A thread-safe cache used for storing authentication failure details of users.
+     * <p>
+     * This cache maps user paths and Multi-Factor Authentication (MFA) provider types to {@link AuthFailuresWindow}
+     * objects, which track the recent authentication failure attempts. The windows are only updated through
+     * {@link java.util.Map#compute}, so that concurrent failures of a user are all counted.
+     * <p>
+     * The cache is bounded by {@link MfaConfigurationService#getMfaAuthFailuresCacheMaxWeightBytes()}, each entry
+     * weighing its estimated footprint ({@link EntryFootprint}), except the entries of the users that have reached the
+     * limit: they weigh nothing so that they are never evicted before the user gets suspended.
+     */
+    private Cache<UserFactorKey, AuthFailuresWindow> failuresCache;
+
+    /**
+     * A thread-safe cache storing the timestamp (in milliseconds) when an MFA factor
+     * preparation was last initiated for each user-factor combination.
+     * <p>
+     * Entries automatically expire after {@link MfaConfigurationService#getMfaFactorStartRateLimitSeconds()}
+     * seconds, allowing new preparation requests once the rate limit window has passed. The cache is bounded by
+     * {@link MfaConfigurationService#getMfaFactorStartRateLimitCacheMaxWeightBytes()}.
+     */
+    private Cache<UserFactorKey, Long> factorPreparationTimestampsCache;
+    private final List<CacheStatistics> cacheStatistics = new ArrayList<>();
+
+    @Activate
+    protected synchronized void activate() {
+        logger.info("Initializing Caffeine cache for MFA auth failures...");
+        createOrUpdateCaffeineCache();
+        logger.info("Caffeine cache initialized.");
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        logger.info("Clearing Caffeine caches for MFA auth failures...");
+        failuresCache.invalidateAll();
+        failuresCache.cleanUp();
+        factorPreparationTimestampsCache.invalidateAll();
+        factorPreparationTimestampsCache.cleanUp();
+        cacheStatistics.forEach(CacheStatistics::unregister);
+        cacheStatistics.clear();
+        logger.info("Caffeine cache cleared.");
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+        if (failuresCache != null) {
+            logger.info("Updating Caffeine cache for MFA auth failures...");
+            createOrUpdateCaffeineCache();
+            logger.info("Caffeine cache updated.");
+        }
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    @Override
+    public int recordFailure(String userPath, String factorType, long now, long failuresWindowMillis, int maxFailures) {
+        AuthFailuresWindow failures = failuresCache.asMap().compute(new UserFactorKey(userPath, factorType), (key, window) -> {
+            if (window == null) {
+                window = new AuthFailuresWindow(maxFailures);
+            } else if (window.getCapacity() != maxFailures) {
+                // the configuration has changed since the window was created
+                window = window.resize(maxFailures, now, failuresWindowMillis);
+            }
+            window.addFailureAttempt(now);
+            return window;
+        });
+        return failures.getFailureAttemptsCount(now, failuresWindowMillis);
+    }
+
+    @Override
+    public int getFailureCount(String userPath, String factorType, long now, long failuresWindowMillis) {
+        AuthFailuresWindow failures = failuresCache.getIfPresent(new UserFactorKey(userPath, factorType));
+        return failures == null ? 0 : failures.getFailureAttemptsCount(now, failuresWindowMillis);
+    }
+
+    @Override
+    public void clearFailures(String userPath, String factorType) {
+        failuresCache.invalidate(new UserFactorKey(userPath, factorType));
+    }
+
+    @Override
+    public long getLastPreparation(String userPath, String factorType) {
+        Long preparation = factorPreparationTimestampsCache.getIfPresent(new UserFactorKey(userPath, factorType));
+        return preparation == null ? NO_PREPARATION : preparation;
+    }
+
+    @Override
+    public void recordPreparation(String userPath, String factorType, long now, long cooldownMillis) {
+        // the entries expire with the configured cooldown
+        factorPreparationTimestampsCache.put(new UserFactorKey(userPath, factorType), now);
+    }
+
+    @Override
+    public void clearPreparation(String userPath, String factorType) {
+        factorPreparationTimestampsCache.invalidate(new UserFactorKey(userPath, factorType));
+    }
+
+    /**
+     * Creates the caches, or reconfigures the existing ones in place when the configuration changes, so that the
+     * tracked failures and rate limits are kept.
+     */
+    private void createOrUpdateCaffeineCache() {
+        if (failuresCache == null) {
+            createCaffeineCache();
+            return;
+        }
+        updateCaffeineCache(failuresCache, mfaConfigurationService.getMfaAuthFailuresWindowSeconds(),
+                mfaConfigurationService.getMfaAuthFailuresCacheMaxWeightBytes());
+        updateCaffeineCache(factorPreparationTimestampsCache, mfaConfigurationService.getMfaFactorStartRateLimitSeconds(),
+                mfaConfigurationService.getMfaFactorStartRateLimitCacheMaxWeightBytes());
+    }
+
+    private static void updateCaffeineCache(Cache<?, ?> cache, int expireAfterWriteSeconds, long maximumWeight) {
+        // the new expiration applies to the existing entries as well (based on their last write)
+        cache.policy().expireAfterWrite().ifPresent(expiration -> expiration.setExpiresAfter(expireAfterWriteSeconds, TimeUnit.SECONDS));
+        // entries are evicted right away if the new maximum is lower than the current weight
+        cache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(maximumWeight));
+    }
+
+    private void createCaffeineCache() {
+        failuresCache = Caffeine.newBuilder()
+                .expireAfterWrite(mfaConfigurationService.getMfaAuthFailuresWindowSeconds(), TimeUnit.SECONDS)
+                .maximumWeight(mfaConfigurationService.getMfaAuthFailuresCacheMaxWeightBytes())
+                .weigher(this::weighAuthFailures)
+                .recordStats()
+                .build();
+        factorPreparationTimestampsCache = Caffeine.newBuilder()
+                .expireAfterWrite(mfaConfigurationService.getMfaFactorStartRateLimitSeconds(), TimeUnit.SECONDS)
+                .maximumWeight(mfaConfigurationService.getMfaFactorStartRateLimitCacheMaxWeightBytes())
+                .weigher((UserFactorKey key, Long timestamp) -> EntryFootprint.of(key, timestamp))
+                .recordStats()
+                .build();
+        addCacheStatistics(CacheStatistics.register("AuthFailuresCache", failuresCache));
+        addCacheStatistics(CacheStatistics.register("FactorPreparationTimestampsCache", factorPreparationTimestampsCache));
+    }
+
+    private void addCacheStatistics(CacheStatistics statistics) {
+        if (statistics != null) {
+            cacheStatistics.add(statistics);
+        }
+    }
+
+    /**
+     * Weighs the failures of a user by their footprint, unless the user has reached the limit of failed attempts: an
+     * eviction would then silently reset a lockout that is about to be applied, so such entries weigh nothing (they
+     * still expire with the time window).
+     */
+    private int weighAuthFailures(UserFactorKey key, AuthFailuresWindow window) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration != null && window.getFailureAttemptsCount(System.currentTimeMillis(),
+                configuration.getMfaAuthFailuresWindowSeconds() * 1000L) >= window.getCapacity()) {
+            return 0;
+        }
+        return EntryFootprint.of(key, window);
+    }
+}
@@ -0,0 +1,59 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of the MBeans of the module in the platform MBean server, under the {@value #DOMAIN} domain.
+ */
+final class MBeans {
+    private static final Logger logger = LoggerFactory.getLogger(MBeans.class);
+    private static final String DOMAIN = "org.jahia.modules.upa";
+
+    private MBeans() {
+    }
+
+    /**
+     * Registers an MBean, replacing any MBean registered with the same name.
+     *
+     * @param type  the type of the MBean, used in its object name
+     * @param name  the name of the MBean, used in its object name
+     * @param mBean the MBean
+     * @return the object name of the registered MBean, or {@code null} if it could not be registered
+     */
+    static ObjectName register(String type, String name, Object mBean) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(mBean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("Unable to register the MBean {} of type {}", name, type, e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters an MBean.
+     *
+     * @param objectName the object name of the MBean, ignored if {@code null}
+     */
+    static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Unable to unregister the MBean {}", objectName, e);
+        }
+    }
+}
@@ -1,28 +1,89 @@
 package org.jahia.modules.upa.mfa.impl;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jahia.modules.upa.impl.MfaConfigurationService;
 import org.jahia.params.valves.LoginUrlProvider;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
+import org.jahia.services.cache.CacheHelper;
+import org.jahia.services.render.Resource;
+import org.jahia.services.render.filter.cache.ModuleCacheProvider;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides custom login URL when MFA is enabled.
+ * <p>
+ * The fragments of the HTML output cache rendered with the login URL (e.g. through
+ * {@code org.jahia.services.render.URLGenerator#getLogin()}) get a {@value #LOGIN_URL_DEPENDENCY} cache dependency, so
+ * that only them are invalidated when the login URL changes, instead of flushing the whole output cache. The fragments
+ * cached by the versions of the module not adding this dependency are only removed by a full flush though: the whole
+ * output cache is flushed on the first change of the login URL, a marker file recording it in the data area of the
+ * bundle. The approximate number of fragments concerned is exposed through JMX ({@link MfaLoginUrlProviderMBean}).
  */
 @Component(immediate = true, service = LoginUrlProvider.class)
-public class MfaLoginUrlProvider implements LoginUrlProvider {
+public class MfaLoginUrlProvider implements LoginUrlProvider, MfaLoginUrlProviderMBean {
+    private static final Logger logger = LoggerFactory.getLogger(MfaLoginUrlProvider.class);
+    static final String LOGIN_URL_DEPENDENCY = "upa:loginUrl";
+    private static final String CURRENT_RESOURCE_ATTRIBUTE = "currentResource";
+    private static final int MAX_TRACKED_FRAGMENTS = 100_000;
+    private static final String FULL_FLUSH_DONE_MARKER = "login-url-full-flush-done";
 
-    @Reference
-    private MfaConfigurationService mfaConfigurationService;
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private String loginUrl;
+    /**
+     * The fragments rendered with the current login URL (identified by node path, template type, template and context
+     * configuration), only used to count the fragments invalidated when the login URL changes.
+     */
+    private final Set<String> dependentFragments = ConcurrentHashMap.newKeySet();
+    private volatile int lastInvalidatedFragmentsCount = -1;
+    private ObjectName objectName;
+    /**
+     * Exists once the whole output cache has been flushed, so that the fragments left all depend on the login URL.
+     */
+    private File fullFlushDoneMarker;
 
-    @Reference
-    public void setMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+    @Activate
+    protected void activate(BundleContext bundleContext) {
+        fullFlushDoneMarker = bundleContext.getDataFile(FULL_FLUSH_DONE_MARKER);
+        objectName = MBeans.register("LoginUrlProvider", "MfaLoginUrlProvider", this);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        MBeans.unregister(objectName);
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public synchronized void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
         this.mfaConfigurationService = mfaConfigurationService;
+        String newLoginUrl = StringUtils.defaultString(mfaConfigurationService.getLoginUrl());
+        if (loginUrl != null && !newLoginUrl.equals(loginUrl)) {
+            // a new login URL has been set, the fragments rendered with the previous one must be invalidated
+            invalidateDependentFragments();
+        }
+        loginUrl = newLoginUrl;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
     }
 
     @Override
     public String getLoginUrl(HttpServletRequest httpServletRequest) {
+        trackDependentFragment(httpServletRequest);
         return mfaConfigurationService.getLoginUrl();
     }
 
@@ -30,4 +91,62 @@ public class MfaLoginUrlProvider implements LoginUrlProvider {
     public boolean hasCustomLoginUrl() {
         return true;
     }
+
+    @Override
+    public int getDependentFragmentsCount() {
+        return dependentFragments.size();
+    }
+
+    @Override
+    public int getLastInvalidatedFragmentsCount() {
+        return lastInvalidatedFragmentsCount;
+    }
+
+    /**
+     * Adds the login URL dependency to the fragment being rendered, if any (the login URL is also requested outside
+     * the rendering, e.g. when redirecting unauthenticated users).
+     */
+    private void trackDependentFragment(HttpServletRequest httpServletRequest) {
+        if (httpServletRequest == null) {
+            return;
+        }
+        Object currentResource = httpServletRequest.getAttribute(CURRENT_RESOURCE_ATTRIBUTE);
+        if (currentResource instanceof Resource) {
+            Resource resource = (Resource) currentResource;
+            resource.getDependencies().add(LOGIN_URL_DEPENDENCY);
+            if (dependentFragments.size() < MAX_TRACKED_FRAGMENTS) {
+                dependentFragments.add(resource.getNodePath() + '|' + resource.getTemplateType() + '|'
+                        + resource.getTemplate() + '|' + resource.getContextConfiguration());
+            }
+        }
+    }
+
+    private void invalidateDependentFragments() {
+        int count = dependentFragments.size();
+        dependentFragments.clear();
+        if (fullFlushDoneMarker == null || !fullFlushDoneMarker.exists()) {
+            // some fragments may have been cached without the login URL dependency, by a previous version of the module
+            CacheHelper.flushOutputCaches(true);
+            markFullFlushDone();
+            lastInvalidatedFragmentsCount = -1;
+            logger.info("Login URL changed, HTML output caches flushed (only the fragments depending on it will be invalidated on the next changes)");
+            return;
+        }
+        // as URLGenerator.getLogin() may have been used to render some pages (propagated to the other cluster nodes)
+        ModuleCacheProvider.getInstance().invalidate(LOGIN_URL_DEPENDENCY, true);
+        lastInvalidatedFragmentsCount = count;
+        logger.info("Login URL changed, about {} HTML output cache fragment(s) depending on it invalidated", count);
+    }
+
+    private void markFullFlushDone() {
+        if (fullFlushDoneMarker == null) {
+            // no file system support for the bundle, the output caches will be flushed again on the next change
+            return;
+        }
+        try {
+            Files.write(fullFlushDoneMarker.toPath(), new byte[0]);
+        } catch (IOException e) {
+            logger.warn("Unable to create {}, the HTML output caches will be flushed again on the next change of the login URL", fullFlushDoneMarker, e);
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package org.jahia.modules.upa.mfa.impl;
+
+/**
+ * JMX view of the HTML output cache fragments depending on the login URL provided by {@link MfaLoginUrlProvider}.
+ * <p>
+ * The counts are approximate: the fragments are tracked on this node only, since it was started, and at most
+ * 100,000 of them.
+ */
+public interface MfaLoginUrlProviderMBean {
+
+    /**
+     * Returns the approximate number of fragments rendered with the current login URL, which get invalidated if it
+     * changes.
+     *
+     * @return the number of fragments depending on the login URL tracked on this node
+     */
+    int getDependentFragmentsCount();
+
+    /**
+     * Returns the approximate number of fragments invalidated when the login URL last changed.
+     *
+     * @return the number of invalidated fragments tracked on this node, -1 if the login URL has not changed since the
+     * module was started or if the whole output cache was flushed
+     */
+    int getLastInvalidatedFragmentsCount();
+}
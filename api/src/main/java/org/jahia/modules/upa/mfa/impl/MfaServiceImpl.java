@@ -1,12 +1,7 @@
 package org.jahia.modules.upa.mfa.impl;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import org.jahia.modules.upa.impl.MfaConfigurationService;
 import org.jahia.modules.upa.mfa.*;
-import org.jahia.services.content.JCRPropertyWrapper;
-import org.jahia.services.content.JCRTemplate;
-import org.jahia.services.content.decorator.JCRNodeDecorator;
 import org.jahia.services.content.decorator.JCRUserNode;
 import org.jahia.services.security.AuthenticationOptions;
 import org.jahia.services.security.AuthenticationRequest;
@@ -18,7 +13,6 @@ import org.osgi.service.component.annotations.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.RepositoryException;
 import javax.security.auth.login.AccountNotFoundException;
 import javax.security.auth.login.LoginException;
 import javax.servlet.http.HttpServletRequest;
@@ -26,7 +20,8 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.Serializable;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -37,8 +32,6 @@ import java.util.stream.Collectors;
 public class MfaServiceImpl implements MfaService {
     private static final Logger logger = LoggerFactory.getLogger(MfaServiceImpl.class);
     private static final String MFA_SESSION_KEY = "mfa_session";
-    private static final String MFA_SUSPENDED_USER_MIXIN = "upa:mfaSuspendedUser";
-    private static final String MFA_SUSPENDED_SINCE_PROP = "upa:mfaSuspendedSince";
     private static final String ERROR_FACTOR_TYPE_NOT_SUPPORTED = "factor_type_not_supported";
     private static final String ERROR_RATE_LIMIT_EXCEEDED = "prepare.rate_limit_exceeded";
     private static final String ERROR_FACTOR_NOT_PREPARED = "verify.factor_not_prepared";
@@ -47,54 +40,51 @@ public class MfaServiceImpl implements MfaService {
     private static final String ERROR_AUTHENTICATION_FAILED = "authentication_failed";
     private static final String ERROR_NO_SESSION = "no_active_session";
     private static final String ERROR_SUSPENDED_USER = "suspended_user";
+    private static final String ERROR_TOO_MANY_ATTEMPTS = "initiate.too_many_attempts";
+    private static final String ERROR_SERVER_BUSY = "server_busy";
     protected static final String ARG_FACTOR_TYPE = "factorType";
     protected static final String ARG_SUSPENSION_DURATION_IN_SECONDS = "suspensionDurationInSeconds";
+    private static final String EMAIL_PROPERTY = "j:email";
+    private static final String PREFERRED_LANGUAGE_PROPERTY = "preferredLanguage";
+    // errors without arguments, shared by all the sessions (MfaError is immutable)
+    private static final MfaError AUTHENTICATION_FAILED_ERROR = new MfaError(ERROR_AUTHENTICATION_FAILED);
+    private static final MfaError NO_SESSION_ERROR = new MfaError(ERROR_NO_SESSION);
+    private static final MfaError USER_NOT_FOUND_ERROR = new MfaError(ERROR_USER_NOT_FOUND);
+    private static final MfaError SERVER_BUSY_ERROR = new MfaError(ERROR_SERVER_BUSY);
 
     private JahiaUserManagerService userManagerService;
     private FactorRegistry factorRegistry;
+    private UserSuspensionCache userSuspensionCache;
+    private UserProfileCache userProfileCache;
+    private SuspensionWriter suspensionWriter;
+    private PreparationRateLimiter preparationRateLimiter;
+    private InitiationThrottle initiationThrottle;
+    private AdmissionController admissionController;
+    private UnknownUserFilter unknownUserFilter;
+    private volatile MfaSuspensionStore suspensionStore;
     private volatile MfaConfigurationService mfaConfigurationService;
     private AuthenticationService authenticationService;
-
     /**
-     * A thread-safe cache used for storing authentication failure details of users.
-     * <p>
-     * This cache maps user paths ({@link JCRNodeDecorator#getPath()} to {@link AuthFailuresDetails} objects, which track
-     * authentication failure attempts grouped by Multi-Factor Authentication (MFA) provider type.
-     * <p>
-     * Primarily leveraged to verify if a user has reached the defined limit of failed authentication attempts within
-     * a given time window, enabling further actions such as user suspension.
+     * The enabled factors (trimmed, without blanks), computed once per configuration.
      */
-    private volatile Cache<String, AuthFailuresDetails> failuresCache;
-
+    private volatile List<String> configuredFactors = Collections.emptyList();
     /**
-     * A thread-safe cache storing the timestamp (in milliseconds) when an MFA factor
-     * preparation was last initiated for each user-factor combination.
-     * <p>
-     * This cache is used to enforce rate limiting on factor preparation requests, preventing
-     * users from generating new verification codes too frequently. The cache key combines
-     * the user path, factor type, and provider hash code.
-     * <p>
-     * Entries automatically expire after {@link MfaConfigurationService#getMfaFactorStartRateLimitSeconds()}
-     * seconds, allowing new preparation requests once the rate limit window has passed.
+     * The errors of the registered factors, created once per factor type.
      */
-    private volatile Cache<String, Long> factorPreparationTimestampsCache;
-
-    @Activate
-    protected void activate() {
-        logger.info("Initializing Caffeine cache for MFA auth failures...");
-        createCaffeineCache();
-        logger.info("Caffeine cache initialized.");
-    }
+    private final Map<String, FactorErrors> factorErrors = new ConcurrentHashMap<>();
+    private volatile MfaError suspendedUserError;
+    /**
+     * The loaders of the user caches, created once rather than on each lookup.
+     */
+    private final Function<String, MfaUserDetails> userProfileLoader = this::loadUserProfile;
+    private final Function<String, Long> suspendedUntilLoader = this::loadSuspendedUntil;
 
-    @Deactivate
-    protected void deactivate() {
-        logger.info("Clearing Caffeine caches for MFA auth failures...");
-        failuresCache.invalidateAll();
-        failuresCache.cleanUp();
-        factorPreparationTimestampsCache.invalidateAll();
-        factorPreparationTimestampsCache.cleanUp();
-        logger.info("Caffeine cache cleared.");
-    }
+    /**
+     * The store of the recent authentication failures of the users (to suspend the users reaching the defined limit of
+     * failed authentication attempts within a given time window) and of their last factor preparations (to prevent
+     * users from generating new verification codes too frequently).
+     */
+    private volatile MfaRateLimitStore rateLimitStore;
 
     @Reference
     public void setUserManagerService(JahiaUserManagerService userManagerService) {
@@ -106,6 +96,67 @@ public class MfaServiceImpl implements MfaService {
         this.factorRegistry = factorRegistry;
     }
 
+    @Reference
+    public void setUserSuspensionCache(UserSuspensionCache userSuspensionCache) {
+        this.userSuspensionCache = userSuspensionCache;
+    }
+
+    @Reference
+    public void setUserProfileCache(UserProfileCache userProfileCache) {
+        this.userProfileCache = userProfileCache;
+    }
+
+    @Reference
+    public void setSuspensionWriter(SuspensionWriter suspensionWriter) {
+        this.suspensionWriter = suspensionWriter;
+    }
+
+    @Reference
+    public void setPreparationRateLimiter(PreparationRateLimiter preparationRateLimiter) {
+        this.preparationRateLimiter = preparationRateLimiter;
+    }
+
+    @Reference
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    @Reference
+    public void setUnknownUserFilter(UnknownUserFilter unknownUserFilter) {
+        this.unknownUserFilter = unknownUserFilter;
+    }
+
+    @Reference
+    public void setInitiationThrottle(InitiationThrottle initiationThrottle) {
+        this.initiationThrottle = initiationThrottle;
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    public void setSuspensionStore(MfaSuspensionStore suspensionStore) {
+        this.suspensionStore = suspensionStore;
+        if (userSuspensionCache != null) {
+            // the suspensions may be different in the new store
+            userSuspensionCache.invalidateAll();
+        }
+    }
+
+    public void unsetSuspensionStore(MfaSuspensionStore suspensionStore) {
+        if (this.suspensionStore == suspensionStore) {
+            this.suspensionStore = null;
+        }
+    }
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    public void setRateLimitStore(MfaRateLimitStore rateLimitStore) {
+        this.rateLimitStore = rateLimitStore;
+    }
+
+    public void unsetRateLimitStore(MfaRateLimitStore rateLimitStore) {
+        if (this.rateLimitStore == rateLimitStore) {
+            this.rateLimitStore = null;
+        }
+    }
+
     @Reference(
             policy = ReferencePolicy.DYNAMIC,
             policyOption = ReferencePolicyOption.GREEDY,
@@ -113,9 +164,7 @@ public class MfaServiceImpl implements MfaService {
     )
     public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
         this.mfaConfigurationService = mfaConfigurationService;
-        logger.info("Updating Caffeine cache for MFA auth failures...");
-        createCaffeineCache();
-        logger.info("Caffeine cache updated.");
+        this.configuredFactors = parseFactors(mfaConfigurationService.getMfaEnabledFactors());
     }
 
     public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
@@ -131,20 +180,17 @@ public class MfaServiceImpl implements MfaService {
 
     @Override
     public List<String> getAvailableFactors() {
-        String[] enabledFactorsConfig = mfaConfigurationService.getMfaEnabledFactors();
-        if (enabledFactorsConfig == null || enabledFactorsConfig.length == 0) {
-            return Collections.emptyList(); // Return an empty list if no factors configured
+        List<String> factors = configuredFactors;
+        // Filter to only include factors that have registered providers, the (immutable) configured list being
+        // returned as is in the usual case where all of them are registered
+        for (String factorType : factors) {
+            if (factorRegistry.lookupProvider(factorType) == null) {
+                return factors.stream()
+                        .filter(registeredFactorType -> factorRegistry.lookupProvider(registeredFactorType) != null)
+                        .collect(Collectors.toUnmodifiableList());
+            }
         }
-
-        List<String> configuredFactors = Arrays.stream(enabledFactorsConfig)
-                .filter(factor -> factor != null && !factor.trim().isEmpty())
-                .map(String::trim)
-                .collect(Collectors.toList());
-
-        // Filter to only include factors that have registered providers
-        return configuredFactors.stream()
-                .filter(factorType -> factorRegistry.lookupProvider(factorType) != null)
-                .collect(Collectors.toList());
+        return factors;
     }
 
     @Override
@@ -158,30 +204,64 @@ public class MfaServiceImpl implements MfaService {
 
         logger.info("Initiating MFA for user: {}", username);
 
+        // rejected before checking the credentials, which is what makes credential stuffing expensive
+        long retryAfterMillis = throttleInitiation(request);
+        if (retryAfterMillis > 0) {
+            logger.warn("Too many MFA initiations from {}, the initiation for user {} is rejected", request.getRemoteAddr(), username);
+            MfaSession errorSession = createNoSessionError();
+            errorSession.setError(new MfaError(ERROR_TOO_MANY_ATTEMPTS,
+                    Map.of("nextRetryInSeconds", String.valueOf(toRetrySeconds(retryAfterMillis)))));
+            return errorSession;
+        }
+
+        if (unknownUserFilter.isUnknown(siteKey, username)) {
+            // answered like an actual lookup, so that the known unknown users cannot be told apart
+            unknownUserFilter.delayAsLookup();
+            logger.warn("Unable to authenticate the user: {}", username);
+            MfaSession errorSession = createNoSessionError();
+            errorSession.setError(AUTHENTICATION_FAILED_ERROR);
+            return errorSession;
+        }
+
+        // the password check is the most CPU-intensive step, only a limited number of them run at the same time
+        if (!admissionController.acquire(AdmissionController.Priority.LOW)) {
+            logger.warn("Too many concurrent MFA operations, the initiation for user {} is rejected", username);
+            MfaSession errorSession = createNoSessionError();
+            errorSession.setError(SERVER_BUSY_ERROR);
+            return errorSession;
+        }
         AuthenticationRequest authenticationRequest = new AuthenticationRequest(username, password, siteKey, true);
         JahiaUser user;
+        long lookupStart = System.nanoTime();
         try {
             user = authenticationService.getUserFromCredentials(authenticationRequest);
         } catch (IllegalArgumentException | LoginException e) {
+            if (e instanceof AccountNotFoundException) {
+                unknownUserFilter.addUnknown(siteKey, username, System.nanoTime() - lookupStart);
+            }
             logger.warn("Unable to authenticate the user: {}", username);
             logger.debug("Authentication error", e);
             MfaSession errorSession = createNoSessionError();
-            errorSession.setError(new MfaError(ERROR_AUTHENTICATION_FAILED));
+            errorSession.setError(AUTHENTICATION_FAILED_ERROR);
             return errorSession;
+        } finally {
+            admissionController.release();
         }
 
         HttpSession httpSession = request.getSession();
-        Locale userLocale;
-        String preferredLanguage = user.getProperty("preferredLanguage");
-        userLocale = preferredLanguage != null ? new Locale(preferredLanguage) : Locale.ENGLISH;
+        // the authenticated user already holds everything needed, no need to look it up again
+        MfaUserDetails userProfile = createUserProfile(user.getUserKey(), user.getName(),
+                user.getProperty(EMAIL_PROPERTY), user.getProperty(PREFERRED_LANGUAGE_PROPERTY));
+        userProfileCache.putProfile(userProfile);
+        MfaUserDetails userDetails = withSuspensionState(userProfile);
         List<String> requiredFactors = getAvailableFactors(); // for now just use all available factors
-        MfaSessionContext sessionContext = new MfaSessionContext(username, userLocale, siteKey, rememberMe, requiredFactors);
+        MfaSessionContext sessionContext = new MfaSessionContext(username, userProfile.getPath(), userDetails.getPreferredLanguage(), siteKey, rememberMe, requiredFactors);
         MfaSession session = new MfaSession(sessionContext);
 
         // Validate user not suspended
-        Integer suspensionDuration = getUserSuspension(user.getUserKey());
+        Integer suspensionDuration = getUserSuspension(userDetails);
         if (suspensionDuration != null) {
-            session.setError(new MfaError(ERROR_SUSPENDED_USER, Map.of(ARG_SUSPENSION_DURATION_IN_SECONDS, suspensionDuration.toString())));
+            session.setError(getSuspendedUserError(suspensionDuration));
             return session;
         }
 
@@ -192,9 +272,7 @@ public class MfaServiceImpl implements MfaService {
         if (session.areAllRequiredFactorsCompleted()) {
             // special case when there is no required factor configured (the 2nd factor is disabled)
             logger.info("No required factors to verify for context: {}, proceed with authentication", session.getContext());
-            JCRUserNode jcrUserNode = resolveUserNode(session);
-            authenticateUser(session, jcrUserNode, request, response);
-            failuresCache.invalidate(jcrUserNode.getPath());
+            authenticateUser(session, userDetails, request, response);
         } else {
             logger.info("MFA session initiated for user: {}", username);
         }
@@ -203,45 +281,119 @@ public class MfaServiceImpl implements MfaService {
 
     @Override
     public MfaSession prepareFactor(String factorType, HttpServletRequest request, HttpServletResponse response) {
+        return prepareFactor(factorType, null, request, response);
+    }
+
+    @Override
+    public MfaSession prepareFactor(String factorType, String idempotencyKey, HttpServletRequest request, HttpServletResponse response) {
         MfaSession session = getSessionOrCreateError(request);
         if (session.hasError()) return session;
 
         MfaFactorState factorState = session.getOrCreateFactorState(factorType);
-        factorState.setError(null);
-
-        try {
-            ValidationResult validation = performCommonValidation(session, factorType, factorState);
-            if (validation == null) return session;
-
-            String userPath = validation.userNode.getPath();
-            String cacheKey = getCacheKey(userPath, validation.provider);
-            Long startedPrepareTime = factorPreparationTimestampsCache.getIfPresent(cacheKey);
-            long now = System.currentTimeMillis();
-
-            if (startedPrepareTime != null) {
-                long nextRetryInSeconds = mfaConfigurationService.getMfaFactorStartRateLimitSeconds() - (now - startedPrepareTime) / 1000;
-                Map<String, String> arguments = Map.of(
-                        "nextRetryInSeconds", String.valueOf(nextRetryInSeconds),
-                        ARG_FACTOR_TYPE, factorType,
-                        "user", validation.userNode.getName()
-                );
-                factorState.setError(new MfaError(ERROR_RATE_LIMIT_EXCEEDED, arguments));
-                logger.debug("Preparation rate limit exceeded for the factor {} for session context: {}", factorType, session.getContext());
+        // concurrent preparations of the factor in the same session (e.g. a double-click on "resend") are run one at a
+        // time, the ones waiting for a preparation answering with its outcome instead of sending several codes, only
+        // the last of which would be valid
+        int preparationCount = factorState.getPreparationCount();
+        synchronized (factorState) {
+            if (factorState.getPreparationCount() != preparationCount) {
+                logger.debug("Factor {} prepared concurrently, answering with its outcome for context: {}", factorType, session.getContext());
                 return session;
             }
+            factorState.setError(null);
+
+            // also for the retries, so that a user suspended in the meantime is not answered with the previous result
+            MfaFactorProvider provider = resolveProvider(factorType, factorState);
+            if (provider == null) return session;
+            MfaUserDetails user = performCommonValidation(session, provider);
+            if (user == null) return session;
+
+            if (idempotencyKey != null && idempotencyKey.equals(factorState.getIdempotencyKey())) {
+                // retry of a completed preparation, answered with its result without preparing the factor again
+                factorState.setError(factorState.getIdempotentError());
+                logger.debug("Factor {} already prepared with the same idempotency key for context: {}", factorType, session.getContext());
+                return session;
+            }
+
+            boolean completed = prepareFactor(session, factorType, factorState, provider, user, request, response);
+            factorState.incrementPreparationCount();
+            if (idempotencyKey != null && completed) {
+                factorState.setIdempotencyKey(idempotencyKey, factorState.getError());
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Prepares a factor once validated, unless the rate limits of the preparations are exceeded.
+     *
+     * @return true if the factor provider was called, false if the preparation was rejected by the rate limits
+     */
+    private boolean prepareFactor(MfaSession session, String factorType, MfaFactorState factorState, MfaFactorProvider provider, MfaUserDetails user,
+                                             HttpServletRequest request, HttpServletResponse response) {
+        String userPath = user.getPath();
+        long startedPrepareTime = rateLimitStore.getLastPreparation(userPath, factorType);
+        long now = System.currentTimeMillis();
+        long cooldownMillis = mfaConfigurationService.getMfaFactorStartRateLimitSeconds() * 1000L;
+
+        if (startedPrepareTime != MfaRateLimitStore.NO_PREPARATION && now - startedPrepareTime < cooldownMillis) {
+            long nextRetryInSeconds = mfaConfigurationService.getMfaFactorStartRateLimitSeconds() - (now - startedPrepareTime) / 1000;
+            factorState.setError(createRateLimitExceededError(factorType, user, nextRetryInSeconds));
+            logger.debug("Preparation rate limit exceeded for the factor {} for session context: {}", factorType, session.getContext());
+            return false;
+        }
 
+        // the budgets of the user, client IP, site and of the whole platform, checked last as they are consumed
+        long waitMillis = preparationRateLimiter.tryAcquire(userPath, request.getRemoteAddr(), session.getContext().getSiteKey(), now);
+        if (waitMillis > 0) {
+            long nextRetryInSeconds = toRetrySeconds(waitMillis);
+            factorState.setError(createRateLimitExceededError(factorType, user, nextRetryInSeconds));
+            logger.debug("Preparation budget exhausted for the factor {} for session context: {}", factorType, session.getContext());
+            return false;
+        }
+
+        try {
             factorState.setPrepared(false);
-            PreparationContext preparationContext = new PreparationContext(session.getContext(), request, response);
-            Serializable preparationResult = validation.provider.prepare(preparationContext);
+            factorState.setDeliveryStatusListener(null);
+            factorState.setDeliveryStatus(null);
+            HttpSession httpSession = request.getSession(false);
+            if (httpSession != null) {
+                factorState.setDeliveryStatusListener(() -> updateHttpSession(httpSession, session));
+            }
+            PreparationContext preparationContext = new PreparationContext(session.getContext(), user, factorState, request, response);
+            Serializable preparationResult = provider.prepare(preparationContext);
             factorState.setPreparationResult(preparationResult);
-            factorPreparationTimestampsCache.put(cacheKey, now);
+            rateLimitStore.recordPreparation(userPath, factorType, now, cooldownMillis);
             factorState.setPrepared(true);
             logger.info("Factor {} preparation completed for context: {}", factorType, session.getContext());
         } catch (MfaException e) {
+            // nothing was sent, the budgets are not consumed
+            preparationRateLimiter.release(userPath, request.getRemoteAddr(), session.getContext().getSiteKey());
             factorState.setError(new MfaError(e.getCode(), e.getArguments()));
             logger.error("Factor {} preparation failed for context: {}", factorType, session.getContext(), e);
         }
-        return session;
+        return true;
+    }
+
+    /**
+     * Sets the MFA session again in the HTTP session after it was updated outside of a request (e.g. the delivery
+     * status of a factor), so that the servlet containers persisting or replicating the sessions get the update.
+     */
+    private static void updateHttpSession(HttpSession httpSession, MfaSession session) {
+        try {
+            // unless replaced meanwhile by a new MFA session
+            if (httpSession.getAttribute(MFA_SESSION_KEY) == session) {
+                httpSession.setAttribute(MFA_SESSION_KEY, session);
+            }
+        } catch (IllegalStateException e) {
+            logger.debug("HTTP session invalidated, the MFA session is no longer updated");
+        }
+    }
+
+    /**
+     * Converts a delay into the number of seconds to wait before retrying, rounded up (without overflowing).
+     */
+    private static long toRetrySeconds(long delayMillis) {
+        return delayMillis <= 0 ? 1 : (delayMillis - 1) / 1000 + 1;
     }
 
     @Override
@@ -252,39 +404,49 @@ public class MfaServiceImpl implements MfaService {
         MfaFactorState factorState = session.getOrCreateFactorState(factorType);
         factorState.setError(null);
 
+        // completes a flow in progress, hence admitted before the new initiations
+        if (!admissionController.acquire(AdmissionController.Priority.HIGH)) {
+            logger.warn("Too many concurrent MFA operations, the verification is rejected for context: {}", session.getContext());
+            factorState.setError(SERVER_BUSY_ERROR);
+            return session;
+        }
         try {
             if (!factorState.isPrepared()) {
-                factorState.setError(new MfaError(ERROR_FACTOR_NOT_PREPARED, Map.of(ARG_FACTOR_TYPE, factorType)));
+                factorState.setError(getFactorErrors(factorType).notPrepared);
                 return session;
             }
 
-            ValidationResult validation = performCommonValidation(session, factorType, factorState);
-            if (validation == null) return session;
+            MfaFactorProvider provider = resolveProvider(factorType, factorState);
+            if (provider == null) return session;
+            MfaUserDetails user = performCommonValidation(session, provider);
+            if (user == null) return session;
 
-            String userPath = validation.userNode.getPath();
+            String userPath = user.getPath();
             Serializable preparationResult = factorState.getPreparationResult();
             VerificationContext verificationContext = new VerificationContext(
-                    session.getContext(), preparationResult, verificationData, httpServletRequest, httpServletResponse
+                    session.getContext(), user, preparationResult, verificationData, httpServletRequest, httpServletResponse
             );
 
-            if (validation.provider.verify(verificationContext)) {
+            if (provider.verify(verificationContext)) {
                 factorState.setVerified(true);
-                factorPreparationTimestampsCache.invalidate(getCacheKey(userPath, validation.provider));
+                rateLimitStore.clearPreparation(userPath, factorType);
                 logger.info("Factor {} verified successfully for context: {}", factorType, session.getContext());
             } else {
-                trackVerificationFailure(userPath, validation.provider);
-                factorState.setError(new MfaError(ERROR_VERIFICATION_FAILED, Map.of(ARG_FACTOR_TYPE, factorType)));
+                trackVerificationFailure(userPath, provider);
+                factorState.setError(getFactorErrors(factorType).verificationFailed);
                 return session;
             }
 
             if (session.areAllRequiredFactorsCompleted()) {
                 logger.info("All MFA factors completed for context: {}, proceed with authentication", session.getContext());
-                authenticateUser(session, validation.userNode, httpServletRequest, httpServletResponse);
-                failuresCache.invalidate(userPath);
+                authenticateUser(session, user, httpServletRequest, httpServletResponse);
+                clearAuthFailures(userPath, session);
             }
         } catch (MfaException e) {
             factorState.setError(new MfaError(e.getCode(), e.getArguments()));
             logger.error("Factor {} verification failed for context: {}", factorType, session.getContext(), e);
+        } finally {
+            admissionController.release();
         }
 
         return session;
@@ -312,20 +474,12 @@ public class MfaServiceImpl implements MfaService {
     public MfaSession createNoSessionError() {
         MfaSessionContext sessionContext = new MfaSessionContext("unknown", Locale.getDefault(), null, true, getAvailableFactors());
         MfaSession session = new MfaSession(sessionContext);
-        session.setError(new MfaError(ERROR_NO_SESSION));
+        session.setError(NO_SESSION_ERROR);
         return session;
     }
 
     // ===== PRIVATE HELPER METHODS =====
 
-    private void createCaffeineCache() {
-        failuresCache = Caffeine.newBuilder()
-                .expireAfterWrite(mfaConfigurationService.getMfaAuthFailuresWindowSeconds(), TimeUnit.SECONDS)
-                .build();
-        factorPreparationTimestampsCache = Caffeine.newBuilder()
-                .expireAfterWrite(mfaConfigurationService.getMfaFactorStartRateLimitSeconds(), TimeUnit.SECONDS).build();
-    }
-
     private MfaSession getSessionOrCreateError(HttpServletRequest request) {
         MfaSession session = getMfaSession(request);
         if (session == null) {
@@ -335,51 +489,95 @@ public class MfaServiceImpl implements MfaService {
         return session;
     }
 
-    private ValidationResult performCommonValidation(MfaSession session, String factorType, MfaFactorState factorState) {
-        MfaFactorProvider provider = resolveProvider(factorType);
-        if (provider == null) {
-            factorState.setError(new MfaError(ERROR_FACTOR_TYPE_NOT_SUPPORTED, Map.of(ARG_FACTOR_TYPE, factorType)));
-            return null;
+    /**
+     * Counts an initiation attempt of the client, unless already counted (and allowed) by the {@link UpaRequestFilter}.
+     *
+     * @return 0 if the initiation is allowed, otherwise the delay (in milliseconds) after which it should be retried
+     */
+    private long throttleInitiation(HttpServletRequest request) {
+        if (request.getAttribute(InitiationThrottle.COUNTED_ATTRIBUTE) != null) {
+            // the next initiations of the same request (if any) are counted here
+            request.removeAttribute(InitiationThrottle.COUNTED_ATTRIBUTE);
+            return 0;
         }
+        return initiationThrottle.tryAcquire(request.getRemoteAddr(), System.currentTimeMillis());
+    }
 
-        JCRUserNode userNode = resolveUserNode(session);
-        if (userNode == null) {
-            session.setError(new MfaError(ERROR_USER_NOT_FOUND));
+    /**
+     * Resolves the user of the MFA session and checks that it is not suspended.
+     *
+     * @return the user, or null if the MFA operation cannot proceed (the error being set in the session)
+     */
+    private MfaUserDetails performCommonValidation(MfaSession session, MfaFactorProvider provider) {
+        MfaUserDetails user = resolveUser(session);
+        if (user == null) {
+            session.setError(USER_NOT_FOUND_ERROR);
             return null;
         }
 
-        String userPath = userNode.getPath();
-        Integer suspensionDuration = getSuspensionDuration(userPath, provider, session);
+        Integer suspensionDuration = getSuspensionDuration(user, provider, session);
         if (suspensionDuration != null) {
-            session.setError(new MfaError(ERROR_SUSPENDED_USER, Map.of(ARG_SUSPENSION_DURATION_IN_SECONDS, suspensionDuration.toString())));
+            session.setError(getSuspendedUserError(suspensionDuration));
             return null;
         }
 
-        return new ValidationResult(provider, userNode);
+        return user;
     }
 
-    private MfaFactorProvider resolveProvider(String factorType) {
+    private MfaFactorProvider resolveProvider(String factorType, MfaFactorState factorState) {
         MfaFactorProvider provider = factorRegistry.lookupProvider(factorType);
         if (provider == null) {
             logger.warn("Factor type not supported: {}", factorType);
+            factorState.setError(new MfaError(ERROR_FACTOR_TYPE_NOT_SUPPORTED, Map.of(ARG_FACTOR_TYPE, factorType)));
         }
         return provider;
     }
 
-    private JCRUserNode resolveUserNode(MfaSession session) {
-        JCRUserNode user = userManagerService.lookupUser(session.getContext().getUserId());
-        if (user == null) {
-            logger.warn("User not found: {}", session.getContext().getUserId());
+    /**
+     * Resolves the user of an MFA session once for the whole MFA operation, its profile being read from the
+     * {@link UserProfileCache} and its suspension state from the {@link UserSuspensionCache}.
+     */
+    private MfaUserDetails resolveUser(MfaSession session) {
+        String userPath = session.getContext().getUserPath();
+        // the user authenticated on initiation, looked up by path as other users may have the same name
+        MfaUserDetails userProfile = userPath != null ? userProfileCache.getProfile(userPath, userProfileLoader) : null;
+        if (userProfile == null) {
+            logger.warn("User not found: {}", userPath != null ? userPath : session.getContext().getUserId());
+            return null;
         }
-        return user;
+        return withSuspensionState(userProfile);
     }
 
-    private void authenticateUser(MfaSession session, JCRUserNode jcrUserNode, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+    private MfaUserDetails loadUserProfile(String userPath) {
+        JCRUserNode userNode = userManagerService.lookupUserByPath(userPath);
+        if (userNode == null) {
+            return null;
+        }
+        return createUserProfile(userNode.getPath(), userNode.getName(),
+                userNode.getPropertyAsString(EMAIL_PROPERTY), userNode.getPropertyAsString(PREFERRED_LANGUAGE_PROPERTY));
+    }
+
+    private static MfaUserDetails createUserProfile(String userPath, String name, String email, String preferredLanguage) {
+        Locale locale = preferredLanguage != null ? new Locale(preferredLanguage) : Locale.ENGLISH;
+        return new MfaUserDetails(userPath, name, email, locale, UserSuspensionCache.NOT_SUSPENDED);
+    }
+
+    private MfaUserDetails withSuspensionState(MfaUserDetails userProfile) {
+        Long suspendedUntil = userSuspensionCache.getSuspendedUntil(userProfile.getPath(), suspendedUntilLoader);
+        if (suspendedUntil == null) {
+            // In case of error checking suspension, assume user is NOT suspended to allow them to proceed
+            // This is safer than blocking legitimate users
+            return userProfile;
+        }
+        return userProfile.withSuspendedUntil(suspendedUntil);
+    }
+
+    private void authenticateUser(MfaSession session, MfaUserDetails user, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         AuthenticationOptions authOptions = AuthenticationOptions.Builder.withDefaults()
                 .shouldRememberMe(session.getContext().shouldRememberMe())
                 .build();
         try {
-            authenticationService.authenticate(jcrUserNode.getPath(), authOptions, httpServletRequest, httpServletResponse);
+            authenticationService.authenticate(user.getPath(), authOptions, httpServletRequest, httpServletResponse);
         } catch (InvalidSessionLoginException e) {
             throw new IllegalStateException("Invalid session login", e);
         } catch (AccountNotFoundException e) {
@@ -387,22 +585,22 @@ public class MfaServiceImpl implements MfaService {
         }
     }
 
-    private Integer getUserSuspension(String userNodePath) {
-        if (isUserSuspended(userNodePath)) {
-            logger.warn("User {} is suspended", userNodePath);
+    private Integer getUserSuspension(MfaUserDetails user) {
+        if (user.isSuspended()) {
+            logger.warn("User {} is suspended", user.getPath());
             return getSuspensionDuration();
         }
         return null;
     }
 
-    private Integer getSuspensionDuration(String userPath, MfaFactorProvider provider, MfaSession session) {
-        Integer suspensionDuration = getUserSuspension(userPath);
+    private Integer getSuspensionDuration(MfaUserDetails user, MfaFactorProvider provider, MfaSession session) {
+        Integer suspensionDuration = getUserSuspension(user);
         if (suspensionDuration != null) {
             return suspensionDuration;
         }
 
-        if (hasReachedAuthFailuresCountLimit(userPath, provider)) {
-            suspendUser(userPath, provider, session);
+        if (hasReachedAuthFailuresCountLimit(user.getPath(), provider)) {
+            suspendUser(user.getPath(), provider, session);
             return getSuspensionDuration();
         }
 
@@ -414,57 +612,45 @@ public class MfaServiceImpl implements MfaService {
         return mfaConfigurationService.getMfaUserTemporarySuspensionSeconds();
     }
 
-    private boolean isUserSuspended(String userPath) {
+    /**
+     * Loads the suspension end of a user from the {@link MfaSuspensionStore}, when it is not known by the
+     * {@link UserSuspensionCache} yet.
+     *
+     * @param userPath the path of the user node
+     * @return the epoch (in milliseconds) until which the user is suspended, {@link UserSuspensionCache#NOT_SUSPENDED}
+     * if the user is not suspended, or {@code null} if the store could not be read
+     */
+    private Long loadSuspendedUntil(String userPath) {
+        Long pendingSuspendedUntil = suspensionWriter.getPendingSuspendedUntil(userPath);
+        if (pendingSuspendedUntil != null) {
+            // suspended on this node, but not persisted yet
+            return pendingSuspendedUntil;
+        }
         try {
-            return JCRTemplate.getInstance().doExecuteWithSystemSession(session -> {
-                JCRUserNode userNode = (JCRUserNode) session.getNode(userPath);
-                if (!userNode.hasProperty(MFA_SUSPENDED_SINCE_PROP)) {
-                    logger.debug("User {} is not suspended", userNode);
-                    return false;
-                }
-                JCRPropertyWrapper suspendedSinceProperty = userNode.getProperty(MFA_SUSPENDED_SINCE_PROP);
-                Calendar suspendedUntil = suspendedSinceProperty.getDate();
-                suspendedUntil.add(Calendar.SECOND, mfaConfigurationService.getMfaUserTemporarySuspensionSeconds());
-                // check if the suspension has expired
-                if (suspendedUntil.compareTo(Calendar.getInstance()) > 0) {
-                    logger.debug("User {} is suspended until {}", userNode, suspendedUntil);
-                    return true;
-                }
-                logger.debug("User {} is no longer suspended, removing its suspension in the JCR", userNode);
-                userNode.removeMixin(MFA_SUSPENDED_USER_MIXIN);
-                suspendedSinceProperty.remove();
-                session.save();
-                return false;
-            });
-        } catch (RepositoryException e) {
+            long suspendedUntil = suspensionStore.getSuspendedUntil(userPath);
+            // check if the suspension has expired (expired suspensions are purged by the ExpiredSuspensionsSweeper)
+            if (suspendedUntil > System.currentTimeMillis()) {
+                logger.debug("User {} is suspended until {}", userPath, suspendedUntil);
+                return suspendedUntil;
+            }
+            logger.debug("User {} is not suspended", userPath);
+            return UserSuspensionCache.NOT_SUSPENDED;
+        } catch (IllegalStateException e) {
             logger.warn("Failed to check if user {} is suspended", userPath, e);
-            // In case of error checking suspension, assume user is NOT suspended to allow them to proceed
-            // This is safer than blocking legitimate users
-            return false;
+            return null;
         }
     }
 
     private void suspendUser(String userPath, MfaFactorProvider provider, MfaSession session) {
-        // suspend the user in the JCR
-        try {
-            JCRTemplate.getInstance().doExecuteWithSystemSession(jcrSession -> {
-                Calendar suspendedSince = Calendar.getInstance();
-                JCRUserNode userNode = (JCRUserNode) jcrSession.getNode(userPath);
-                logger.debug("Marking user {} as suspended...", userNode);
-                userNode.addMixin(MFA_SUSPENDED_USER_MIXIN);
-                userNode.setProperty(MFA_SUSPENDED_SINCE_PROP, suspendedSince);
-                logger.debug("Property '{}' set to {}", MFA_SUSPENDED_SINCE_PROP, suspendedSince);
-                jcrSession.save();
-                return null;
-            });
-        } catch (RepositoryException e) {
-            logger.error("Failed to mark user {} as suspended", userPath, e);
-            // Don't throw - the suspension error will still be returned to the user
-        }
+        long suspendedUntil = System.currentTimeMillis() + mfaConfigurationService.getMfaUserTemporarySuspensionSeconds() * 1000L;
+        // the suspension applies immediately, it gets persisted in the suspension store in the background
+        logger.debug("Marking user {} as suspended until {}...", userPath, suspendedUntil);
+        userSuspensionCache.markSuspended(userPath, suspendedUntil);
+        suspensionWriter.suspend(userPath, suspendedUntil);
 
         // clear the caches for that suspended user:
-        failuresCache.invalidate(userPath); // no need to track failures anymore
-        factorPreparationTimestampsCache.invalidate(getCacheKey(userPath, provider));
+        clearAuthFailures(userPath, session); // no need to track failures anymore
+        rateLimitStore.clearPreparation(userPath, provider.getFactorType());
 
         // remove the preparation result from their session
         String factorType = provider.getFactorType();
@@ -472,46 +658,86 @@ public class MfaServiceImpl implements MfaService {
     }
 
     private void trackVerificationFailure(String userNodePath, MfaFactorProvider provider) {
-        AuthFailuresDetails tracker = failuresCache.getIfPresent(userNodePath);
-        if (tracker == null) {
-            tracker = new AuthFailuresDetails();
-        }
         String factorType = provider.getFactorType();
-        tracker.addFailureAttempt(factorType);
-        if (tracker.getFailureAttemptsCount(factorType) > mfaConfigurationService.getMfaMaxAuthFailuresBeforeLock()) {
-            logger.warn("User {} has failed to authenticate {} times in a row", userNodePath, tracker.getFailureAttemptsCount(factorType));
+        int maxAuthFailures = mfaConfigurationService.getMfaMaxAuthFailuresBeforeLock();
+        long authFailuresWindowMillis = mfaConfigurationService.getMfaAuthFailuresWindowSeconds() * 1000L;
+        int failuresCount = rateLimitStore.recordFailure(userNodePath, factorType, System.currentTimeMillis(), authFailuresWindowMillis, maxAuthFailures);
+        if (failuresCount >= maxAuthFailures) {
+            logger.warn("User {} has failed to authenticate {} times in a row", userNodePath, failuresCount);
         } else {
-            logger.debug("User {} has failed to authenticate {} times in a row", userNodePath, tracker.getFailureAttemptsCount(factorType));
+            logger.debug("User {} has failed to authenticate {} times in a row", userNodePath, failuresCount);
         }
-        failuresCache.put(userNodePath, tracker);
     }
 
     private boolean hasReachedAuthFailuresCountLimit(String userNodePath, MfaFactorProvider provider) {
-        AuthFailuresDetails tracker = failuresCache.getIfPresent(userNodePath);
-        if (tracker == null) {
+        int failuresCount = rateLimitStore.getFailureCount(userNodePath, provider.getFactorType(), System.currentTimeMillis(),
+                mfaConfigurationService.getMfaAuthFailuresWindowSeconds() * 1000L);
+        if (failuresCount == 0) {
             logger.debug("User {} has not failed to authenticate yet", userNodePath);
             return false;
         }
-        String factorType = provider.getFactorType();
-        if (tracker.removeAttemptsOutsideWindow(factorType, mfaConfigurationService.getMfaAuthFailuresWindowSeconds() * 1000L)) {
-            logger.debug("Expired timestamps removed for user {}", userNodePath);
-            failuresCache.put(userNodePath, tracker);
+        return failuresCount >= mfaConfigurationService.getMfaMaxAuthFailuresBeforeLock();
+    }
+
+    private void clearAuthFailures(String userPath, MfaSession session) {
+        for (String factorType : session.getContext().getRequiredFactors()) {
+            rateLimitStore.clearFailures(userPath, factorType);
         }
+    }
 
-        return tracker.getFailureAttemptsCount(factorType) >= mfaConfigurationService.getMfaMaxAuthFailuresBeforeLock();
+    private static List<String> parseFactors(String[] enabledFactorsConfig) {
+        if (enabledFactorsConfig == null || enabledFactorsConfig.length == 0) {
+            return Collections.emptyList(); // Return an empty list if no factors configured
+        }
+        return Arrays.stream(enabledFactorsConfig)
+                .filter(factor -> factor != null && !factor.trim().isEmpty())
+                .map(String::trim)
+                .collect(Collectors.toUnmodifiableList());
     }
 
-    private static String getCacheKey(String userPath, MfaFactorProvider provider) {
-        return String.format("%s-%s@%d", userPath, provider.getFactorType(), provider.hashCode());
+    private FactorErrors getFactorErrors(String factorType) {
+        FactorErrors errors = factorErrors.get(factorType);
+        if (errors != null) {
+            return errors;
+        }
+        if (factorRegistry.lookupProvider(factorType) == null) {
+            // factor types come from the client, only the errors of the registered ones are kept
+            return new FactorErrors(factorType);
+        }
+        return factorErrors.computeIfAbsent(factorType, FactorErrors::new);
     }
 
-    private static class ValidationResult {
-        private final MfaFactorProvider provider;
-        private final JCRUserNode userNode;
+    private static MfaError createRateLimitExceededError(String factorType, MfaUserDetails user, long nextRetryInSeconds) {
+        Map<String, String> arguments = Map.of(
+                "nextRetryInSeconds", String.valueOf(nextRetryInSeconds),
+                ARG_FACTOR_TYPE, factorType,
+                "user", user.getName()
+        );
+        return new MfaError(ERROR_RATE_LIMIT_EXCEEDED, arguments);
+    }
 
-        ValidationResult(MfaFactorProvider provider, JCRUserNode userNode) {
-            this.provider = provider;
-            this.userNode = userNode;
+    private MfaError getSuspendedUserError(Integer suspensionDuration) {
+        MfaError error = suspendedUserError;
+        String duration = suspensionDuration.toString();
+        if (error == null || !duration.equals(error.getArguments().get(ARG_SUSPENSION_DURATION_IN_SECONDS))) {
+            // the suspension duration is the configured one, the error only needs to be created again when it changes
+            error = new MfaError(ERROR_SUSPENDED_USER, Map.of(ARG_SUSPENSION_DURATION_IN_SECONDS, duration));
+            suspendedUserError = error;
+        }
+        return error;
+    }
+
+    /**
+     * The factor-level errors of a factor type, which do not depend on anything else than the factor type.
+     */
+    private static class FactorErrors {
+        private final MfaError notPrepared;
+        private final MfaError verificationFailed;
+
+        FactorErrors(String factorType) {
+            Map<String, String> arguments = Map.of(ARG_FACTOR_TYPE, factorType);
+            notPrepared = new MfaError(ERROR_FACTOR_NOT_PREPARED, arguments);
+            verificationFailed = new MfaError(ERROR_VERIFICATION_FAILED, arguments);
         }
     }
 }
@@ -0,0 +1,240 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the MFA factor preparations (i.e. of the verification codes sent) with {@link TokenBucket}s per
+ * user, per client IP, per site and globally, so that the mail server is protected against many distinct users, or a
+ * single client cycling usernames, requesting codes at once.
+ * <p>
+ * A preparation takes a token from each of the buckets, and is rejected if one of them is empty (the tokens taken from
+ * the other buckets being given back). The burst and refill rate of each scope are configured in
+ * {@link MfaConfigurationService}, a burst of 0 disabling the scope. The buckets of the users, IPs and sites are kept
+ * in bounded node-local caches, and dropped once idle long enough to be full again.
+ */
+@Component(service = PreparationRateLimiter.class, immediate = true)
+public class PreparationRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(PreparationRateLimiter.class);
+    private static final long MAXIMUM_SIZE = 100_000;
+    private static final int USER = 0;
+    private static final int IP = 1;
+    private static final int SITE = 2;
+    private static final int GLOBAL = 3;
+    private static final String[] SCOPE_NAMES = {"user", "IP", "site", "global"};
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private final Cache<String, TokenBucket> userBuckets = createBucketsCache();
+    private final Cache<String, TokenBucket> ipBuckets = createBucketsCache();
+    private final Cache<String, TokenBucket> siteBuckets = createBucketsCache();
+    private final TokenBucket globalBucket = new TokenBucket();
+    private final List<CacheStatistics> cacheStatistics = new ArrayList<>();
+
+    @Activate
+    protected void activate() {
+        addCacheStatistics(CacheStatistics.register("PrepareUserBuckets", userBuckets));
+        addCacheStatistics(CacheStatistics.register("PrepareIpBuckets", ipBuckets));
+        addCacheStatistics(CacheStatistics.register("PrepareSiteBuckets", siteBuckets));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        cacheStatistics.forEach(CacheStatistics::unregister);
+        cacheStatistics.clear();
+    }
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    /**
+     * Takes a token from the buckets of the user, client IP, site and from the global one.
+     *
+     * @param userPath the path of the user node
+     * @param clientIp the IP address of the client (may be null)
+     * @param siteKey  the key of the site the user authenticates on (may be null)
+     * @param now      the current epoch in milliseconds
+     * @return 0 if the preparation is allowed, otherwise the delay (in milliseconds) until all the buckets have a token
+     */
+    public long tryAcquire(String userPath, String clientIp, String siteKey, long now) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null) {
+            return 0;
+        }
+        // the narrowest buckets first, so that a single client being rejected does not drain the wider ones
+        for (int scope = USER; scope <= GLOBAL; scope++) {
+            int burst = getBurst(configuration, scope);
+            TokenBucket bucket = getBucket(scope, getKey(scope, userPath, clientIp, siteKey), burst);
+            if (bucket == null) {
+                continue;
+            }
+            long waitMillis = bucket.tryAcquire(now, burst, getRefillPerMinute(configuration, scope));
+            if (waitMillis > 0) {
+                logger.debug("Preparation rate limit of the {} {} exceeded, next token in {} ms", SCOPE_NAMES[scope],
+                        getKey(scope, userPath, clientIp, siteKey), waitMillis);
+                release(configuration, scope, userPath, clientIp, siteKey);
+                // the wider buckets may be empty as well, a retry before they refill would be rejected again
+                for (int widerScope = scope + 1; widerScope <= GLOBAL; widerScope++) {
+                    waitMillis = Math.max(waitMillis, getWaitMillis(configuration, widerScope, getKey(widerScope, userPath, clientIp, siteKey), now));
+                }
+                return waitMillis;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gives back the tokens taken by {@link #tryAcquire(String, String, String, long)} for a preparation that did not
+     * send anything after all (e.g. the mail server being unavailable), so that failures do not drain the buckets.
+     *
+     * @param userPath the path of the user node
+     * @param clientIp the IP address of the client (may be null)
+     * @param siteKey  the key of the site the user authenticates on (may be null)
+     */
+    public void release(String userPath, String clientIp, String siteKey) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration != null) {
+            release(configuration, GLOBAL + 1, userPath, clientIp, siteKey);
+        }
+    }
+
+    /**
+     * Gives back the tokens taken from the buckets of the scopes before the given one.
+     */
+    private void release(MfaConfigurationService configuration, int endScope, String userPath, String clientIp, String siteKey) {
+        for (int scope = USER; scope < endScope; scope++) {
+            int burst = getBurst(configuration, scope);
+            TokenBucket bucket = getBucket(scope, getKey(scope, userPath, clientIp, siteKey), burst);
+            if (bucket != null) {
+                bucket.release(burst);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the buckets of the client IP, of the site and the global one have a token left, without taking
+     * any, so that the preparations bound to be rejected can be rejected early (see {@link UpaRequestFilter}).
+     *
+     * @param clientIp the IP address of the client (may be null)
+     * @param siteKey  the key of the site the user authenticates on (may be null)
+     * @param now      the current epoch in milliseconds
+     * @return 0 if the buckets have a token left, otherwise the delay (in milliseconds) until they all have one
+     */
+    public long getWaitMillis(String clientIp, String siteKey, long now) {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        if (configuration == null) {
+            return 0;
+        }
+        long waitMillis = getWaitMillis(configuration, IP, clientIp, now);
+        waitMillis = Math.max(waitMillis, getWaitMillis(configuration, SITE, siteKey, now));
+        return Math.max(waitMillis, getWaitMillis(configuration, GLOBAL, null, now));
+    }
+
+    /**
+     * Returns the delay until the bucket of a scope has a token, without taking any.
+     */
+    private long getWaitMillis(MfaConfigurationService configuration, int scope, String key, long now) {
+        int burst = getBurst(configuration, scope);
+        TokenBucket bucket;
+        if (burst <= 0) {
+            bucket = null;
+        } else if (scope == GLOBAL) {
+            bucket = globalBucket;
+        } else {
+            // a bucket not created yet is full
+            bucket = key != null ? getBuckets(scope).getIfPresent(key) : null;
+        }
+        return bucket == null ? 0 : bucket.getWaitMillis(now, burst, getRefillPerMinute(configuration, scope));
+    }
+
+    // the scopes are indexes rather than objects, so that checking the limits of a preparation allocates nothing
+
+    private TokenBucket getBucket(int scope, String key, int burst) {
+        if (burst <= 0) {
+            return null;
+        }
+        if (scope == GLOBAL) {
+            return globalBucket;
+        }
+        if (key == null) {
+            return null;
+        }
+        return getBuckets(scope).get(key, k -> new TokenBucket());
+    }
+
+    private Cache<String, TokenBucket> getBuckets(int scope) {
+        return scope == USER ? userBuckets : scope == IP ? ipBuckets : siteBuckets;
+    }
+
+    private static String getKey(int scope, String userPath, String clientIp, String siteKey) {
+        switch (scope) {
+            case USER:
+                return userPath;
+            case IP:
+                return clientIp;
+            case SITE:
+                return siteKey;
+            default:
+                return null;
+        }
+    }
+
+    private static int getBurst(MfaConfigurationService configuration, int scope) {
+        switch (scope) {
+            case USER:
+                return configuration.getMfaPrepareUserBucketBurst();
+            case IP:
+                return configuration.getMfaPrepareIpBucketBurst();
+            case SITE:
+                return configuration.getMfaPrepareSiteBucketBurst();
+            default:
+                return configuration.getMfaPrepareGlobalBucketBurst();
+        }
+    }
+
+    private static int getRefillPerMinute(MfaConfigurationService configuration, int scope) {
+        switch (scope) {
+            case USER:
+                return configuration.getMfaPrepareUserBucketRefillPerMinute();
+            case IP:
+                return configuration.getMfaPrepareIpBucketRefillPerMinute();
+            case SITE:
+                return configuration.getMfaPrepareSiteBucketRefillPerMinute();
+            default:
+                return configuration.getMfaPrepareGlobalBucketRefillPerMinute();
+        }
+    }
+
+    private static Cache<String, TokenBucket> createBucketsCache() {
+        // a bucket idle for an hour is full again with any sensible configuration, dropping it (a new bucket starts
+        // full) does not change anything
+        return Caffeine.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .maximumSize(MAXIMUM_SIZE)
+                .recordStats()
+                .build();
+    }
+
+    private void addCacheStatistics(CacheStatistics statistics) {
+        if (statistics != null) {
+            cacheStatistics.add(statistics);
+        }
+    }
+}
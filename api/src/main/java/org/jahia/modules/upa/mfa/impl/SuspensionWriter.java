@@ -0,0 +1,149 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.mfa.MfaSuspensionStore;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind persistence of the user suspensions in the {@link MfaSuspensionStore}.
+ * <p>
+ * {@link MfaServiceImpl} applies a suspension in memory right away (see {@link UserSuspensionCache}) and hands it over
+ * to this writer, so that the verification request does not wait for the store. A background worker drains the
+ * pending suspensions and saves up to {@value #MAX_BATCH_SIZE} of them at once. If the batch cannot be saved, the
+ * suspensions are saved one by one so that a single failing user does not prevent the others from being persisted.
+ * <p>
+ * The pending suspensions are flushed synchronously when the component is deactivated, so that none is lost on
+ * shutdown.
+ */
+@Component(service = SuspensionWriter.class, immediate = true)
+public class SuspensionWriter {
+    private static final Logger logger = LoggerFactory.getLogger(SuspensionWriter.class);
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    /**
+     * Suspensions not persisted yet, by user path. The value is the end of the suspension (epoch in milliseconds).
+     */
+    private final Map<String, Long> pendingSuspensions = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private volatile MfaSuspensionStore suspensionStore;
+    private ExecutorService worker;
+
+    @Reference(policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    public void setSuspensionStore(MfaSuspensionStore suspensionStore) {
+        this.suspensionStore = suspensionStore;
+    }
+
+    public void unsetSuspensionStore(MfaSuspensionStore suspensionStore) {
+        if (this.suspensionStore == suspensionStore) {
+            this.suspensionStore = null;
+        }
+    }
+
+    @Activate
+    protected void activate() {
+        worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upa-suspension-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.execute(this::drainContinuously);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        worker.shutdownNow();
+        try {
+            if (!worker.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("The suspension writer did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // persist what is left, including a batch the worker may have been interrupted in the middle of
+        queue.clear();
+        List<String> userPaths = new ArrayList<>(pendingSuspensions.keySet());
+        if (!userPaths.isEmpty()) {
+            logger.info("Flushing {} pending user suspension(s)...", userPaths.size());
+            persist(userPaths);
+        }
+    }
+
+    /**
+     * Queues the suspension of a user to be persisted in the background.
+     *
+     * @param userPath       the path of the user node
+     * @param suspendedUntil the end of the suspension (epoch in milliseconds)
+     */
+    public void suspend(String userPath, long suspendedUntil) {
+        if (pendingSuspensions.put(userPath, suspendedUntil) == null) {
+            queue.add(userPath);
+        }
+    }
+
+    /**
+     * Returns the end of the suspension of a user that has not been persisted yet.
+     *
+     * @param userPath the path of the user node
+     * @return the end of the pending suspension (epoch in milliseconds), or {@code null} if there is none
+     */
+    public Long getPendingSuspendedUntil(String userPath) {
+        return pendingSuspensions.get(userPath);
+    }
+
+    private void drainContinuously() {
+        List<String> userPaths = new ArrayList<>(MAX_BATCH_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                userPaths.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(userPaths, MAX_BATCH_SIZE - 1);
+            try {
+                persist(userPaths);
+            } catch (RuntimeException e) {
+                // never let an exception stop the worker
+                logger.error("Unexpected error while persisting user suspensions", e);
+            }
+            userPaths.clear();
+        }
+    }
+
+    private void persist(List<String> userPaths) {
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for (String userPath : userPaths) {
+            Long suspendedUntil = pendingSuspensions.get(userPath);
+            if (suspendedUntil != null) {
+                batch.put(userPath, suspendedUntil);
+            }
+        }
+        try {
+            suspensionStore.saveSuspensions(batch);
+            logger.debug("{} user suspension(s) persisted", batch.size());
+        } catch (IllegalStateException e) {
+            logger.warn("Failed to persist a batch of {} user suspension(s), persisting them one by one", batch.size(), e);
+            batch.forEach(this::persistSingle);
+        }
+        batch.forEach((userPath, suspendedUntil) -> {
+            if (!pendingSuspensions.remove(userPath, suspendedUntil)) {
+                // suspended again in the meantime, the new suspension has to be persisted as well
+                queue.add(userPath);
+            }
+        });
+    }
+
+    private void persistSingle(String userPath, long suspendedUntil) {
+        try {
+            suspensionStore.saveSuspensions(Collections.singletonMap(userPath, suspendedUntil));
+        } catch (IllegalStateException e) {
+            logger.error("Failed to mark user {} as suspended", userPath, e);
+            // the suspension still applies on this node until it expires
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jahia.modules.upa.mfa.impl;
+
+/**
+ * Token bucket holding up to a burst of tokens, refilled continuously at a given rate.
+ * <p>
+ * The burst and the refill rate are given on each acquisition rather than held by the bucket, so that a configuration
+ * change applies to the existing buckets without resetting them. A refill rate lower than 1 token per minute is
+ * treated as 1 token per minute, as a bucket never refilled would block its scope until evicted, without any retry
+ * delay to report.
+ */
+final class TokenBucket {
+    private static final double MILLIS_PER_MINUTE = 60_000d;
+
+    private double tokens = -1;
+    private long lastRefill;
+
+    /**
+     * Takes a token from the bucket if one is available.
+     *
+     * @param now             the current epoch in milliseconds
+     * @param burst           the maximum number of tokens of the bucket
+     * @param refillPerMinute the number of tokens added to the bucket per minute
+     * @return 0 if a token was taken, otherwise the delay (in milliseconds) until a token is available
+     */
+    synchronized long tryAcquire(long now, int burst, int refillPerMinute) {
+        refill(now, burst, refillPerMinute);
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return waitMillis(refillPerMinute);
+    }
+
+    /**
+     * Returns the delay until a token is available, without taking it.
+     *
+     * @param now             the current epoch in milliseconds
+     * @param burst           the maximum number of tokens of the bucket
+     * @param refillPerMinute the number of tokens added to the bucket per minute
+     * @return 0 if a token is available, otherwise the delay (in milliseconds) until one is
+     */
+    synchronized long getWaitMillis(long now, int burst, int refillPerMinute) {
+        refill(now, burst, refillPerMinute);
+        return tokens >= 1 ? 0 : waitMillis(refillPerMinute);
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire(long, int, int)}, when the operation is not performed after all.
+     *
+     * @param burst the maximum number of tokens of the bucket
+     */
+    synchronized void release(int burst) {
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    private long waitMillis(int refillPerMinute) {
+        return Math.max(1, (long) Math.ceil((1 - tokens) * MILLIS_PER_MINUTE / effectiveRefill(refillPerMinute)));
+    }
+
+    private void refill(long now, int burst, int refillPerMinute) {
+        if (tokens < 0) {
+            // new bucket
+            tokens = burst;
+        } else if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * effectiveRefill(refillPerMinute) / MILLIS_PER_MINUTE);
+        } else {
+            tokens = Math.min(burst, tokens);
+        }
+        lastRefill = Math.max(lastRefill, now);
+    }
+
+    private static int effectiveRefill(int refillPerMinute) {
+        return Math.max(1, refillPerMinute);
+    }
+}
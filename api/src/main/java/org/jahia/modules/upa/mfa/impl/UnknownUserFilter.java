@@ -0,0 +1,209 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.osgi.service.component.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Negative cache of the usernames recently found not to exist, so that the credential-stuffing attempts with unknown
+ * usernames do not go through the user providers (e.g. LDAP lookups) again and again.
+ * <p>
+ * The usernames are kept in a rotating Bloom filter: two generations of {@value #BITS} bits, the current one receiving
+ * the new usernames and the previous one still being checked, rotated every
+ * {@link MfaConfigurationService#getMfaUnknownUserCacheSeconds()} (or earlier once {@value #MAX_ENTRIES_PER_GENERATION}
+ * usernames were added). A username is thus known as missing for one to two periods, in a fixed amount of memory
+ * (2 MB). The false positive rate stays below 1 in a million, and a Bloom filter cannot forget a single entry: the
+ * whole filter is cleared when a user is created ({@link UserProfileListener}).
+ * <p>
+ * To prevent the cache from being used to enumerate the users, the short-circuited attempts are answered after a delay
+ * following the observed duration of the actual lookups of unknown users.
+ */
+@Component(service = UnknownUserFilter.class, immediate = true)
+public class UnknownUserFilter {
+    private static final Logger logger = LoggerFactory.getLogger(UnknownUserFilter.class);
+    private static final int BITS = 1 << 23;
+    private static final int HASH_FUNCTIONS = 7;
+    private static final int MAX_ENTRIES_PER_GENERATION = 100_000;
+    /**
+     * Weight of a new observation in the moving averages of the lookup durations.
+     */
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private volatile MfaConfigurationService mfaConfigurationService;
+    private volatile Generation current = new Generation(System.currentTimeMillis());
+    private volatile Generation previous;
+    private double latencyMeanNanos;
+    private double latencyDeviationNanos;
+
+    @Reference(
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            updated = "setOrUpdateMfaConfigurationService"
+    )
+    public void setOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = mfaConfigurationService;
+    }
+
+    public void unsetOrUpdateMfaConfigurationService(MfaConfigurationService mfaConfigurationService) {
+        this.mfaConfigurationService = null;
+    }
+
+    /**
+     * Checks whether a username was recently found not to exist.
+     *
+     * @param siteKey  the key of the site the user authenticates on (may be null)
+     * @param username the username
+     * @return true if the username is known not to exist, false if it may exist
+     */
+    public boolean isUnknown(String siteKey, String username) {
+        if (username == null || getTimeToLiveMillis() <= 0) {
+            return false;
+        }
+        long hash = hash(siteKey, username);
+        Generation generation = rotate(System.currentTimeMillis());
+        Generation previousGeneration = previous;
+        return generation.mightContain(hash) || (previousGeneration != null && previousGeneration.mightContain(hash));
+    }
+
+    /**
+     * Records that a username does not exist.
+     *
+     * @param siteKey     the key of the site the user authenticates on (may be null)
+     * @param username    the username
+     * @param lookupNanos the time (in nanoseconds) it took to find out that the user does not exist
+     */
+    public void addUnknown(String siteKey, String username, long lookupNanos) {
+        if (username == null || getTimeToLiveMillis() <= 0) {
+            return;
+        }
+        recordLatency(lookupNanos);
+        rotate(System.currentTimeMillis()).add(hash(siteKey, username));
+    }
+
+    /**
+     * Forgets all the unknown usernames (e.g. when a user is created).
+     */
+    public synchronized void clear() {
+        logger.debug("Clearing the unknown usernames");
+        previous = null;
+        current = new Generation(System.currentTimeMillis());
+    }
+
+    /**
+     * Waits as long as a lookup of an unknown user would have taken, so that a short-circuited attempt cannot be told
+     * apart from an actual lookup.
+     */
+    public void delayAsLookup() {
+        double mean;
+        double deviation;
+        synchronized (this) {
+            mean = latencyMeanNanos;
+            deviation = latencyDeviationNanos;
+        }
+        double delayNanos = mean + deviation * ThreadLocalRandom.current().nextGaussian();
+        long nanos = (long) Math.max(0, Math.min(delayNanos, 3 * mean));
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void recordLatency(long lookupNanos) {
+        if (latencyMeanNanos == 0) {
+            latencyMeanNanos = lookupNanos;
+            return;
+        }
+        latencyDeviationNanos += LATENCY_SMOOTHING * (Math.abs(lookupNanos - latencyMeanNanos) - latencyDeviationNanos);
+        latencyMeanNanos += LATENCY_SMOOTHING * (lookupNanos - latencyMeanNanos);
+    }
+
+    private long getTimeToLiveMillis() {
+        MfaConfigurationService configuration = mfaConfigurationService;
+        return configuration != null ? configuration.getMfaUnknownUserCacheSeconds() * 1000L : 0;
+    }
+
+    private Generation rotate(long now) {
+        Generation generation = current;
+        if (now < generation.start + getTimeToLiveMillis() && generation.entries.get() < MAX_ENTRIES_PER_GENERATION) {
+            return generation;
+        }
+        synchronized (this) {
+            generation = current;
+            if (now >= generation.start + getTimeToLiveMillis() || generation.entries.get() >= MAX_ENTRIES_PER_GENERATION) {
+                // the previous generation is only kept if it is not older than one period
+                previous = now < generation.start + 2 * getTimeToLiveMillis() ? generation : null;
+                generation = new Generation(now);
+                current = generation;
+            }
+            return generation;
+        }
+    }
+
+    private static long hash(String siteKey, String username) {
+        // 64-bit FNV-1a, followed by a finalizer so that all the bits depend on all the characters
+        long hash = 0xcbf29ce484222325L;
+        if (siteKey != null) {
+            for (int i = 0; i < siteKey.length(); i++) {
+                hash ^= siteKey.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        hash ^= '\n';
+        hash *= 0x100000001b3L;
+        for (int i = 0; i < username.length(); i++) {
+            hash ^= username.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Generation {
+        private final long start;
+        private final AtomicLongArray bits = new AtomicLongArray(BITS / Long.SIZE);
+        private final AtomicInteger entries = new AtomicInteger();
+
+        private Generation(long start) {
+            this.start = start;
+        }
+
+        private void add(long hash) {
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                int bit = bitIndex(hash, i);
+                long mask = 1L << bit;
+                int word = bit >>> 6;
+                long value;
+                do {
+                    value = bits.get(word);
+                } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+            }
+            entries.incrementAndGet();
+        }
+
+        private boolean mightContain(long hash) {
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                int bit = bitIndex(hash, i);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int bitIndex(long hash, int i) {
+            // double hashing: the hash functions use distinct combinations of the two halves of the hash
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            return (h1 + i * h2) & (BITS - 1);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.bin.filters.AbstractServletFilter;
+import org.jahia.modules.upa.mfa.MfaService;
+import org.jahia.modules.upa.mfa.MfaSession;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Servlet filter rejecting the over-limit UPA requests sent to the GraphQL servlet before they get parsed and executed,
+ * so that a rejected request costs a scan of its first bytes instead of a full GraphQL execution.
+ * <p>
+ * The UPA operations are recognized by looking for their field names in the first bytes of the request body (or in the
+ * query string of GET requests), without parsing it:
+ * <ul>
+ *     <li>{@code mfaInitiate}: the attempt is counted by the {@link InitiationThrottle}, and rejected if the client IP
+ *     or its subnet exceeded its limit</li>
+ *     <li>{@code mfaFactors} with {@code emailCode} and {@code prepare}: rejected if the preparation budget of the client
+ *     IP, of the site or the global one is exhausted ({@link PreparationRateLimiter}), the budgets being consumed by the
+ *     MFA service</li>
+ * </ul>
+ * The rejected requests get a {@code 429} response with a {@code Retry-After} header, and the same GraphQL result as the
+ * MFA service would have answered (the session error of {@code mfaInitiate}, the factor error of the email code
+ * preparation), so that the clients handle it like any other error. The requests that are not recognized (e.g. field
+ * names escaped in the JSON, or the preparations of other factors, whose result cannot be built here) are still limited
+ * by the MFA service, only later.
+ */
+@Component(service = AbstractServletFilter.class, immediate = true)
+public class UpaRequestFilter extends AbstractServletFilter {
+    private static final Logger logger = LoggerFactory.getLogger(UpaRequestFilter.class);
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    /**
+     * The UPA operations are small, larger requests are left to the MFA service.
+     */
+    private static final int MAX_INSPECTED_BYTES = 8192;
+    private static final byte[] INITIATE_FIELD = "mfaInitiate".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FACTORS_FIELD = "mfaFactors".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMAIL_CODE_FIELD = "emailCode".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PREPARE_FIELD = "prepare".getBytes(StandardCharsets.US_ASCII);
+    private static final String EMAIL_CODE_FACTOR_TYPE = "email_code";
+    private static final String ERROR_TOO_MANY_ATTEMPTS = "initiate.too_many_attempts";
+    private static final String ERROR_RATE_LIMIT_EXCEEDED = "prepare.rate_limit_exceeded";
+
+    private MfaService mfaService;
+    private InitiationThrottle initiationThrottle;
+    private PreparationRateLimiter preparationRateLimiter;
+
+    @Reference
+    public void setMfaService(MfaService mfaService) {
+        this.mfaService = mfaService;
+    }
+
+    @Reference
+    public void setInitiationThrottle(InitiationThrottle initiationThrottle) {
+        this.initiationThrottle = initiationThrottle;
+    }
+
+    @Reference
+    public void setPreparationRateLimiter(PreparationRateLimiter preparationRateLimiter) {
+        this.preparationRateLimiter = preparationRateLimiter;
+    }
+
+    @Activate
+    public void activate() {
+        setUrlPatterns(new String[]{"/modules/graphql"});
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        // nothing to initialize
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        byte[] inspected;
+        ServletRequest filteredRequest = request;
+        if ("GET".equals(request.getMethod())) {
+            String queryString = request.getQueryString();
+            inspected = queryString != null ? queryString.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        } else if (isInspectedContentType(request.getContentType())) {
+            BufferedRequest bufferedRequest = new BufferedRequest(request);
+            inspected = bufferedRequest.getPrefix();
+            filteredRequest = bufferedRequest;
+        } else {
+            // e.g. form or multipart requests, whose parameters are read from the body by the container
+            chain.doFilter(request, servletResponse);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (indexOf(inspected, INITIATE_FIELD) >= 0) {
+            long retryAfterMillis = initiationThrottle.tryAcquire(request.getRemoteAddr(), now);
+            if (retryAfterMillis > 0) {
+                logger.debug("Too many MFA initiations from {}, request rejected", request.getRemoteAddr());
+                long retryAfterSeconds = toRetryAfterSeconds(retryAfterMillis);
+                reject(response, retryAfterSeconds, "{\"data\":{\"upa\":{\"mfaInitiate\":{\"session\":{\"initiated\":false,\"remainingFactors\":[],"
+                        + "\"error\":" + toError(ERROR_TOO_MANY_ATTEMPTS, "nextRetryInSeconds", String.valueOf(retryAfterSeconds)) + "}}}}}");
+                return;
+            }
+            request.setAttribute(InitiationThrottle.COUNTED_ATTRIBUTE, Boolean.TRUE);
+        }
+        if (indexOf(inspected, FACTORS_FIELD) >= 0 && indexOf(inspected, EMAIL_CODE_FIELD) >= 0 && indexOf(inspected, PREPARE_FIELD) >= 0) {
+            MfaSession session = mfaService.getMfaSession(request);
+            String siteKey = session != null && session.getContext() != null ? session.getContext().getSiteKey() : null;
+            long retryAfterMillis = preparationRateLimiter.getWaitMillis(request.getRemoteAddr(), siteKey, now);
+            if (retryAfterMillis > 0) {
+                logger.debug("MFA preparation budget exhausted for {}, request rejected", request.getRemoteAddr());
+                long retryAfterSeconds = toRetryAfterSeconds(retryAfterMillis);
+                String user = session != null && session.getContext() != null ? session.getContext().getUserId() : null;
+                reject(response, retryAfterSeconds, "{\"data\":{\"upa\":{\"mfaFactors\":{\"emailCode\":{\"prepare\":{\"session\":{\"error\":null,"
+                        + "\"factorState\":{\"prepared\":false,\"error\":" + toError(ERROR_RATE_LIMIT_EXCEEDED,
+                        "nextRetryInSeconds", String.valueOf(retryAfterSeconds), "factorType", EMAIL_CODE_FACTOR_TYPE, "user", user)
+                        + "}},\"maskedEmail\":null}}}}}}");
+                return;
+            }
+        }
+        chain.doFilter(filteredRequest, servletResponse);
+    }
+
+    @Override
+    public void destroy() {
+        // nothing to release
+    }
+
+    private static long toRetryAfterSeconds(long retryAfterMillis) {
+        // rounded up, without overflowing
+        return retryAfterMillis <= 0 ? 1 : (retryAfterMillis - 1) / 1000 + 1;
+    }
+
+    /**
+     * Returns the JSON of an {@code MfaError}, as selected by the UPA clients.
+     *
+     * @param code      the error code
+     * @param arguments the names and values of the error arguments, in turn
+     * @return the JSON object
+     */
+    private static String toError(String code, String... arguments) {
+        StringBuilder json = new StringBuilder("{\"code\":");
+        appendString(json, code);
+        json.append(",\"arguments\":[");
+        for (int i = 0; i < arguments.length; i += 2) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendString(json, arguments[i]);
+            json.append(",\"value\":");
+            appendString(json, arguments[i + 1]);
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static void reject(HttpServletResponse response, long retryAfterSeconds, String result) throws IOException {
+        byte[] body = result.getBytes(StandardCharsets.UTF_8);
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        response.setContentType("application/json;charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static boolean isInspectedContentType(String contentType) {
+        return contentType != null && (contentType.startsWith("application/json") || contentType.startsWith("application/graphql"));
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Request whose first bytes of the body were read for the inspection, and are served again before the rest of the
+     * body.
+     */
+    private static class BufferedRequest extends HttpServletRequestWrapper {
+        private final byte[] prefix;
+        private ServletInputStream inputStream;
+        private BufferedReader reader;
+
+        private BufferedRequest(HttpServletRequest request) throws IOException {
+            super(request);
+            int contentLength = request.getContentLength();
+            byte[] buffer = new byte[contentLength >= 0 ? Math.min(contentLength, MAX_INSPECTED_BYTES) : MAX_INSPECTED_BYTES];
+            InputStream original = request.getInputStream();
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = original.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+            prefix = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+
+        private byte[] getPrefix() {
+            return prefix;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (reader != null) {
+                throw new IllegalStateException("getReader() has already been called");
+            }
+            if (inputStream == null) {
+                inputStream = new PrefixedInputStream(prefix, super.getInputStream());
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (inputStream != null) {
+                throw new IllegalStateException("getInputStream() has already been called");
+            }
+            if (reader == null) {
+                String encoding = getCharacterEncoding() != null ? getCharacterEncoding() : StandardCharsets.UTF_8.name();
+                reader = new BufferedReader(new InputStreamReader(new PrefixedInputStream(prefix, super.getInputStream()), encoding));
+            }
+            return reader;
+        }
+    }
+
+    private static class PrefixedInputStream extends ServletInputStream {
+        private final byte[] prefix;
+        private final ServletInputStream remaining;
+        private int position;
+
+        private PrefixedInputStream(byte[] prefix, ServletInputStream remaining) {
+            this.prefix = prefix;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position < prefix.length) {
+                return prefix[position++] & 0xFF;
+            }
+            return remaining.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position < prefix.length) {
+                int count = Math.min(len, prefix.length - position);
+                System.arraycopy(prefix, position, b, off, count);
+                position += count;
+                return count;
+            }
+            return remaining.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position >= prefix.length && remaining.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return position < prefix.length || remaining.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            remaining.setReadListener(readListener);
+        }
+    }
+}
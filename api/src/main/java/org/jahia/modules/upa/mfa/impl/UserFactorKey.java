@@ -0,0 +1,42 @@
+package org.jahia.modules.upa.mfa.impl;
+
+/**
+ * Key of the per-user and per-factor caches of the {@link MfaServiceImpl}.
+ */
+final class UserFactorKey {
+    private final String userPath;
+    private final String factorType;
+    private final int hashCode;
+
+    UserFactorKey(String userPath, String factorType) {
+        this.userPath = userPath;
+        this.factorType = factorType;
+        this.hashCode = 31 * userPath.hashCode() + factorType.hashCode();
+    }
+
+    String getUserPath() {
+        return userPath;
+    }
+
+    String getFactorType() {
+        return factorType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UserFactorKey)) return false;
+        UserFactorKey that = (UserFactorKey) o;
+        return hashCode == that.hashCode && userPath.equals(that.userPath) && factorType.equals(that.factorType);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return userPath + "-" + factorType;
+    }
+}
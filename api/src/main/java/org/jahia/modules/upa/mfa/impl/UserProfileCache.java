@@ -0,0 +1,92 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jahia.modules.upa.mfa.MfaUserDetails;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Node-local cache of the MFA-relevant attributes of the users (path, name, email, masked email and preferred
+ * language), so that the users logging in several times a day are not read from the repository (or from an external
+ * user provider) for each MFA operation.
+ * <p>
+ * The profiles are cached by user path, the user ID (i.e. the name) possibly designating users of different sites, and
+ * without their suspension state (which is cached by the
+ * {@link UserSuspensionCache}). The cache is bounded in size and time, and kept in sync with the user nodes by the
+ * {@link UserProfileListener}, so that profile changes apply within seconds. The users provided by external user
+ * providers do not trigger JCR events, the time-to-live bounds how long their changes may be ignored.
+ * <p>
+ * The statistics of the cache are exposed through JMX, see {@link CacheStatistics}.
+ */
+@Component(service = UserProfileCache.class, immediate = true)
+public class UserProfileCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserProfileCache.class);
+    private static final long MAXIMUM_SIZE = 10_000;
+    private static final long TIME_TO_LIVE_MINUTES = 10;
+
+    private final Cache<String, MfaUserDetails> profileCache = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(TIME_TO_LIVE_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+    private CacheStatistics statistics;
+
+    @Activate
+    protected void activate() {
+        statistics = CacheStatistics.register("UserProfileCache", profileCache);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (statistics != null) {
+            statistics.unregister();
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Returns the profile of a user, loading it if not cached yet.
+     *
+     * @param userPath the path of the user
+     * @param loader   function loading the profile of a user from its path, returning {@code null} if the user does not
+     *                 exist (nothing gets cached in that case)
+     * @return the profile of the user, or {@code null} if the user does not exist
+     */
+    public MfaUserDetails getProfile(String userPath, Function<String, MfaUserDetails> loader) {
+        return profileCache.get(userPath, loader);
+    }
+
+    /**
+     * Caches the profile of a user that has just been read (e.g. when authenticating the user).
+     *
+     * @param profile the profile of the user, cached under its path
+     */
+    public void putProfile(MfaUserDetails profile) {
+        profileCache.put(profile.getPath(), profile);
+    }
+
+    /**
+     * Drops the cached profile of a user, so that it gets loaded again on next access.
+     *
+     * @param userPath the path of the user
+     */
+    public void invalidate(String userPath) {
+        logger.debug("Invalidating the cached profile of user {}", userPath);
+        profileCache.invalidate(userPath);
+    }
+
+    /**
+     * Drops all the cached profiles.
+     */
+    public void invalidateAll() {
+        profileCache.invalidateAll();
+        profileCache.cleanUp();
+    }
+}
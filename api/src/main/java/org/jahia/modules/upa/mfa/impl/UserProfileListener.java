@@ -0,0 +1,74 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.DefaultEventListener;
+import org.jahia.services.content.ExternalEventListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * JCR listener keeping the {@link UserProfileCache} in sync with the user nodes: the cached profile of a user is
+ * dropped as soon as one of its properties changes or the user is removed. The {@link UnknownUserFilter} is cleared
+ * when a user is created.
+ * <p>
+ * Being an {@link ExternalEventListener}, it also receives the events of the other cluster nodes.
+ */
+@Component(service = DefaultEventListener.class, immediate = true)
+public class UserProfileListener extends DefaultEventListener implements ExternalEventListener {
+    private static final Logger logger = LoggerFactory.getLogger(UserProfileListener.class);
+    private static final String[] USER_NODE_TYPES = {"jnt:user"};
+    private static final String PRIMARY_TYPE_PROPERTY_PATH_SUFFIX = "/" + Constants.JCR_PRIMARYTYPE;
+
+    private UserProfileCache userProfileCache;
+    private UnknownUserFilter unknownUserFilter;
+
+    public UserProfileListener() {
+        setWorkspace(Constants.EDIT_WORKSPACE);
+    }
+
+    @Reference
+    public void setUserProfileCache(UserProfileCache userProfileCache) {
+        this.userProfileCache = userProfileCache;
+    }
+
+    @Reference
+    public void setUnknownUserFilter(UnknownUserFilter unknownUserFilter) {
+        this.unknownUserFilter = unknownUserFilter;
+    }
+
+    @Override
+    public int getEventTypes() {
+        // the removal of a user node also triggers the removal of its properties
+        return Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+    }
+
+    @Override
+    public String[] getNodeTypes() {
+        // for property events, the node type filter applies to the node holding the property
+        return USER_NODE_TYPES;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            try {
+                String path = event.getPath();
+                if (event.getType() == Event.PROPERTY_ADDED && path.endsWith(PRIMARY_TYPE_PROPERTY_PATH_SUFFIX)) {
+                    // the primary type is only added with the node, i.e. a user was created
+                    unknownUserFilter.clear();
+                }
+                userProfileCache.invalidate(StringUtils.substringBeforeLast(path, "/"));
+            } catch (RepositoryException e) {
+                logger.warn("Unable to read the path of the event {}", event, e);
+            }
+        }
+    }
+}
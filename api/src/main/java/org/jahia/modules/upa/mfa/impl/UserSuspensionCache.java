@@ -0,0 +1,132 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.jahia.modules.upa.mfa.MfaSuspensionStore;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Node-local cache of the MFA suspension state of users, sitting in front of the {@link MfaSuspensionStore}.
+ * <p>
+ * Maps user paths to the epoch (in milliseconds) until which the user is suspended, or to {@link #NOT_SUSPENDED}
+ * when the user is known not to be suspended. As almost no user is ever suspended, the negative entries are what
+ * allows most MFA operations to skip the store entirely.
+ * <p>
+ * Entries of suspended users expire when their suspension ends, negative entries after a short time-to-live. The cache
+ * is kept in sync by {@link MfaServiceImpl} when suspending users and by {@link UserSuspensionListener} when the
+ * suspension is changed in the JCR store (including by another cluster node).
+ * <p>
+ * The cache is bounded in size, but only the negative entries count: the entries of suspended users are never
+ * evicted (they expire with the suspension). The statistics of the cache are exposed through JMX.
+ */
+@Component(service = UserSuspensionCache.class, immediate = true)
+public class UserSuspensionCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserSuspensionCache.class);
+    /**
+     * Value cached for users that are not suspended.
+     */
+    public static final long NOT_SUSPENDED = MfaSuspensionStore.NOT_SUSPENDED;
+    private static final long MAXIMUM_SIZE = 10_000;
+    private static final long NOT_SUSPENDED_TIME_TO_LIVE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Cache<String, Long> suspendedUntilCache = Caffeine.newBuilder()
+            .maximumWeight(MAXIMUM_SIZE)
+            .weigher((String userPath, Long suspendedUntil) -> suspendedUntil == NOT_SUSPENDED ? 1 : 0)
+            .expireAfter(new SuspensionExpiry())
+            .recordStats()
+            .build();
+    private CacheStatistics statistics;
+
+    @Activate
+    protected void activate() {
+        statistics = CacheStatistics.register("UserSuspensionCache", suspendedUntilCache);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (statistics != null) {
+            statistics.unregister();
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Returns the epoch (in milliseconds) until which the given user is suspended, loading it if not cached yet.
+     *
+     * @param userPath the path of the user node
+     * @param loader   function loading the suspension end of a user, returning {@link #NOT_SUSPENDED} if the user is
+     *                 not suspended, or {@code null} if it cannot be determined (nothing gets cached in that case)
+     * @return the suspension end, {@link #NOT_SUSPENDED} if the user is not suspended, or {@code null} if unknown
+     */
+    public Long getSuspendedUntil(String userPath, Function<String, Long> loader) {
+        return suspendedUntilCache.get(userPath, loader);
+    }
+
+    /**
+     * Records that a user is suspended until the given epoch.
+     *
+     * @param userPath       the path of the user node
+     * @param suspendedUntil the epoch (in milliseconds) when the suspension ends
+     */
+    public void markSuspended(String userPath, long suspendedUntil) {
+        suspendedUntilCache.put(userPath, suspendedUntil);
+    }
+
+    /**
+     * Records that a user is not suspended (anymore).
+     *
+     * @param userPath the path of the user node
+     */
+    public void markNotSuspended(String userPath) {
+        suspendedUntilCache.put(userPath, NOT_SUSPENDED);
+    }
+
+    /**
+     * Drops the cached suspension state of a user, so that it gets loaded again on next access.
+     *
+     * @param userPath the path of the user node
+     */
+    public void invalidate(String userPath) {
+        logger.debug("Invalidating the cached suspension state of user {}", userPath);
+        suspendedUntilCache.invalidate(userPath);
+    }
+
+    /**
+     * Drops all the cached suspension states (e.g. when the suspension store is replaced).
+     */
+    public void invalidateAll() {
+        suspendedUntilCache.invalidateAll();
+        suspendedUntilCache.cleanUp();
+    }
+
+    /**
+     * Expires the entries of suspended users when their suspension ends, and negative entries after a fixed delay.
+     */
+    private static class SuspensionExpiry implements Expiry<String, Long> {
+        @Override
+        public long expireAfterCreate(String userPath, Long suspendedUntil, long currentTime) {
+            if (suspendedUntil == NOT_SUSPENDED) {
+                return NOT_SUSPENDED_TIME_TO_LIVE_NANOS;
+            }
+            return Math.max(0, TimeUnit.MILLISECONDS.toNanos(suspendedUntil - System.currentTimeMillis()));
+        }
+
+        @Override
+        public long expireAfterUpdate(String userPath, Long suspendedUntil, long currentTime, long currentDuration) {
+            return expireAfterCreate(userPath, suspendedUntil, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String userPath, Long suspendedUntil, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
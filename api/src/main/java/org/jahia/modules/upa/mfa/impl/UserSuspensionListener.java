@@ -0,0 +1,68 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.services.content.DefaultEventListener;
+import org.jahia.services.content.ExternalEventListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * JCR listener keeping the {@link UserSuspensionCache} in sync with the suspensions stored by the {@link JCRSuspensionStore}.
+ * <p>
+ * Being an {@link ExternalEventListener}, it also receives the events of the other cluster nodes, so that a user
+ * suspended (or released) on one node is no longer served from a stale cache entry on the others.
+ */
+@Component(service = DefaultEventListener.class, immediate = true)
+public class UserSuspensionListener extends DefaultEventListener implements ExternalEventListener {
+    private static final Logger logger = LoggerFactory.getLogger(UserSuspensionListener.class);
+
+    private UserSuspensionCache userSuspensionCache;
+
+    public UserSuspensionListener() {
+        setWorkspace(Constants.EDIT_WORKSPACE);
+    }
+
+    @Reference
+    public void setUserSuspensionCache(UserSuspensionCache userSuspensionCache) {
+        this.userSuspensionCache = userSuspensionCache;
+    }
+
+    @Override
+    public int getEventTypes() {
+        return Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED;
+    }
+
+    @Override
+    public String getPath() {
+        return JCRSuspensionStore.SUSPENSIONS_PATH;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            try {
+                String path = event.getPath();
+                if (event.getType() != Event.NODE_REMOVED) {
+                    if (!StringUtils.endsWith(path, "/" + JCRSuspensionStore.SUSPENDED_UNTIL_PROP)) {
+                        continue;
+                    }
+                    // path of the suspension node
+                    path = StringUtils.substringBeforeLast(path, "/");
+                }
+                if (StringUtils.equals(StringUtils.substringBeforeLast(path, "/"), JCRSuspensionStore.SUSPENSIONS_PATH)) {
+                    userSuspensionCache.invalidate(JCRSuspensionStore.getUserPath(StringUtils.substringAfterLast(path, "/")));
+                }
+            } catch (RepositoryException e) {
+                logger.warn("Unable to read the path of the event {}", event, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.jahia.modules.upa.mfa;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link VerificationCodeGenerator} compared to the previous generation of the email codes (one
+ * {@code nextInt(10)} per digit on a shared {@link SecureRandom}), from 1 to 64 threads.
+ * <p>
+ * Not run by the build: run {@link #main(String[])} from the test classpath, once the tests are compiled (the
+ * benchmarks being generated by the JMH annotation processor).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerificationCodeGeneratorBenchmark {
+    private static final int CODE_LENGTH = 6;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private final VerificationCodeGenerator generator = new VerificationCodeGenerator(CODE_LENGTH, VerificationCodeGenerator.DIGITS);
+    private final SecureRandom random = new SecureRandom();
+
+    @Benchmark
+    public String generator() {
+        return generator.generate();
+    }
+
+    @Benchmark
+    public String sharedSecureRandom() {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            code.append(random.nextInt(10));
+        }
+        return code.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> summary = new ArrayList<>();
+        for (int threads : THREADS) {
+            for (RunResult result : new Runner(new OptionsBuilder()
+                    .include(VerificationCodeGeneratorBenchmark.class.getName())
+                    .threads(threads)
+                    .build()).run()) {
+                summary.add(String.format("%2d thread(s)  %-20s %12.1f ops/ms", threads, result.getParams().getBenchmark().replaceAll(".*\\.", ""),
+                        result.getPrimaryResult().getScore()));
+            }
+        }
+        summary.forEach(System.out::println);
+    }
+}
@@ -0,0 +1,106 @@
+package org.jahia.modules.upa.mfa;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VerificationCodeGeneratorTest {
+
+    @Test
+    void generatesCodesOfTheConfiguredLengthAndAlphabet() {
+        VerificationCodeGenerator generator = new VerificationCodeGenerator(6, VerificationCodeGenerator.DIGITS);
+        assertEquals(6, generator.getLength());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(generator.generate().matches("[0-9]{6}"));
+        }
+        VerificationCodeGenerator letters = new VerificationCodeGenerator(10, "ABC");
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(letters.generate().matches("[ABC]{10}"));
+        }
+    }
+
+    @Test
+    void drawsTheCharactersUniformly() {
+        // 256 not being a multiple of 10 nor of 3, a modulo without rejection would favor the first characters
+        assertUniform(VerificationCodeGenerator.DIGITS);
+        assertUniform("ABC");
+    }
+
+    @Test
+    void supportsTheLargestAlphabet() {
+        StringBuilder alphabet = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            alphabet.append(c);
+        }
+        VerificationCodeGenerator generator = new VerificationCodeGenerator(1000, alphabet.toString());
+        String code = generator.generate();
+        assertEquals(1000, code.length());
+        assertTrue(code.chars().allMatch(c -> c < 256));
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new VerificationCodeGenerator(0, VerificationCodeGenerator.DIGITS));
+        assertThrows(IllegalArgumentException.class, () -> new VerificationCodeGenerator(6, null));
+        assertThrows(IllegalArgumentException.class, () -> new VerificationCodeGenerator(6, "1"));
+        assertThrows(IllegalArgumentException.class, () -> new VerificationCodeGenerator(6, "0123456789012"));
+        StringBuilder tooLarge = new StringBuilder();
+        for (char c = 0; c < 257; c++) {
+            tooLarge.append(c);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new VerificationCodeGenerator(6, tooLarge.toString()));
+    }
+
+    @Test
+    void generatesConcurrently() throws Exception {
+        VerificationCodeGenerator generator = new VerificationCodeGenerator(12, VerificationCodeGenerator.DIGITS);
+        Set<String> codes = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                tasks.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        String code = generator.generate();
+                        assertTrue(code.matches("[0-9]{12}"));
+                        codes.add(code);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // 16,000 codes out of 10^12: a duplicate would mean that the stripes share their random bytes
+        assertEquals(16_000, codes.size());
+    }
+
+    private static void assertUniform(String alphabet) {
+        VerificationCodeGenerator generator = new VerificationCodeGenerator(100, alphabet);
+        int[] counts = new int[alphabet.length()];
+        int draws = 0;
+        for (int i = 0; i < 3000; i++) {
+            for (char c : generator.generate().toCharArray()) {
+                counts[alphabet.indexOf(c)]++;
+                draws++;
+            }
+        }
+        // chi-squared test, the threshold being far above the critical values at 0.001 (27.9 for 9 degrees of freedom)
+        double expected = (double) draws / alphabet.length();
+        double chiSquared = 0;
+        for (int count : counts) {
+            chiSquared += (count - expected) * (count - expected) / expected;
+        }
+        assertTrue(chiSquared < 40, "Not uniform: " + chiSquared);
+    }
+}
@@ -0,0 +1,68 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EmailMinifierTest {
+
+    @Test
+    void collapsesWhitespace() {
+        assertEquals("<p>Your code: <b>{{CODE}}</b></p>", EmailMinifier.minify("  <p>Your   code:\n\t<b>{{CODE}}</b>\n</p>\n"));
+    }
+
+    @Test
+    void removesWhitespaceAroundBlockTags() {
+        assertEquals("<table><tr><td>code</td></tr></table>", EmailMinifier.minify("<table>\n  <tr>\n    <td> code </td>\n  </tr>\n</table>"));
+    }
+
+    @Test
+    void collapsesWhitespaceAcrossRemovedComments() {
+        assertEquals("<p>a b</p>", EmailMinifier.minify("<p>a <!-- comment --> b</p>"));
+        assertEquals("<p>a b</p>", EmailMinifier.minify("<p>a<!-- comment --> b</p>"));
+        assertEquals("<p>ab</p>", EmailMinifier.minify("<p>a<!-- comment -->b</p>"));
+    }
+
+    @Test
+    void keepsWhitespaceBetweenInlineElementsAroundRemovedComments() {
+        assertEquals("<p><b>a</b> <i>b</i></p>", EmailMinifier.minify("<p><b>a</b>\n<!-- first -->\n<!-- second -->\n<i>b</i></p>"));
+    }
+
+    @Test
+    void keepsConditionalComments() {
+        String conditional = "<!--[if mso]><table><tr><td><![endif]-->";
+        assertEquals("<div>" + conditional + "<p>a</p></div>", EmailMinifier.minify("<div>\n" + conditional + "\n<p>a</p>\n</div>"));
+    }
+
+    @Test
+    void keepsPreformattedElements() {
+        String pre = "<pre>  line 1\n    line 2</pre>";
+        assertEquals("<div>" + pre + "</div>", EmailMinifier.minify("<div>\n  " + pre + "\n</div>"));
+    }
+
+    @Test
+    void minifiesStyleElements() {
+        assertEquals("<style>p{color: red;margin: 0}</style>", EmailMinifier.minify("<style>\n  /* text */\n  p {\n    color: red;\n    margin: 0\n  }\n</style>"));
+    }
+
+    @Test
+    void removesTheExactDuplicateStyleDeclarations() {
+        assertEquals("<p style=\"margin:0;color:red\">a</p>", EmailMinifier.minify("<p style=\"color: red; margin: 0; color: red\">a</p>"));
+        assertEquals("<p style=\"background:url('a;b.png')\">a</p>", EmailMinifier.minify("<p style=\"background: url('a;b.png')\">a</p>"));
+    }
+
+    @Test
+    void keepsTheFallbackStyleDeclarations() {
+        assertEquals("<p style=\"color:red;margin:0;color:blue\">a</p>", EmailMinifier.minify("<p style=\"color: red; margin: 0; color: blue\">a</p>"));
+        assertEquals("<p style=\"color:red !important;color:blue\">a</p>", EmailMinifier.minify("<p style=\"color: red !important; color: blue\">a</p>"));
+        assertEquals("<td style=\"background:#fff;background:linear-gradient(#fff, #eee)\">a</td>",
+                EmailMinifier.minify("<td style=\"background: #fff; background: linear-gradient(#fff, #eee)\">a</td>"));
+    }
+
+    @Test
+    void derivesTheTextAlternative() {
+        String html = "<html><head><title>Code</title></head><body><!-- comment --><p>Your code:&nbsp;<b>{{CODE}}</b></p>"
+                + "<p><a href=\"https://example.com/help\">Help</a></p><table><tr><td>a</td><td>b</td></tr></table></body></html>";
+        assertEquals("Your code: {{CODE}}\nHelp (https://example.com/help)\na b", EmailMinifier.toText(html));
+    }
+}
@@ -0,0 +1,51 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmailTemplateCacheTest {
+
+    @Test
+    void fillsTheCodeIntoTheRenderedEmail() {
+        EmailTemplateCache.RenderedEmail email = new EmailTemplateCache.RenderedEmail("Code", "<p>{{CODE}}</p><p>{{CODE}}</p>", "Code: {{CODE}}");
+        assertEquals("<p>123456</p><p>123456</p>", email.getContent("123456"));
+        assertEquals("Code: 123456", email.getText("123456"));
+        assertNull(new EmailTemplateCache.RenderedEmail("Code", "{{CODE}}", null).getText("123456"));
+    }
+
+    @Test
+    void keepsTheServerUrlsAcrossRestarts(@TempDir Path directory) {
+        Path path = directory.resolve("upa").resolve("server-urls.properties");
+        EmailTemplateCache cache = new EmailTemplateCache();
+        cache.saveServerUrls(path);
+        assertFalse(Files.exists(path));
+
+        cache.put("site", Locale.ENGLISH, "https://example.com:443", new EmailTemplateCache.RenderedEmail("Code", "{{CODE}}", null));
+        cache.put("other", Locale.FRENCH, "http://other.example.com:8080", new EmailTemplateCache.RenderedEmail("Code", "{{CODE}}", null));
+        cache.saveServerUrls(path);
+
+        EmailTemplateCache restarted = new EmailTemplateCache();
+        restarted.loadServerUrls(path);
+        assertEquals("https://example.com:443", restarted.getLastServerUrl("site"));
+        assertEquals("http://other.example.com:8080", restarted.getLastServerUrl("other"));
+        assertNull(restarted.getLastServerUrl("unknown"));
+        assertNull(restarted.get("site", Locale.ENGLISH, "https://example.com:443"));
+    }
+
+    @Test
+    void ignoresAMissingOrInvalidServerUrlsFile(@TempDir Path directory) throws Exception {
+        EmailTemplateCache cache = new EmailTemplateCache();
+        cache.loadServerUrls(directory.resolve("missing.properties"));
+        Path invalid = directory.resolve("invalid.properties");
+        Files.write(invalid, "site=\\u12".getBytes(StandardCharsets.UTF_8));
+        cache.loadServerUrls(invalid);
+        assertNull(cache.getLastServerUrl("site"));
+    }
+}
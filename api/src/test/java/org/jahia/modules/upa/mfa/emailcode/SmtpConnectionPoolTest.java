@@ -0,0 +1,159 @@
+package org.jahia.modules.upa.mfa.emailcode;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Session;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmtpConnectionPoolTest {
+    private static final String FROM = "noreply@example.com";
+    private static final String TO = "user@example.com";
+    /**
+     * Accepted by JavaMail, but rejected by GreenMail (with a 501 reply), the {@code >} ending the address it reads.
+     */
+    private static final String REJECTED_RECIPIENT = "\"a>b\"@example.com";
+
+    private final ByteArrayOutputStream commands = new ByteArrayOutputStream();
+    private final AtomicLong idleTimeoutMillis = new AtomicLong(60_000);
+    private ServerSetup serverSetup;
+    private GreenMail greenMail;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        // a fixed port, so that the server can be restarted on the same one
+        try (ServerSocket socket = new ServerSocket(0)) {
+            serverSetup = new ServerSetup(socket.getLocalPort(), "127.0.0.1", ServerSetup.PROTOCOL_SMTP);
+        }
+        greenMail = new GreenMail(serverSetup);
+        greenMail.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        greenMail.stop();
+    }
+
+    @Test
+    void reusesTheConnections() throws Exception {
+        SmtpConnectionPool pool = createPool(60_000);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(send(pool, TO));
+        }
+        assertEquals(3, greenMail.getReceivedMessages().length);
+        assertEquals(1, countCommands("EHLO"));
+        assertEquals(1, pool.getIdleConnectionCount());
+        assertEquals(0, countCommands("NOOP"));
+    }
+
+    @Test
+    void fallsBackRightAwayWhenAllTheConnectionsAreInUse() throws Exception {
+        SmtpConnectionPool pool = createPool(60_000);
+        assertTrue(pool.tryAcquire());
+        long start = System.nanoTime();
+        assertFalse(pool.tryAcquire());
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        pool.release();
+        assertTrue(pool.tryAcquire());
+    }
+
+    @Test
+    void closesTheIdleConnections() throws Exception {
+        SmtpConnectionPool pool = createPool(60_000);
+        assertTrue(send(pool, TO));
+        pool.evictIdleConnections();
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        idleTimeoutMillis.set(0);
+        Thread.sleep(10);
+        pool.evictIdleConnections();
+        assertEquals(0, pool.getIdleConnectionCount());
+        assertEquals(1, countCommands("QUIT"));
+
+        // also closed when borrowed, before the evictor runs
+        assertTrue(send(pool, TO));
+        Thread.sleep(10);
+        assertTrue(send(pool, TO));
+        assertEquals(3, countCommands("EHLO"));
+        assertEquals(2, countCommands("QUIT"));
+        assertEquals(3, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void checksTheConnectionsIdleForTooLong() throws Exception {
+        SmtpConnectionPool pool = createPool(0);
+        assertTrue(send(pool, TO));
+        Thread.sleep(10);
+        assertTrue(send(pool, TO));
+        assertEquals(1, countCommands("NOOP"));
+        assertEquals(1, countCommands("EHLO"));
+
+        // the connection closed by the server is replaced
+        greenMail.stop();
+        greenMail = new GreenMail(serverSetup);
+        greenMail.start();
+        Thread.sleep(10);
+        assertTrue(send(pool, TO));
+        assertEquals(2, countCommands("EHLO"));
+        assertEquals(1, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void keepsTheConnectionOnRejectedRecipients() throws Exception {
+        SmtpConnectionPool pool = createPool(60_000);
+        assertTrue(send(pool, TO));
+        assertFalse(send(pool, REJECTED_RECIPIENT));
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        assertTrue(send(pool, TO));
+        assertEquals(1, countCommands("EHLO"));
+        assertEquals(0, countCommands("QUIT"));
+        assertEquals(2, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void rejectsTheUnsupportedServers() {
+        assertThrows(Exception.class, () -> new SmtpConnectionPool("imap://127.0.0.1", FROM, 1, 0, idleTimeoutMillis::get, Session::getInstance));
+        assertThrows(Exception.class, () -> new SmtpConnectionPool("smtp://", FROM, 1, 0, idleTimeoutMillis::get, Session::getInstance));
+    }
+
+    private SmtpConnectionPool createPool(long healthCheckAfterMillis) throws Exception {
+        PrintStream debugOut = new PrintStream(commands, true, StandardCharsets.UTF_8.name());
+        return new SmtpConnectionPool("smtp://127.0.0.1:" + serverSetup.getPort(), FROM, 1, healthCheckAfterMillis, idleTimeoutMillis::get,
+                properties -> {
+                    // the debug output holds the commands sent to the server
+                    Session session = Session.getInstance(properties);
+                    session.setDebug(true);
+                    session.setDebugOut(debugOut);
+                    return session;
+                });
+    }
+
+    private static boolean send(SmtpConnectionPool pool, String to) {
+        assertTrue(pool.tryAcquire());
+        try {
+            return pool.send(to, "Code", "<p>Your code: <b>123456</b></p>", "Your code: 123456");
+        } finally {
+            pool.release();
+        }
+    }
+
+    private int countCommands(String command) throws Exception {
+        int count = 0;
+        for (String line : commands.toString(StandardCharsets.UTF_8.name()).split("\r?\n")) {
+            if (line.equals(command) || line.startsWith(command + " ")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,95 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AuthFailuresWindowTest {
+    private static final long WINDOW_MILLIS = 60_000;
+    private static final long NOW = 1_000_000;
+
+    @Test
+    void countsTheFailuresWithinTheWindow() {
+        AuthFailuresWindow window = new AuthFailuresWindow(5);
+        window.addFailureAttempt(NOW - WINDOW_MILLIS - 1);
+        window.addFailureAttempt(NOW - WINDOW_MILLIS);
+        window.addFailureAttempt(NOW - 1);
+
+        assertEquals(2, window.getFailureAttemptsCount(NOW, WINDOW_MILLIS));
+        assertEquals(0, window.getFailureAttemptsCount(NOW + 2 * WINDOW_MILLIS, WINDOW_MILLIS));
+    }
+
+    @Test
+    void emptyWindowHasNoFailures() {
+        assertEquals(0, new AuthFailuresWindow(3).getFailureAttemptsCount(NOW, WINDOW_MILLIS));
+    }
+
+    @Test
+    void overwritesTheOldestFailuresOnceFull() {
+        AuthFailuresWindow window = new AuthFailuresWindow(3);
+        for (int i = 0; i < 10; i++) {
+            window.addFailureAttempt(NOW - 10 + i);
+        }
+
+        assertEquals(3, window.getCapacity());
+        assertEquals(3, window.getFailureAttemptsCount(NOW, WINDOW_MILLIS));
+        // only the 3 most recent failures are kept
+        assertEquals(3, window.getFailureAttemptsCount(NOW, 3));
+        assertEquals(0, window.getFailureAttemptsCount(NOW, 0));
+    }
+
+    @Test
+    void capacityIsAtLeastOne() {
+        assertEquals(1, new AuthFailuresWindow(0).getCapacity());
+    }
+
+    @Test
+    void resizeKeepsTheMostRecentFailuresWithinTheWindow() {
+        AuthFailuresWindow window = new AuthFailuresWindow(5);
+        window.addFailureAttempt(NOW - 2 * WINDOW_MILLIS);
+        window.addFailureAttempt(NOW - 3);
+        window.addFailureAttempt(NOW - 2);
+        window.addFailureAttempt(NOW - 1);
+
+        AuthFailuresWindow smaller = window.resize(2, NOW, WINDOW_MILLIS);
+        assertEquals(2, smaller.getCapacity());
+        assertEquals(2, smaller.getFailureAttemptsCount(NOW, 2));
+
+        AuthFailuresWindow larger = window.resize(10, NOW, WINDOW_MILLIS);
+        assertEquals(3, larger.getFailureAttemptsCount(NOW, WINDOW_MILLIS));
+    }
+
+    @Test
+    void concurrentFailuresAreNotLost() throws InterruptedException {
+        int threads = 8;
+        int failuresPerThread = 1000;
+        AuthFailuresWindow window = new AuthFailuresWindow(threads * failuresPerThread);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < failuresPerThread; i++) {
+                    window.addFailureAttempt(NOW);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * failuresPerThread, window.getFailureAttemptsCount(NOW, WINDOW_MILLIS));
+    }
+}
@@ -0,0 +1,78 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DecayingCountMinSketchTest {
+    private static final long WINDOW_MILLIS = 60_000;
+
+    /**
+     * The start of a window after the creation of the sketches (whose first generation starts at the current window).
+     */
+    private static final long WINDOW_START = (System.currentTimeMillis() / WINDOW_MILLIS + 10) * WINDOW_MILLIS;
+
+    @Test
+    void countsTheOccurrencesOfAKey() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(10, WINDOW_MILLIS);
+        assertEquals(1, sketch.add("10.0.0.1", WINDOW_START));
+        assertEquals(2, sketch.add("10.0.0.1", WINDOW_START + 1));
+        assertEquals(1, sketch.add("10.0.0.2", WINDOW_START + 2));
+        assertEquals(3, sketch.add("10.0.0.1", WINDOW_START + 3));
+    }
+
+    @Test
+    void estimatesWithoutCounting() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(10, WINDOW_MILLIS);
+        assertEquals(0, sketch.estimate("10.0.0.1", WINDOW_START));
+        sketch.add("10.0.0.1", WINDOW_START);
+        assertEquals(1, sketch.estimate("10.0.0.1", WINDOW_START + 1));
+        assertEquals(1, sketch.estimate("10.0.0.1", WINDOW_START + 2));
+        assertEquals(2, sketch.add("10.0.0.1", WINDOW_START + 3));
+    }
+
+    @Test
+    void previousWindowDecaysLinearly() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(10, WINDOW_MILLIS);
+        for (int i = 0; i < 10; i++) {
+            sketch.add("10.0.0.1", WINDOW_START);
+        }
+        // half of the next window elapsed: half of the previous count, plus this one
+        assertEquals(6, sketch.add("10.0.0.1", WINDOW_START + WINDOW_MILLIS + WINDOW_MILLIS / 2));
+        // the previous window is forgotten once the next one is over
+        assertEquals(1, sketch.add("10.0.0.1", WINDOW_START + 3 * WINDOW_MILLIS));
+    }
+
+    @Test
+    void windowsWithoutActivityAreForgotten() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(10, WINDOW_MILLIS);
+        for (int i = 0; i < 10; i++) {
+            sketch.add("10.0.0.1", WINDOW_START);
+        }
+        // more than a window without activity
+        assertEquals(1, sketch.add("10.0.0.1", WINDOW_START + 2 * WINDOW_MILLIS));
+    }
+
+    @Test
+    void estimatesAreNeverLowerThanTheActualCounts() {
+        // 16 counters per row for 1000 keys: many collisions
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(4, WINDOW_MILLIS);
+        int[] counts = new int[1000];
+        for (int round = 0; round < 3; round++) {
+            for (int key = 0; key < counts.length; key += round + 1) {
+                counts[key]++;
+                int estimate = sketch.add("10.0." + key / 256 + '.' + key % 256, WINDOW_START);
+                assertTrue(estimate >= counts[key], "estimate " + estimate + " lower than " + counts[key]);
+            }
+        }
+    }
+
+    @Test
+    void remainingWindowMillis() {
+        DecayingCountMinSketch sketch = new DecayingCountMinSketch(10, WINDOW_MILLIS);
+        assertEquals(WINDOW_MILLIS, sketch.getRemainingWindowMillis(WINDOW_START));
+        assertEquals(1, sketch.getRemainingWindowMillis(WINDOW_START + WINDOW_MILLIS - 1));
+        assertEquals(WINDOW_MILLIS, sketch.getRemainingWindowMillis(WINDOW_START + WINDOW_MILLIS));
+    }
+}
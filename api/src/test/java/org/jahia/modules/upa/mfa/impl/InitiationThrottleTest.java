@@ -0,0 +1,64 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InitiationThrottleTest {
+    private static final int WINDOW_SECONDS = 60;
+    private static final long WINDOW_MILLIS = WINDOW_SECONDS * 1000L;
+
+    private final InitiationThrottle throttle = new InitiationThrottle();
+
+    @Test
+    void isDisabledWithoutWindow() {
+        throttle.setOrUpdateMfaConfigurationService(configuration(0, 1, 1));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, throttle.tryAcquire("192.0.2.1", System.currentTimeMillis()));
+        }
+    }
+
+    @Test
+    void throttlesTheClientsOverTheirLimit() {
+        throttle.setOrUpdateMfaConfigurationService(configuration(WINDOW_SECONDS, 3, 5));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, throttle.tryAcquire("192.0.2.1", now));
+        }
+        assertTrue(throttle.tryAcquire("192.0.2.1", now) > 0);
+        // the same subnet
+        assertEquals(0, throttle.tryAcquire("192.0.2.2", now));
+        assertEquals(0, throttle.tryAcquire("192.0.2.3", now));
+        assertTrue(throttle.tryAcquire("192.0.2.4", now) > 0);
+        assertEquals(0, throttle.tryAcquire("198.51.100.1", now));
+    }
+
+    @Test
+    void clientsRetryingWhileThrottledRecoverOnceTheWindowElapsed() {
+        throttle.setOrUpdateMfaConfigurationService(configuration(WINDOW_SECONDS, 3, 0));
+        // at the start of a window, so that the retries below are all counted against the same one
+        long now = System.currentTimeMillis();
+        now -= now % WINDOW_MILLIS;
+        for (int i = 0; i < 3; i++) {
+            throttle.tryAcquire("192.0.2.1", now);
+        }
+        // the rejected attempts are not counted
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(throttle.tryAcquire("192.0.2.1", now + i * WINDOW_MILLIS / 1000) > 0);
+        }
+        assertEquals(0, throttle.tryAcquire("192.0.2.1", now + 2 * WINDOW_MILLIS));
+    }
+
+    private static MfaConfigurationService configuration(int windowSeconds, int ipMaxAttempts, int subnetMaxAttempts) {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("mfaInitiateThrottleWindowSeconds", windowSeconds);
+        settings.put("mfaInitiateIpMaxAttempts", ipMaxAttempts);
+        settings.put("mfaInitiateSubnetMaxAttempts", subnetMaxAttempts);
+        return MfaServiceFixture.configuration(settings);
+    }
+}
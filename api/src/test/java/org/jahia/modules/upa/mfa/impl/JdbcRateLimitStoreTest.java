@@ -0,0 +1,227 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.jahia.modules.upa.mfa.MfaRateLimitStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the {@link JdbcRateLimitStore} against an embedded H2 database, with two stores standing for two cluster nodes.
+ */
+class JdbcRateLimitStoreTest {
+    private static final String USER = "/users/root/john";
+    private static final String FACTOR = "email_code";
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private JdbcDataSource dataSource;
+    private final AtomicInteger connections = new AtomicInteger();
+    private JdbcRateLimitStore node1;
+    private JdbcRateLimitStore node2;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        node1 = createStore();
+        node2 = createStore();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        node1.deactivate();
+        node2.deactivate();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    void failuresAreSharedOnceFlushed() throws Exception {
+        long now = System.currentTimeMillis();
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        assertEquals(2, node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5));
+        // not written yet
+        assertEquals(0, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+
+        node1.flush();
+        pollChanges();
+
+        assertEquals(2, node1.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+        assertEquals(2, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+        assertEquals(3, node2.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5));
+        node2.flush();
+        pollChanges();
+        assertEquals(3, node1.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+    }
+
+    @Test
+    void failuresAreWrittenByBatchesPerSecond() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 20);
+        }
+        node1.recordFailure(USER, FACTOR, now - 2000, WINDOW_MILLIS, 20);
+        node1.flush();
+
+        // one row per second, holding the count of the failures
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM upa_mfa_failures"));
+        assertEquals(11, queryLong("SELECT SUM(failures) FROM upa_mfa_failures"));
+    }
+
+    @Test
+    void failuresOutsideTheWindowAreNotCounted() throws Exception {
+        long now = System.currentTimeMillis();
+        node1.recordFailure(USER, FACTOR, now - 2 * WINDOW_MILLIS, WINDOW_MILLIS, 5);
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.flush();
+        pollChanges();
+
+        assertEquals(1, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+    }
+
+    @Test
+    void clearedFailuresAreDeletedForAllNodes() throws Exception {
+        long now = System.currentTimeMillis();
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.flush();
+
+        node2.clearFailures(USER, FACTOR);
+        // ignored at once on the node clearing them, even though still in the database
+        assertEquals(0, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+        node2.flush();
+        pollChanges();
+
+        assertEquals(0, node1.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM upa_mfa_failures"));
+        // the failures recorded after the clear are kept
+        assertEquals(1, node2.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5));
+    }
+
+    @Test
+    void failuresAreKeptPerUserAndFactor() throws Exception {
+        long now = System.currentTimeMillis();
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.recordFailure("/users/root/jane", FACTOR, now, WINDOW_MILLIS, 5);
+        node1.recordFailure(USER, "other_factor", now, WINDOW_MILLIS, 5);
+        node1.flush();
+        pollChanges();
+
+        assertEquals(1, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM upa_mfa_failures"));
+    }
+
+    @Test
+    void preparationsAreSharedOnceFlushed() throws Exception {
+        long now = System.currentTimeMillis();
+        assertEquals(MfaRateLimitStore.NO_PREPARATION, node2.getLastPreparation(USER, FACTOR));
+
+        node1.recordPreparation(USER, FACTOR, now, WINDOW_MILLIS);
+        assertEquals(now, node1.getLastPreparation(USER, FACTOR));
+        node1.flush();
+        pollChanges();
+        assertEquals(now, node2.getLastPreparation(USER, FACTOR));
+
+        // updated by another node
+        node2.recordPreparation(USER, FACTOR, now + 1000, WINDOW_MILLIS);
+        node2.flush();
+        pollChanges();
+        assertEquals(now + 1000, node1.getLastPreparation(USER, FACTOR));
+
+        node1.clearPreparation(USER, FACTOR);
+        assertEquals(MfaRateLimitStore.NO_PREPARATION, node1.getLastPreparation(USER, FACTOR));
+        node1.flush();
+        pollChanges();
+        assertEquals(MfaRateLimitStore.NO_PREPARATION, node2.getLastPreparation(USER, FACTOR));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM upa_mfa_preparations"));
+    }
+
+    @Test
+    void repeatedOperationsDoNotReadTheDatabaseAgain() {
+        long now = System.currentTimeMillis();
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.flush();
+        pollChanges();
+        // read once, including when there is no row at all
+        node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS);
+        node2.getLastPreparation(USER, FACTOR);
+
+        int connectionsBefore = connections.get();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, node2.getFailureCount(USER, FACTOR, now + i, WINDOW_MILLIS));
+            assertEquals(MfaRateLimitStore.NO_PREPARATION, node2.getLastPreparation(USER, FACTOR));
+        }
+        assertEquals(connectionsBefore, connections.get());
+
+        // read again once changed by another node
+        node1.recordFailure(USER, FACTOR, now, WINDOW_MILLIS, 5);
+        node1.flush();
+        node2.pollChanges();
+        assertEquals(2, node2.getFailureCount(USER, FACTOR, now, WINDOW_MILLIS));
+    }
+
+    private JdbcRateLimitStore createStore() {
+        JdbcRateLimitStore store = new JdbcRateLimitStore();
+        store.setDataSource(countConnections(dataSource));
+        store.activate(new JdbcRateLimitStore.Config() {
+            @Override
+            public int flushIntervalMillis() {
+                // only flushed explicitly by the tests
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public int changesPollIntervalMillis() {
+                // only polled explicitly by the tests
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return JdbcRateLimitStore.Config.class;
+            }
+        });
+        return store;
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private void pollChanges() {
+        node1.pollChanges();
+        node2.pollChanges();
+    }
+
+    private DataSource countConnections(DataSource target) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                connections.incrementAndGet();
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+}
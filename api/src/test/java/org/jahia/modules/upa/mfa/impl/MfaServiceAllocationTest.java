@@ -0,0 +1,38 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.mfa.MfaSession;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MfaServiceAllocationTest {
+    private static final int WARM_UP_OPERATIONS = 50_000;
+    private static final int MEASURED_OPERATIONS = 20_000;
+
+    @Test
+    void preparesAndVerifiesWithinTheAllocationBudget() {
+        MfaServiceFixture fixture = new MfaServiceFixture();
+        // compiled first, so that what the JIT compiler keeps off the heap is not counted
+        for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+            assertOperationSucceeded(fixture.prepareAndVerify());
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+            fixture.prepareAndVerify();
+        }
+        long bytesPerOperation = (threads.getThreadAllocatedBytes(threadId) - allocatedBytes) / MEASURED_OPERATIONS;
+        assertTrue(bytesPerOperation <= MfaServiceBenchmark.BYTES_PER_OPERATION_BUDGET,
+                "A preparation and verification allocates " + bytesPerOperation + " bytes, the budget is "
+                        + MfaServiceBenchmark.BYTES_PER_OPERATION_BUDGET + " bytes");
+    }
+
+    private static void assertOperationSucceeded(MfaSession session) {
+        assertFalse(session.hasError());
+        assertNull(session.getOrCreateFactorState(MfaServiceFixture.FACTOR_TYPE).getError());
+        assertTrue(session.isFactorVerified(MfaServiceFixture.FACTOR_TYPE));
+    }
+}
@@ -0,0 +1,55 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.mfa.MfaSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and memory allocated by a preparation followed by a verification of a factor (see {@link MfaServiceFixture}),
+ * i.e. by the MFA service itself: its caches, rate limits and admission control, the factor provider doing nothing.
+ * <p>
+ * Not run by the build, {@link MfaServiceAllocationTest} checking the allocation budget: run {@link #main(String[])}
+ * from the test classpath, once the tests are compiled (the benchmarks being generated by the JMH annotation
+ * processor). It fails if the allocations reported by the GC profiler exceed the budget.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MfaServiceBenchmark {
+    /**
+     * The bytes allocated by a preparation and a verification (about 600 on Java 17), the contexts passed to the factor
+     * provider, the entries of the rate limit store and the argument arrays of the stub requests included.
+     */
+    static final long BYTES_PER_OPERATION_BUDGET = 700;
+
+    private final MfaServiceFixture fixture = new MfaServiceFixture();
+
+    @Benchmark
+    public MfaSession prepareAndVerify() {
+        return fixture.prepareAndVerify();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (RunResult result : new Runner(new OptionsBuilder()
+                .include(MfaServiceBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run()) {
+            Result<?> allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            System.out.printf("%.1f ns/op, %.1f B/op%n", result.getPrimaryResult().getScore(), allocation.getScore());
+            if (allocation.getScore() > BYTES_PER_OPERATION_BUDGET) {
+                throw new IllegalStateException("A preparation and verification allocates " + allocation.getScore()
+                        + " bytes, the budget is " + BYTES_PER_OPERATION_BUDGET + " bytes");
+            }
+        }
+    }
+}
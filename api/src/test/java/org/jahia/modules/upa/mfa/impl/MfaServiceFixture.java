@@ -0,0 +1,180 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.jahia.modules.upa.impl.MfaConfigurationService;
+import org.jahia.modules.upa.mfa.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link MfaServiceImpl} wired with its real collaborators and with an MFA session already initiated, to run the
+ * preparations and verifications of a factor over and over (see {@link MfaServiceAllocationTest} and
+ * {@link MfaServiceBenchmark}).
+ * <p>
+ * The session requires two factors, so that verifying the first one never completes the authentication. The limits are
+ * high enough for the preparations never to be rejected, and the user is cached, so that the repository (not available
+ * here) is never read.
+ */
+final class MfaServiceFixture {
+    static final String FACTOR_TYPE = "first";
+    private static final String OTHER_FACTOR_TYPE = "second";
+    private static final String USER_PATH = "/users/ab/cd/ef/jdoe";
+    private static final String CODE = "123456";
+
+    private final MfaServiceImpl service = new MfaServiceImpl();
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+
+    MfaServiceFixture() {
+        MfaConfigurationService configuration = configuration(settings());
+
+        FactorRegistry factorRegistry = new FactorRegistry();
+        factorRegistry.addFactorProvider(new StaticCodeProvider(FACTOR_TYPE));
+        factorRegistry.addFactorProvider(new StaticCodeProvider(OTHER_FACTOR_TYPE));
+        UserProfileCache userProfileCache = new UserProfileCache();
+        userProfileCache.putProfile(new MfaUserDetails(USER_PATH, "jdoe", "jdoe@example.com", Locale.ENGLISH, UserSuspensionCache.NOT_SUSPENDED));
+        UserSuspensionCache userSuspensionCache = new UserSuspensionCache();
+        userSuspensionCache.markNotSuspended(USER_PATH);
+        PreparationRateLimiter preparationRateLimiter = new PreparationRateLimiter();
+        preparationRateLimiter.setOrUpdateMfaConfigurationService(configuration);
+        AdmissionController admissionController = new AdmissionController();
+        admissionController.setOrUpdateMfaConfigurationService(configuration);
+        LocalRateLimitStore rateLimitStore = new LocalRateLimitStore();
+        rateLimitStore.setOrUpdateMfaConfigurationService(configuration);
+        rateLimitStore.activate();
+
+        service.setFactorRegistry(factorRegistry);
+        service.setUserProfileCache(userProfileCache);
+        service.setUserSuspensionCache(userSuspensionCache);
+        service.setPreparationRateLimiter(preparationRateLimiter);
+        service.setAdmissionController(admissionController);
+        service.setRateLimitStore(rateLimitStore);
+        service.setOrUpdateMfaConfigurationService(configuration);
+
+        MfaSession session = new MfaSession(new MfaSessionContext("jdoe", USER_PATH, Locale.ENGLISH, "mySite", false,
+                Arrays.asList(FACTOR_TYPE, OTHER_FACTOR_TYPE)));
+        session.setInitiated(true);
+        Map<String, Object> sessionAttributes = new ConcurrentHashMap<>();
+        sessionAttributes.put("mfa_session", session);
+        HttpSession httpSession = stub(HttpSession.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getAttribute":
+                    return sessionAttributes.get((String) args[0]);
+                case "setAttribute":
+                    sessionAttributes.put((String) args[0], args[1]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        request = stub(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getSession":
+                    return httpSession;
+                case "getRemoteAddr":
+                    return "192.0.2.1";
+                default:
+                    return null;
+            }
+        });
+        response = stub(HttpServletResponse.class, (method, args) -> null);
+    }
+
+    /**
+     * Prepares the factor, then verifies it.
+     *
+     * @return the MFA session, with an error if either operation failed
+     */
+    MfaSession prepareAndVerify() {
+        MfaSession session = service.prepareFactor(FACTOR_TYPE, request, response);
+        if (session.getOrCreateFactorState(FACTOR_TYPE).getError() != null) {
+            return session;
+        }
+        return service.verifyFactor(FACTOR_TYPE, CODE, request, response);
+    }
+
+    private static Map<String, Object> settings() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("mfaEnabledFactors", new String[]{FACTOR_TYPE, OTHER_FACTOR_TYPE});
+        values.put("mfaMaxAuthFailuresBeforeLock", 5);
+        values.put("mfaAuthFailuresWindowSeconds", 120);
+        values.put("mfaUserTemporarySuspensionSeconds", 600);
+        // each verification clears the cooldown of the preparations
+        values.put("mfaFactorStartRateLimitSeconds", 30);
+        values.put("mfaAuthFailuresCacheMaxWeightBytes", 16_777_216L);
+        values.put("mfaFactorStartRateLimitCacheMaxWeightBytes", 8_388_608L);
+        for (String scope : new String[]{"User", "Ip", "Site", "Global"}) {
+            values.put("mfaPrepare" + scope + "BucketBurst", Integer.MAX_VALUE);
+            values.put("mfaPrepare" + scope + "BucketRefillPerMinute", Integer.MAX_VALUE);
+        }
+        values.put("mfaMaxConcurrentOperations", 64);
+        return values;
+    }
+
+    /**
+     * Creates the MFA configuration with the given settings, the other ones being 0, false or null.
+     *
+     * @param values the settings by name, boxed once so that reading the configuration does not allocate
+     */
+    static MfaConfigurationService configuration(Map<String, Object> values) {
+        MfaConfigurationService configuration = new MfaConfigurationService();
+        configuration.activate(stub(MfaConfigurationService.Config.class, (method, args) -> {
+            if (values.containsKey(method.getName())) {
+                return values.get(method.getName());
+            }
+            Class<?> type = method.getReturnType();
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == boolean.class) {
+                return false;
+            }
+            return method.getDefaultValue();
+        }));
+        return configuration;
+    }
+
+    private static <T> T stub(Class<T> type, StubHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MfaServiceFixture.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.invoke(method, args)));
+    }
+
+    private interface StubHandler {
+        Object invoke(Method method, Object[] args);
+    }
+
+    /**
+     * Factor provider accepting a fixed code.
+     */
+    private static class StaticCodeProvider implements MfaFactorProvider {
+        private final String factorType;
+
+        private StaticCodeProvider(String factorType) {
+            this.factorType = factorType;
+        }
+
+        @Override
+        public String getFactorType() {
+            return factorType;
+        }
+
+        @Override
+        public Serializable prepare(PreparationContext preparationContext) {
+            return CODE;
+        }
+
+        @Override
+        public boolean verify(VerificationContext verificationContext) {
+            return CODE.equals(verificationContext.getVerificationData());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PreparationRateLimiterTest {
+    private static final String IP = "192.0.2.1";
+    private static final String SITE = "mySite";
+
+    private final PreparationRateLimiter rateLimiter = new PreparationRateLimiter();
+    private final Map<String, Object> settings = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        // a token per second for each user, per minute for the site
+        settings.put("mfaPrepareUserBucketBurst", 1);
+        settings.put("mfaPrepareUserBucketRefillPerMinute", 60);
+        settings.put("mfaPrepareSiteBucketBurst", 2);
+        settings.put("mfaPrepareSiteBucketRefillPerMinute", 1);
+        rateLimiter.setOrUpdateMfaConfigurationService(MfaServiceFixture.configuration(settings));
+    }
+
+    @Test
+    void waitsForTheWidestEmptyBucket() {
+        long now = 0;
+        assertEquals(0, rateLimiter.tryAcquire("/users/a", IP, SITE, now));
+        assertEquals(0, rateLimiter.tryAcquire("/users/b", IP, SITE, now));
+        // both the user and the site buckets are empty: retrying once the user bucket refilled would be rejected again
+        assertEquals(60_000, rateLimiter.tryAcquire("/users/a", IP, SITE, now));
+        assertEquals(1000, rateLimiter.tryAcquire("/users/a", IP, "otherSite", now));
+    }
+
+    @Test
+    void givesBackTheTokensOfTheNarrowerBucketsOnRejection() {
+        long now = 0;
+        assertEquals(0, rateLimiter.tryAcquire("/users/a", IP, SITE, now));
+        assertEquals(0, rateLimiter.tryAcquire("/users/b", IP, SITE, now));
+        assertEquals(60_000, rateLimiter.tryAcquire("/users/c", IP, SITE, now));
+        // the token of the user was not consumed by the rejected preparation
+        assertEquals(0, rateLimiter.tryAcquire("/users/c", IP, "otherSite", now));
+    }
+
+    @Test
+    void ignoresTheClientIpWhenItsBucketIsDisabled() {
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("/users/" + i, IP, "site" + i, 0));
+        }
+        assertEquals(0, rateLimiter.getWaitMillis(IP, "otherSite", 0));
+    }
+}
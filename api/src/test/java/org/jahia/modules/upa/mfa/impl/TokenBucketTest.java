@@ -0,0 +1,85 @@
+package org.jahia.modules.upa.mfa.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    private static final long NOW = 1_000_000;
+
+    @Test
+    void newBucketAllowsTheBurst() {
+        TokenBucket bucket = new TokenBucket();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(NOW, 3, 60));
+        }
+        // 60 tokens per minute: the next one in a second
+        assertEquals(1000, bucket.tryAcquire(NOW, 3, 60));
+    }
+
+    @Test
+    void refillsContinuously() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        assertEquals(500, bucket.tryAcquire(NOW + 500, 1, 60));
+        assertEquals(0, bucket.tryAcquire(NOW + 1000, 1, 60));
+    }
+
+    @Test
+    void neverExceedsTheBurst() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 2, 60));
+        // idle for long enough to refill far more than the burst
+        assertEquals(0, bucket.tryAcquire(NOW + 3_600_000, 2, 60));
+        assertEquals(0, bucket.tryAcquire(NOW + 3_600_000, 2, 60));
+        assertTrue(bucket.tryAcquire(NOW + 3_600_000, 2, 60) > 0);
+    }
+
+    @Test
+    void getWaitMillisDoesNotTakeTokens() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.getWaitMillis(NOW, 1, 60));
+        assertEquals(0, bucket.getWaitMillis(NOW, 1, 60));
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        assertEquals(1000, bucket.getWaitMillis(NOW, 1, 60));
+    }
+
+    @Test
+    void releaseGivesBackATokenUpToTheBurst() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        bucket.release(1);
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+
+        bucket.release(1);
+        bucket.release(1);
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        assertTrue(bucket.tryAcquire(NOW, 1, 60) > 0);
+    }
+
+    @Test
+    void burstChangeAppliesToTheExistingBucket() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 10, 60));
+        // 9 tokens left, capped by the new burst
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        assertTrue(bucket.tryAcquire(NOW, 1, 60) > 0);
+    }
+
+    @Test
+    void refillBelowOneIsTreatedAsOnePerMinute() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 0));
+        assertEquals(60_000, bucket.tryAcquire(NOW, 1, 0));
+        assertEquals(60_000, bucket.getWaitMillis(NOW, 1, -5));
+        assertEquals(0, bucket.tryAcquire(NOW + 60_000, 1, 0));
+    }
+
+    @Test
+    void clockGoingBackwardsDoesNotRefill() {
+        TokenBucket bucket = new TokenBucket();
+        assertEquals(0, bucket.tryAcquire(NOW, 1, 60));
+        assertTrue(bucket.tryAcquire(NOW - 10_000, 1, 60) > 0);
+    }
+}
@@ -36,10 +36,11 @@ public class CustomFactorMutation {
     @GraphQLField
     @GraphQLName("prepare")
     @GraphQLDescription("Prepare the custom factor")
-    public CustomFactorPreparation prepare(DataFetchingEnvironment environment) {
+    public CustomFactorPreparation prepare(@GraphQLName("idempotencyKey") @GraphQLDescription("Optional key identifying the preparation, so that its retries return the same result without preparing the factor again") String idempotencyKey,
+                                           DataFetchingEnvironment environment) {
         HttpServletRequest httpServletRequest = ContextUtil.getHttpServletRequest(environment.getGraphQlContext());
         HttpServletResponse httpServletResponse = ContextUtil.getHttpServletResponse(environment.getGraphQlContext());
-        MfaSession session = mfaService.prepareFactor(FACTOR_TYPE, httpServletRequest, httpServletResponse);
+        MfaSession session = mfaService.prepareFactor(FACTOR_TYPE, idempotencyKey, httpServletRequest, httpServletResponse);
         CustomFactorProvider.PreparationResult preparationResult = (CustomFactorProvider.PreparationResult) session.getOrCreateFactorState(FACTOR_TYPE).getPreparationResult();
         return new CustomFactorPreparation(session, preparationResult);
 
@@ -5,7 +5,7 @@ import {
     generateWrongCode,
     getVerificationCode,
     initiate,
-    initiateAndExpectGlobalError, initiateAndExpectSuspended,
+    initiateAndExpectGlobalError, initiateAndExpectSuspended, initiateAndExpectThrottled,
     installMFAConfig,
     prepareEmailCodeFactor,
     prepareEmailCodeFactorAndExpectFactorError, prepareEmailCodeFactorAndExpectSuspended,
@@ -29,6 +29,7 @@ describe('Error scenarios common to all factors', () => {
     });
 
     afterEach(() => {
+        installMFAConfig('no-initiate-throttling.yml'); // The throttling would otherwise apply to the next tests
         deleteUser(usr);
         deleteAllEmails();
     });
@@ -70,6 +71,27 @@ describe('Error scenarios common to all factors', () => {
         prepareEmailCodeFactor();
     });
 
+    it('Should reject the initiations over the throttling limit, then should pass after the window', () => {
+        installMFAConfig('initiate-throttling.yml'); // At most 3 initiations per client IP within 10 seconds
+
+        cy.log('1- initiate up to the limit');
+        initiate(usr, pwd);
+        initiate(usr, pwd);
+        initiateAndExpectGlobalError(usr, 'myPassword', 'authentication_failed');
+
+        cy.log('2- initiate over the limit, the credentials not being checked');
+        initiateAndExpectThrottled(usr, pwd);
+        initiateAndExpectThrottled(usr, pwd).then(retryAfter => {
+            cy.log('3- wait for the attempts to leave the sliding window');
+            // The attempts of the elapsed window still count, decaying, during the next one
+            // eslint-disable-next-line cypress/no-unnecessary-waiting
+            cy.wait((retryAfter + 10) * 1000);
+        });
+
+        cy.log('4- initiate after the window should pass, the rejected attempts not being counted');
+        initiate(usr, pwd);
+    });
+
     it('Should throw an error when a suspended user tries to initiate the MFA flow', () => {
         suspendUser(usr, pwd, email);
 
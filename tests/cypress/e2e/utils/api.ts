@@ -58,3 +58,36 @@ export function initiateAndExpectSuspended(username: string, password: string, s
         suspensionDurationInSeconds: value => expect(Number.parseInt(value, 10)).eq(suspensionDurationInSeconds)
     });
 }
+
+/**
+ * Initiates the MFA process for a given user and asserts that the initiation is throttled: rejected with an HTTP 429
+ * status, a `Retry-After` header and the `initiate.too_many_attempts` session error.
+ *
+ * @param username - The username to authenticate.
+ * @param password - The password for the user.
+ * @returns the number of seconds to wait before retrying
+ */
+export function initiateAndExpectThrottled(username: string, password: string): Cypress.Chainable<number> {
+    cy.log('Initiating MFA process for user ' + username + ' and asserting it is throttled...');
+    return cy.fixture('initiate.graphql').then(query => {
+        return cy.request({
+            method: 'POST',
+            url: '/modules/graphql',
+            body: {query, variables: {username, password}},
+            failOnStatusCode: false
+        });
+    }).then(response => {
+        cy.log('Response for initiateAndExpectThrottled():', JSON.stringify(response.body, null, 2));
+        expect(response.status).to.eq(429);
+        const retryAfter = Number.parseInt(response.headers['retry-after'] as string, 10);
+        expect(retryAfter).to.be.greaterThan(0);
+
+        const session = response.body?.data?.upa?.mfaInitiate?.session;
+        expect(session?.initiated).to.be.false;
+        expect(session?.error?.code).to.eq('initiate.too_many_attempts');
+        const nextRetryInSeconds = session?.error?.arguments?.find(arg => arg.name === 'nextRetryInSeconds');
+        expect(nextRetryInSeconds).to.exist;
+        expect(Number.parseInt(nextRetryInSeconds.value, 10)).to.eq(retryAfter);
+        return retryAfter;
+    });
+}
@@ -23,12 +23,14 @@ export const I18N = {
             'unexpected_error': 'An unexpected error occurred',
             'no_active_session': 'No active session found. Please refresh the page and retry login again.',
             'authentication_failed': 'Invalid username or password',
+            'initiate.too_many_attempts': 'Too many login attempts from your network. Please retry in {{nextRetryInSeconds}} seconds.',
             'verification_failed': 'Verification failed',
             'suspended_user': 'Your account is temporarily locked for {{suspensionDurationInHours}} hour(s). Please retry later.',
             'failed_to_check_if_user_suspended': 'Failed to check if the user is suspended',
             'failed_to_mark_user_as_suspended': 'Failed to mark user as suspended',
             'factor_type_not_supported': 'Factor {{factorType}} not supported',
             'user_not_found': 'User not found',
+            'server_busy': 'The server is busy. Please retry in a few seconds.',
             'prepare.rate_limit_exceeded': 'The factor {{factorType}} already generated for user {{user}}, wait {{nextRetryInSeconds}} seconds before generating a new one',
             'verify.factor_not_prepared': 'Factor {{factorType}} not prepared',
             'verify.loading': 'Verifying the code...',